@@ -1,52 +1,497 @@
 package de.eiswind.jackrabbit.persistence.orient;
 
 import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.data.DataRecord;
+import org.apache.jackrabbit.core.data.DataStore;
 import org.apache.jackrabbit.core.fs.FileSystem;
 import org.apache.jackrabbit.core.fs.FileSystemException;
+import org.apache.jackrabbit.core.fs.local.LocalFileSystem;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.util.Text;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
+import javax.jcr.RepositoryException;
+import java.io.ByteArrayInputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
-import java.util.UUID;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
 
 /**
- * Created by Thomas on 31.08.2014.
+ * Stores the binaries that are too large to be embedded in the bundle documents.
+ * <p>
+ * If the repository has a data store, the binaries are kept there, and the documents only store the
+ * identifier of the record. jackrabbit has put most binaries into the data store before they reach the
+ * persistence manager, so they are not copied. Without a data store the binaries are files in the
+ * docs folder, named by the SHA-256 hash of their content, so identical content is stored once.
+ * On a local filesystem, binaries smaller than the maximum packed size are appended to the pack files of
+ * a {@link PackStore} instead. Binaries are read through the records of the {@link DocsFolder}. Small binaries
+ * are loaded into memory values, which jackrabbit shares without copying them, larger ones as values of their
+ * file, which jackrabbit copies to a temp file when it hands them out. Either value is a plain binary to
+ * jackrabbit, so any persistence manager can store it. Ranged reads of large binaries only avoid that copy if
+ * they are kept in a data store.
+ * <p>
+ * The fanout folders of the files are created when the helper is opened, their number of levels is
+ * recorded in the docs folder and cannot change afterwards. On a local filesystem files are written by a
+ * {@link BlobFileWriter}, through a temp file that is moved in place.
+ * <p>
+ * Binaries can be spooled while a change log is staged: they are written by a bounded pool of threads,
+ * and {@link #write(InternalValue)} waits for the write of a spooled value instead of writing it.
+ * <p>
+ * With compression, files whose content compresses well are deflated, see {@link Compression}. Their id is
+ * the hash of the content with a suffix, so it tells how to read them. Packed binaries are small and kept
+ * raw, values in the data store are left as they are.
+ * <p>
+ * Small binaries that were read are kept in a {@link BlobCache} if there is one, which forgets them when
+ * they are deleted.
  */
 public class BinaryFileSystemHelper {
 
+    /**
+     * prefix of ids of data store records, as written by jackrabbit for a value in the data store.
+     */
+    static final String DATA_STORE_PREFIX = "dataStore:";
+
+    /**
+     * prefix of values of files in the docs folder, jackrabbit prints the value of a resource as fsResource:
+     * followed by the resource.
+     */
+    private static final String FILE_PREFIX = "fsResource:" + DocsFolder.PREFIX;
+
+    /**
+     * binaries smaller than this are loaded into memory values.
+     */
+    static final int MAX_MEMORY_VALUE_SIZE = 64 * 1024;
+
+    /**
+     * binaries smaller than this are packed by default.
+     */
+    static final int DEFAULT_MAX_PACKED_SIZE = 64 * 1024;
+
+    /**
+     * levels of fanout folders of a new docs folder by default.
+     */
+    static final int DEFAULT_FANOUT = 1;
+
+    /**
+     * the most levels of fanout folders, they are all created up front.
+     */
+    private static final int MAX_FANOUT = 2;
+
+    /**
+     * file in the docs folder that records the levels of fanout folders.
+     */
+    private static final String FANOUT_FILE = DocsFolder.FOLDER + "/fanout";
+
+    /**
+     * threads that write spooled binaries by default.
+     */
+    static final int DEFAULT_WRITE_THREADS = 4;
+
+    /**
+     * spooled binaries that may wait for a thread, for each thread. more are written by the thread that
+     * spools them.
+     */
+    private static final int QUEUE_PER_THREAD = 16;
+
+    /**
+     * seconds an idle writer thread is kept.
+     */
+    private static final long WRITER_KEEP_ALIVE = 60;
+
+    private static final String DIGEST = "SHA-256";
+
+    private static final int BUFFER_SIZE = 0x10000;
+
+    private static final int HEX_SHIFT = 4;
+
+    private static final int HEX_MASK = 0xf;
+
     private static Logger log = LoggerFactory.getLogger(BinaryFileSystemHelper.class);
     private final FileSystem fileSystem;
 
+    private final DataStore dataStore;
+
+    private final DocsFolder files;
+
+    private final PackStore packs;
+
+    private final int maxPackedSize;
+
+    private final BlobFileWriter writer;
+
+    private final boolean compress;
+
     /**
-     * create a filesystem helper.
+     * the cache of small binaries, <code>null</code> if there is none.
+     */
+    private BlobCache cache;
+
+    /**
+     * the threads that write spooled binaries, <code>null</code> if they are not spooled.
+     */
+    private final ThreadPoolExecutor spooler;
+
+    /**
+     * the writes of the spooled binaries that were not asked for yet.
+     */
+    private final Map<InternalValue, Future<String>> spooled =
+            Collections.synchronizedMap(new IdentityHashMap<InternalValue, Future<String>>());
+
+    /**
+     * guards the ids written during a garbage collection and the deletions of the collection.
+     */
+    private final Object collectionLock = new Object();
+
+    /**
+     * the ids written since a garbage collection started, <code>null</code> if none is running.
+     */
+    private Set<String> written;
+
+    /**
+     * create a filesystem helper without a data store.
      *
      * @param pfileSystem the filesystem
      */
     public BinaryFileSystemHelper(final FileSystem pfileSystem) {
+        this(pfileSystem, null);
+    }
+
+    /**
+     * create a filesystem helper.
+     *
+     * @param pfileSystem the filesystem
+     * @param pdataStore  the data store of the repository, may be <code>null</code>
+     */
+    public BinaryFileSystemHelper(final FileSystem pfileSystem, final DataStore pdataStore) {
+        this(pfileSystem, pdataStore, DEFAULT_MAX_PACKED_SIZE, DEFAULT_FANOUT, false, DEFAULT_WRITE_THREADS, false);
+    }
+
+    /**
+     * create a filesystem helper.
+     *
+     * @param pfileSystem    the filesystem
+     * @param pdataStore     the data store of the repository, may be <code>null</code>
+     * @param pmaxPackedSize binaries smaller than this are packed, 0 stores every binary in its own file
+     * @param pfanout        levels of fanout folders of a new docs folder, 1 or 2
+     * @param psync          whether files and packed binaries are forced to the disk before the commit, on a
+     *                       local filesystem
+     * @param pwriteThreads  threads that write spooled binaries, 0 does not spool them
+     * @param pcompress      whether files and long strings are compressed if they compress well
+     */
+    public BinaryFileSystemHelper(final FileSystem pfileSystem, final DataStore pdataStore,
+                                  final int pmaxPackedSize, final int pfanout, final boolean psync,
+                                  final int pwriteThreads, final boolean pcompress) {
+        if (pfanout < 1 || pfanout > MAX_FANOUT) {
+            throw new IllegalArgumentException("fanout must be 1 to " + MAX_FANOUT + ": " + pfanout);
+        }
         this.fileSystem = pfileSystem;
+        this.dataStore = pdataStore;
+        this.maxPackedSize = pmaxPackedSize;
+        this.compress = pcompress;
+        int fanout = pfanout;
         try {
-            if (!fileSystem.exists("docs")) {
-                fileSystem.createFolder("docs");
+            if (!fileSystem.exists(DocsFolder.FOLDER)) {
+                fileSystem.createFolder(DocsFolder.FOLDER);
             }
-        } catch (FileSystemException e) {
+            fanout = readFanout(pfanout);
+        } catch (IOException | FileSystemException e) {
             log.error("Create docs", e);
         }
+        this.packs = openPacks(pfileSystem, psync);
+        this.files = new DocsFolder(fileSystem, packs, fanout);
+        if (dataStore == null) {
+            createFolders();
+        }
+        this.writer = openWriter(pfileSystem, psync);
+        this.spooler = startSpooler(pwriteThreads);
+    }
+
+    /**
+     * sets the cache of small binaries, before the helper is used.
+     *
+     * @param pcache the cache, <code>null</code> for none
+     */
+    final void setCache(final BlobCache pcache) {
+        this.cache = pcache;
+        files.setCache(pcache);
+    }
+
+    /**
+     * starts the threads that write spooled binaries. when all are busy and the queue is full, the thread
+     * that spools a binary writes it.
+     *
+     * @param threads the number of threads
+     * @return the pool, <code>null</code> for no threads
+     */
+    private static ThreadPoolExecutor startSpooler(final int threads) {
+        if (threads <= 0) {
+            return null;
+        }
+        AtomicInteger count = new AtomicInteger();
+        ThreadPoolExecutor pool = new ThreadPoolExecutor(threads, threads, WRITER_KEEP_ALIVE, TimeUnit.SECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), r -> {
+                    Thread thread = new Thread(r, "blob writer " + count.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }, new ThreadPoolExecutor.CallerRunsPolicy());
+        pool.allowCoreThreadTimeOut(true);
+        return pool;
+    }
+
+    /**
+     * reads the levels of fanout folders of the docs folder, or records them for a new one. a docs folder
+     * from before they were recorded has one level.
+     *
+     * @param pfanout the levels of a new docs folder
+     * @return the levels
+     * @throws IOException         if the record cannot be read or written
+     * @throws FileSystemException if the docs folder cannot be listed
+     */
+    private int readFanout(final int pfanout) throws IOException, FileSystemException {
+        if (fileSystem.exists(FANOUT_FILE)) {
+            int fanout;
+            try (InputStream in = fileSystem.getInputStream(FANOUT_FILE)) {
+                fanout = Integer.parseInt(IOUtils.toString(in, StandardCharsets.US_ASCII).trim());
+            }
+            if (fanout != pfanout) {
+                log.warn("the docs folder has " + fanout + " levels of fanout folders, " + pfanout
+                        + " only applies to a new one");
+            }
+            return fanout;
+        }
+        int fanout = pfanout;
+        for (String folder : fileSystem.listFolders(DocsFolder.FOLDER)) {
+            if (!PackStore.FOLDER.equals(folder) && !BlobFileWriter.FOLDER.equals(folder)) {
+                fanout = 1;
+            }
+        }
+        try (OutputStream out = fileSystem.getOutputStream(FANOUT_FILE)) {
+            out.write(Integer.toString(fanout).getBytes(StandardCharsets.US_ASCII));
+        }
+        return fanout;
+    }
+
+    /**
+     * creates the fanout folders. they are created in order, so they all exist if the last one does.
+     */
+    private void createFolders() {
+        List<String> folders = files.folders();
+        try {
+            if (fileSystem.exists(DocsFolder.FOLDER + "/" + folders.get(folders.size() - 1))) {
+                return;
+            }
+            for (String folder : folders) {
+                if (!fileSystem.exists(DocsFolder.FOLDER + "/" + folder)) {
+                    fileSystem.createFolder(DocsFolder.FOLDER + "/" + folder);
+                }
+            }
+        } catch (FileSystemException e) {
+            log.error("Create docs folders", e);
+        }
     }
 
     /**
-     * write a stream.
-     * @param in the stream.
+     * opens the writer of the files if there is a local filesystem and no data store.
+     *
+     * @param pfileSystem the filesystem
+     * @param psync       whether files are forced to the disk
+     * @return the writer, <code>null</code> if files are written through the filesystem
+     */
+    private BlobFileWriter openWriter(final FileSystem pfileSystem, final boolean psync) {
+        if (dataStore != null || !(pfileSystem instanceof LocalFileSystem)) {
+            return null;
+        }
+        try {
+            return new BlobFileWriter(new File(((LocalFileSystem) pfileSystem).getPath()), files, psync);
+        } catch (IOException e) {
+            log.error("open the blob writer, files are written through the filesystem", e);
+            return null;
+        }
+    }
+
+    /**
+     * opens the packs if binaries are packed.
+     *
+     * @param pfileSystem the filesystem
+     * @param psync       whether packed binaries are forced to the disk
+     * @return the packs, <code>null</code> if there is a data store, no local filesystem or packing is off
+     */
+    private PackStore openPacks(final FileSystem pfileSystem, final boolean psync) {
+        if (dataStore != null || maxPackedSize <= 0 || !(pfileSystem instanceof LocalFileSystem)) {
+            return null;
+        }
+        String path = DocsFolder.FOLDER + "/" + PackStore.FOLDER;
+        File folder = new File(((LocalFileSystem) pfileSystem).getPath(), path);
+        try {
+            return new PackStore(folder, psync);
+        } catch (IOException e) {
+            log.error("open packs in " + folder + ", small binaries are stored in files", e);
+            return null;
+        }
+    }
+
+    /**
+     * checks if a value was loaded from a file in the docs folder.
+     *
+     * @param value the value
+     * @return true if it was
+     * @throws RepositoryException if the length of the value cannot be read
+     */
+    static boolean isFileValue(final InternalValue value) throws RepositoryException {
+        // a memory value prints its whole content, file values are never that small
+        return value.getLength() >= MAX_MEMORY_VALUE_SIZE && !value.isInDataStore()
+                && value.toString().startsWith(FILE_PREFIX);
+    }
+
+    /**
+     * write a binary value. a value that is in the data store or in the docs folder is not copied,
+     * content that is stored already is not written again. for a spooled value this waits for its write.
+     *
+     * @param value the value.
      * @return the id.
+     * @throws RepositoryException if the value cannot be read
+     */
+    public final String write(final InternalValue value) throws RepositoryException {
+        Future<String> spooledWrite = spooled.remove(value);
+        if (spooledWrite != null) {
+            return result(spooledWrite);
+        }
+        return store(value);
+    }
+
+    /**
+     * starts writing a binary value in the background, if it has to be copied. a later
+     * {@link #write(InternalValue)} of the same value returns the id when the write is done.
+     *
+     * @param value the value
+     * @throws RepositoryException if the length of the value cannot be read
+     */
+    final void spool(final InternalValue value) throws RepositoryException {
+        if (spooler == null || isFileValue(value) || (dataStore != null && value.isInDataStore())
+                || spooled.containsKey(value)) {
+            return;
+        }
+        spooled.put(value, spooler.submit(() -> store(value)));
+    }
+
+    /**
+     * waits for the writes of the spooled binaries that were not asked for, and forgets them. called at the
+     * end of a commit, so no binary of the commit is written after it.
+     */
+    final void awaitSpooled() {
+        List<Future<String>> writes;
+        synchronized (spooled) {
+            writes = new ArrayList<>(spooled.values());
+            spooled.clear();
+        }
+        for (Future<String> spooledWrite : writes) {
+            try {
+                spooledWrite.get();
+            } catch (ExecutionException e) {
+                log.debug("unused spooled write failed", e.getCause());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return;
+            }
+        }
+    }
+
+    /**
+     * waits for a spooled write.
+     *
+     * @param spooledWrite the write
+     * @return the id
+     * @throws RepositoryException if the value could not be read or the wait was interrupted
      */
-    public final String write(final InputStream in) {
-        String id = UUID.randomUUID().toString();
-        String folder = id.substring(0, 2);
+    private static String result(final Future<String> spooledWrite) throws RepositoryException {
         try {
-            if (!fileSystem.exists("docs/" + folder)) {
-                fileSystem.createFolder("docs/" + folder);
+            return spooledWrite.get();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new RepositoryException("interrupted while writing blob", e);
+        } catch (ExecutionException e) {
+            Throwable cause = e.getCause();
+            if (cause instanceof RepositoryException) {
+                throw (RepositoryException) cause;
+            }
+            if (cause instanceof RuntimeException) {
+                throw (RuntimeException) cause;
             }
-            IOUtils.copy(in, fileSystem.getOutputStream("docs/" + folder + "/" + id));
+            throw new RuntimeException("write blob", cause);
+        }
+    }
+
+    /**
+     * writes a binary value in the calling thread.
+     *
+     * @param value the value
+     * @return the id
+     * @throws RepositoryException if the value cannot be read
+     */
+    private String store(final InternalValue value) throws RepositoryException {
+        if (isFileValue(value)) {
+            // unchanged, or copied from another workspace, which has its own docs folder
+            String id = value.toString().substring(FILE_PREFIX.length());
+            keep(id);
+            if (isStored(id, value.getLength())) {
+                return id;
+            }
+        } else if (dataStore != null && value.isInDataStore()) {
+            return value.toString();
+        }
+        if (dataStore != null) {
+            try (InputStream in = value.getStream()) {
+                DataRecord record = dataStore.addRecord(in);
+                return DATA_STORE_PREFIX + record.getIdentifier();
+            } catch (IOException e) {
+                throw new RepositoryException("close blob", e);
+            }
+        }
+        if (packs != null && value.getLength() < maxPackedSize) {
+            return writePacked(value);
+        }
+        if (writer != null) {
+            return writeFile(value);
+        }
+        boolean deflate = isCompressible(value);
+        String id = hash(value);
+        if (deflate) {
+            id += Compression.SUFFIX;
+        }
+        keep(id);
+        String path = files.path(id);
+        try {
+            if (isStored(id, value.getLength())) {
+                return id;
+            }
+            OutputStream file = fileSystem.getOutputStream(path);
+            if (deflate) {
+                file = Compression.deflating(file, value.getLength());
+            }
+            try (InputStream in = value.getStream(); OutputStream out = file) {
+                IOUtils.copy(in, out);
+            }
+            forget(id);
             return id;
         } catch (IOException | FileSystemException e) {
             log.error("write blob " + id);
@@ -54,39 +499,461 @@ public class BinaryFileSystemHelper {
         }
     }
 
+    /**
+     * write a binary value to a file with the writer. it is read once, to hash and to write it, and the temp
+     * file is deleted if the content is stored already.
+     *
+     * @param value the value
+     * @return the id
+     * @throws RepositoryException if the value cannot be read
+     */
+    private String writeFile(final InternalValue value) throws RepositoryException {
+        boolean deflate = isCompressible(value);
+        MessageDigest digest = digest();
+        File temp = writer.newTempFile();
+        boolean stored = false;
+        try {
+            long length;
+            try (InputStream in = value.getStream()) {
+                length = writer.copy(in, temp, digest, deflate, value.getLength());
+            }
+            String id = hex(digest.digest());
+            if (deflate) {
+                id += Compression.SUFFIX;
+            }
+            keep(id);
+            if (!isStored(id, length)) {
+                writer.store(id, temp);
+                stored = true;
+                forget(id);
+            }
+            return id;
+        } catch (IOException e) {
+            log.error("write blob " + temp);
+            throw new RuntimeException("write blob", e);
+        } finally {
+            if (!stored && !temp.delete() && temp.exists()) {
+                log.warn("cannot delete " + temp);
+            }
+        }
+    }
+
+    /**
+     * checks if a binary is stored compressed, by compressing a sample of its content.
+     *
+     * @param value the value
+     * @return false if compression is off or the sample does not compress well
+     * @throws RepositoryException if the value cannot be read
+     */
+    private boolean isCompressible(final InternalValue value) throws RepositoryException {
+        if (!compress) {
+            return false;
+        }
+        try {
+            return Compression.isCompressible(value.getStream());
+        } catch (IOException e) {
+            throw new RepositoryException("sample blob", e);
+        }
+    }
+
+    /**
+     * drops a binary from the cache, after it was deleted or written again over a file left over from a
+     * write that did not finish.
+     *
+     * @param id the id
+     */
+    private void forget(final String id) {
+        if (cache != null) {
+            cache.remove(id);
+        }
+    }
+
+    /**
+     * checks if files and long strings are compressed.
+     *
+     * @return true if they are
+     */
+    final boolean isCompressing() {
+        return compress;
+    }
+
+    /**
+     * forces the files and packed binaries written since the last flush to the disk and moves the files in
+     * place, if binaries are synced. called before the documents that reference them are committed.
+     *
+     * @throws IOException if a file cannot be forced or moved
+     */
+    public final void flush() throws IOException {
+        if (writer != null) {
+            writer.flush();
+        }
+        if (packs != null) {
+            packs.flush();
+        }
+    }
+
+    /**
+     * deletes the files written since the last flush that are not in place yet, after a commit failed.
+     */
+    public final void discard() {
+        if (writer != null) {
+            writer.discard();
+        }
+    }
+
+    /**
+     * write a small binary value to the packs. it is read once, to hash and to write it.
+     *
+     * @param value the value
+     * @return the id
+     * @throws RepositoryException if the value cannot be read
+     */
+    private String writePacked(final InternalValue value) throws RepositoryException {
+        byte[] content;
+        try (InputStream in = value.getStream()) {
+            content = IOUtils.toByteArray(in);
+        } catch (IOException e) {
+            throw new RepositoryException("read blob", e);
+        }
+        String id = hex(digest().digest(content));
+        keep(id);
+        try {
+            if (!isStored(id, content.length)) {
+                packs.add(id, content);
+            }
+        } catch (IOException e) {
+            log.error("write blob " + id);
+            throw new RuntimeException("write blob", e);
+        }
+        return id;
+    }
+
+    /**
+     * keeps a binary from the running garbage collection. it is called before the binary is checked for,
+     * so either the collection deleted it before and it is written again, or it is not deleted.
+     *
+     * @param id the id
+     */
+    private void keep(final String id) {
+        synchronized (collectionLock) {
+            if (written != null) {
+                written.add(id);
+            }
+        }
+    }
+
+    /**
+     * starts recording the ids that are written, the running garbage collection does not delete them.
+     */
+    final void startCollection() {
+        synchronized (collectionLock) {
+            written = new HashSet<>();
+        }
+    }
+
+    /**
+     * stops recording the ids that are written.
+     */
+    final void endCollection() {
+        synchronized (collectionLock) {
+            written = null;
+        }
+    }
+
+    /**
+     * lists the fanout folders of the files.
+     *
+     * @return the folders, relative to the docs folder
+     */
+    final List<String> listFolders() {
+        return files.folders();
+    }
+
+    /**
+     * lists the ids of the files in a fanout folder.
+     *
+     * @param folder the folder, relative to the docs folder
+     * @return the ids
+     */
+    final String[] listFiles(final String folder) {
+        try {
+            return fileSystem.listFiles(DocsFolder.FOLDER + "/" + folder);
+        } catch (FileSystemException e) {
+            throw new RuntimeException("list " + DocsFolder.FOLDER + "/" + folder, e);
+        }
+    }
+
+    /**
+     * lists the ids of the packed binaries.
+     *
+     * @return the ids
+     */
+    final List<String> listPacked() {
+        if (packs == null) {
+            return Collections.emptyList();
+        }
+        return packs.ids();
+    }
+
+    /**
+     * deletes a file the garbage collection found unreferenced, unless it was written since the collection
+     * started or modified after a time.
+     *
+     * @param id     the id
+     * @param before the time
+     * @return true if the file was deleted
+     */
+    final boolean deleteUnreferencedFile(final String id, final long before) {
+        String path = files.path(id);
+        synchronized (collectionLock) {
+            if (written.contains(id)) {
+                return false;
+            }
+            try {
+                if (!fileSystem.exists(path) || fileSystem.lastModified(path) >= before) {
+                    return false;
+                }
+                fileSystem.deleteFile(path);
+                forget(id);
+                return true;
+            } catch (FileSystemException e) {
+                log.warn("delete unreferenced " + path, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * deletes a packed binary the garbage collection found unreferenced, unless it was written since the
+     * collection started or its pack was modified after a time.
+     *
+     * @param id     the id
+     * @param before the time
+     * @return true if the binary was deleted
+     */
+    final boolean deleteUnreferencedPacked(final String id, final long before) {
+        if (packs == null) {
+            return false;
+        }
+        synchronized (collectionLock) {
+            if (written.contains(id) || packs.lastModified(id) >= before) {
+                return false;
+            }
+            forget(id);
+            try {
+                return packs.remove(id);
+            } catch (IOException e) {
+                log.warn("delete unreferenced packed " + id, e);
+                return false;
+            }
+        }
+    }
+
+    /**
+     * checks if a binary is stored completely, in a pack or a file.
+     *
+     * @param id     the id
+     * @param length the length of the content
+     * @return false if there is no binary, or a file of another length that is left over from a write
+     * that did not finish
+     */
+    private boolean isStored(final String id, final long length) {
+        if (packs != null && packs.length(id) == length) {
+            return true;
+        }
+        if (writer != null && writer.isPending(id, length)) {
+            return true;
+        }
+        String path = files.path(id);
+        try {
+            if (!fileSystem.exists(path)) {
+                return false;
+            }
+            if (Compression.isCompressed(id)) {
+                return Compression.length(fileSystem.getInputStream(path)) == length;
+            }
+            return fileSystem.length(path) == length;
+        } catch (IOException e) {
+            // shorter than its header
+            return false;
+        } catch (FileSystemException e) {
+            log.error("check blob " + id);
+            throw new RuntimeException("check blob", e);
+        }
+    }
+
+    /**
+     * hashes the content of a value.
+     *
+     * @param value the value
+     * @return the hex hash
+     * @throws RepositoryException if the value cannot be read
+     */
+    private static String hash(final InternalValue value) throws RepositoryException {
+        MessageDigest digest = digest();
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try (InputStream in = value.getStream()) {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+            }
+        } catch (IOException e) {
+            throw new RepositoryException("hash blob", e);
+        }
+        return hex(digest.digest());
+    }
+
+    /**
+     * creates a digest of the hash algorithm.
+     *
+     * @return the digest
+     */
+    private static MessageDigest digest() {
+        try {
+            return MessageDigest.getInstance(DIGEST);
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(DIGEST, e);
+        }
+    }
+
+    /**
+     * formats a hash.
+     *
+     * @param bytes the hash
+     * @return the hex hash
+     */
+    private static String hex(final byte[] bytes) {
+        char[] hex = new char[bytes.length * 2];
+        for (int i = 0; i < bytes.length; i++) {
+            hex[2 * i] = Text.hexTable[(bytes[i] >> HEX_SHIFT) & HEX_MASK];
+            hex[2 * i + 1] = Text.hexTable[bytes[i] & HEX_MASK];
+        }
+        return new String(hex);
+    }
+
+    /**
+     * read a binary value. a value in the data store or of a file streams from it on every read, a small
+     * binary is read into memory, so jackrabbit does not copy it when it hands it out.
+     *
+     * @param id the id
+     * @return the value
+     * @throws RepositoryException if the binary does not exist, or is in a data store that is not configured
+     */
+    public final InternalValue readValue(final String id) throws RepositoryException {
+        if (id.startsWith(DATA_STORE_PREFIX)) {
+            if (dataStore == null) {
+                throw new RepositoryException("no data store for blob " + id);
+            }
+            return InternalValue.create(dataStore, id);
+        }
+        long length = files.getRecord(new DataIdentifier(DocsFolder.PREFIX + id)).getLength();
+        try {
+            if (length < MAX_MEMORY_VALUE_SIZE) {
+                try (InputStream in = read(id)) {
+                    return InternalValue.create(IOUtils.toByteArray(in));
+                }
+            }
+            return InternalValue.create(files.resource(id));
+        } catch (IOException e) {
+            throw new RepositoryException("Blob not found " + id, e);
+        }
+    }
+
     /**
      * read a stream.
      * @param id the id
      * @return the stream
      */
     public final InputStream read(final String id) {
-        String path = "docs/" + id.substring(0, 2) + "/" + id;
+        if (id.startsWith(DATA_STORE_PREFIX)) {
+            try {
+                return readValue(id).getStream();
+            } catch (RepositoryException e) {
+                log.error("read " + id + " failed");
+                throw new RuntimeException("read ", e);
+            }
+        }
+        if (cache != null) {
+            ByteBuffer content = cache.get(id);
+            if (content != null) {
+                return cache.hit(content);
+            }
+        }
+        if (packs != null) {
+            try {
+                byte[] content = packs.read(id);
+                if (content != null && cache != null) {
+                    return cache.miss(id, content);
+                }
+                if (content != null) {
+                    return new ByteArrayInputStream(content);
+                }
+            } catch (IOException e) {
+                log.error("read " + id + " failed");
+                throw new RuntimeException("read ", e);
+            }
+        }
+        String path = files.path(id);
         try {
-            if (!fileSystem.exists(path)) {
-                throw new RuntimeException("Blob not found " + path);
+            InputStream in = fileSystem.getInputStream(path);
+            if (Compression.isCompressed(id)) {
+                in = Compression.inflating(in);
             }
-            return fileSystem.getInputStream(path);
-        } catch (FileSystemException e) {
+            if (cache != null) {
+                return cache.load(id, in);
+            }
+            return in;
+        } catch (IOException | FileSystemException e) {
             log.error("read " + path + " failed");
-            throw new RuntimeException("read ", e);
+            throw new RuntimeException("Blob not found " + path, e);
         }
     }
 
     /**
-     * delete a file.
+     * delete a file. files are shared by all values with the same content, so only ids that no document
+     * references any more may be deleted. records of the data store are left to its garbage collection.
      * @param id the id
      */
     public final void delete(final String id) {
-        String path = "docs/" + id.substring(0, 2) + "/" + id;
-
+        if (id.startsWith(DATA_STORE_PREFIX)) {
+            return;
+        }
+        String path = files.path(id);
+        forget(id);
         try {
+            if (packs != null && packs.remove(id)) {
+                return;
+            }
             if (!fileSystem.exists(path)) {
                 throw new RuntimeException("Blob not found " + path);
             }
             fileSystem.deleteFile(path);
-        } catch (FileSystemException e) {
+        } catch (IOException | FileSystemException e) {
             log.error("delete " + path);
             throw new RuntimeException("delete", e);
         }
     }
+
+    /**
+     * closes the packs and clears the cache.
+     */
+    public final void close() {
+        if (spooler != null) {
+            spooler.shutdown();
+            try {
+                if (!spooler.awaitTermination(1, TimeUnit.MINUTES)) {
+                    log.warn("blob writers did not stop");
+                }
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+        }
+        if (packs != null) {
+            log.info("blob packs: " + packs);
+            packs.close();
+        }
+        if (cache != null) {
+            log.info("blob cache: " + cache);
+            cache.clear();
+        }
+    }
 }
@@ -0,0 +1,263 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.cache.ConcurrentCache;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.SequenceInputStream;
+import java.nio.ByteBuffer;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent cache of the content of small binaries of the docs folder, so hot icons, thumbnails
+ * and small documents are read from memory instead of a file or a pack.
+ * <p>
+ * Binaries are named by the hash of their content and never change, so entries only go away when the
+ * binary is deleted or when they are evicted, by their size, once the cache is full. The content of a
+ * compressed file is cached inflated. Off heap, the content is kept in direct buffers, which do not add to
+ * the garbage collected heap but are only freed once the evicted buffer is collected.
+ */
+final class BlobCache {
+
+    /**
+     * binaries larger than this are not cached.
+     */
+    static final int MAX_ENTRY_SIZE = 256 * 1024;
+
+    /**
+     * rough memory estimate of the id and the map entry of a binary.
+     */
+    private static final long ENTRY_OVERHEAD = 256;
+
+    private static final int BUFFER_SIZE = 0x2000;
+
+    private static final double PERCENT = 100;
+
+    private final ConcurrentCache<String, ByteBuffer> cache;
+
+    private final boolean offHeap;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    private final AtomicLong hitBytes = new AtomicLong();
+
+    /**
+     * create a cache.
+     *
+     * @param name          the name used in cache statistics
+     * @param maxMemorySize the maximum memory in bytes
+     * @param poffHeap      whether the content is kept off heap
+     */
+    BlobCache(final String name, final long maxMemorySize, final boolean poffHeap) {
+        cache = new ConcurrentCache<String, ByteBuffer>(name);
+        cache.setMaxMemorySize(maxMemorySize);
+        this.offHeap = poffHeap;
+    }
+
+    /**
+     * gets the content of a binary, without counting it as a read.
+     *
+     * @param id the id
+     * @return the content, <code>null</code> if it is not cached
+     */
+    ByteBuffer get(final String id) {
+        return cache.get(id);
+    }
+
+    /**
+     * reads cached content, counts a hit.
+     *
+     * @param content the content
+     * @return the stream
+     */
+    InputStream hit(final ByteBuffer content) {
+        hits.incrementAndGet();
+        hitBytes.addAndGet(content.remaining());
+        return new BufferInputStream(content.duplicate());
+    }
+
+    /**
+     * reads a binary that is not cached, counts a miss. it is cached if it is small enough, which is found
+     * out by reading it.
+     *
+     * @param id the id
+     * @param in the content, it is closed if it was read completely
+     * @return the content
+     * @throws IOException if it cannot be read
+     */
+    InputStream load(final String id, final InputStream in) throws IOException {
+        misses.incrementAndGet();
+        ByteArrayOutputStream head = new ByteArrayOutputStream(BUFFER_SIZE);
+        byte[] buffer = new byte[BUFFER_SIZE];
+        try {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                head.write(buffer, 0, n);
+                if (head.size() > MAX_ENTRY_SIZE) {
+                    // too large, the rest streams from the file
+                    return new SequenceInputStream(new ByteArrayInputStream(head.toByteArray()), in);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            in.close();
+            throw e;
+        }
+        in.close();
+        byte[] content = head.toByteArray();
+        put(id, content);
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * reads a binary that is not cached and was read whole, counts a miss. it is cached if it is small
+     * enough.
+     *
+     * @param id      the id
+     * @param content the content
+     * @return the content
+     */
+    InputStream miss(final String id, final byte[] content) {
+        misses.incrementAndGet();
+        put(id, content);
+        return new ByteArrayInputStream(content);
+    }
+
+    /**
+     * caches the content of a binary, if it is small enough.
+     *
+     * @param id      the id
+     * @param content the content
+     */
+    private void put(final String id, final byte[] content) {
+        if (content.length > MAX_ENTRY_SIZE) {
+            return;
+        }
+        ByteBuffer buffer;
+        if (offHeap) {
+            buffer = ByteBuffer.allocateDirect(content.length);
+            buffer.put(content);
+            buffer.flip();
+        } else {
+            buffer = ByteBuffer.wrap(content);
+        }
+        cache.put(id, buffer.asReadOnlyBuffer(), content.length + ENTRY_OVERHEAD);
+    }
+
+    /**
+     * forgets a binary, called when it is deleted or rewritten.
+     *
+     * @param id the id
+     */
+    void remove(final String id) {
+        cache.remove(id);
+    }
+
+    /**
+     * forgets all binaries.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of reads served from the cache
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of reads that went to a file or a pack
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * @return the share of reads served from the cache in percent, 0 before the first read
+     */
+    double getHitRate() {
+        long h = hits.get();
+        long total = h + misses.get();
+        if (total == 0) {
+            return 0;
+        }
+        return h * PERCENT / total;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return cache.getCacheInfoAsString() + " entries=" + cache.getElementCount() + " hits=" + hits.get()
+                + " misses=" + misses.get() + " hitRate=" + String.format("%.1f%%", getHitRate()) + " hitBytes="
+                + hitBytes.get() + " offHeap=" + offHeap;
+    }
+
+    /**
+     * a stream over a buffer.
+     */
+    private static final class BufferInputStream extends InputStream {
+
+        private static final int BYTE_MASK = 0xff;
+
+        private final ByteBuffer buffer;
+
+        /**
+         * create a stream.
+         *
+         * @param pbuffer the buffer, its position is moved
+         */
+        BufferInputStream(final ByteBuffer pbuffer) {
+            this.buffer = pbuffer;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read() {
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            return buffer.get() & BYTE_MASK;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int read(final byte[] b, final int off, final int len) {
+            if (len == 0) {
+                return 0;
+            }
+            if (!buffer.hasRemaining()) {
+                return -1;
+            }
+            int n = Math.min(len, buffer.remaining());
+            buffer.get(b, off, n);
+            return n;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long skip(final long n) {
+            int skipped = (int) Math.max(0, Math.min(n, buffer.remaining()));
+            buffer.position(buffer.position() + skipped);
+            return skipped;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public int available() {
+            return buffer.remaining();
+        }
+    }
+}
@@ -0,0 +1,344 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Mark and sweep garbage collection of the binaries in the docs folder.
+ * <p>
+ * Binaries are named by the hash of their content and shared by all values with that content, so they
+ * cannot be deleted with a bundle or a changed property. A collection pages through the bundle documents
+ * and marks the ids they reference, then it lists the files and packed binaries and deletes the ones that
+ * are not marked and older than the safety window. Both phases are throttled to a number of documents and
+ * binaries per second, and neither holds the monitor of the persistence manager, so commits go on.
+ * <p>
+ * Commits leave a tombstone for every binary a document stops referencing. They are handled every
+ * {@value #TOMBSTONE_INTERVAL} minute once they are older than the safety window: a binary that no document
+ * references any more, looked up in the index of the referenced ids, is deleted without a collection.
+ * The tombstones are documents, so they are written with the commit and outlive a restart.
+ * <p>
+ * The binary filesystem records the ids written from the start of a collection or a round of tombstones,
+ * which are never deleted by it. The recording starts while the monitor is held, so a commit that was
+ * running is complete and its documents are seen. The safety window keeps binaries that jackrabbit may
+ * still hand out from values it read before they were dropped.
+ */
+final class BlobCollector {
+
+    /**
+     * the documents a collection reads.
+     */
+    interface Documents {
+
+        /**
+         * reads a page of bundle documents.
+         *
+         * @param after   the last document of the previous page, <code>null</code> for the first page
+         * @param count   the number of documents of a page
+         * @param visitor is called with each document
+         * @return the last document of the page, <code>null</code> if all documents were read
+         */
+        ORID scanBundles(ORID after, int count, Consumer<ODocument> visitor);
+
+        /**
+         * reads a page of tombstones.
+         *
+         * @param after   the last tombstone of the previous page, <code>null</code> for the first page
+         * @param count   the number of tombstones of a page
+         * @param visitor is called with each tombstone
+         * @return the last tombstone of the page, <code>null</code> if all tombstones were read
+         */
+        ORID scanTombstones(ORID after, int count, Consumer<ODocument> visitor);
+
+        /**
+         * checks if a bundle document references a binary.
+         *
+         * @param id the id of the binary
+         * @return true if one does
+         */
+        boolean isReferenced(String id);
+
+        /**
+         * deletes tombstones.
+         *
+         * @param tombstones the tombstones
+         */
+        void removeTombstones(List<ODocument> tombstones);
+    }
+
+    /**
+     * the field of a tombstone holding the id of the binary.
+     */
+    static final String TOMBSTONE_BLOB = "blob";
+
+    /**
+     * the field of a tombstone holding the time it was written.
+     */
+    static final String TOMBSTONE_TIME = "time";
+
+    /**
+     * the number of documents read at a time.
+     */
+    private static final int PAGE_SIZE = 100;
+
+    /**
+     * minutes between rounds of tombstones.
+     */
+    private static final long TOMBSTONE_INTERVAL = 1;
+
+    private static final long MILLIS_PER_SECOND = 1000;
+
+    private static Logger log = LoggerFactory.getLogger(BlobCollector.class);
+
+    private final BinaryFileSystemHelper fileSystem;
+
+    private final Documents documents;
+
+    private final Object commitLock;
+
+    private final int rate;
+
+    private final long safetyWindow;
+
+    private final ScheduledExecutorService executor;
+
+    private volatile String phase = "idle";
+
+    private volatile long scanned;
+
+    private volatile long marked;
+
+    private volatile long checked;
+
+    private volatile long deleted;
+
+    private volatile long runs;
+
+    private volatile long tombstones;
+
+    private volatile long tombstonesDeleted;
+
+    private volatile long lastDuration;
+
+    /**
+     * create a collector.
+     *
+     * @param name          the name of the workspace, used for the thread
+     * @param pfileSystem   the binary filesystem
+     * @param pdocuments    reads the documents
+     * @param pcommitLock   the monitor commits hold
+     * @param prate         documents and binaries per second, 0 does not throttle
+     * @param psafetyWindow binaries modified within this many milliseconds are kept
+     */
+    BlobCollector(final String name, final BinaryFileSystemHelper pfileSystem, final Documents pdocuments,
+                  final Object pcommitLock, final int prate, final long psafetyWindow) {
+        this.fileSystem = pfileSystem;
+        this.documents = pdocuments;
+        this.commitLock = pcommitLock;
+        this.rate = prate;
+        this.safetyWindow = psafetyWindow;
+        this.executor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "blob collection " + name);
+            thread.setDaemon(true);
+            thread.setPriority(Thread.MIN_PRIORITY);
+            return thread;
+        });
+    }
+
+    /**
+     * handles the tombstones in the background, and runs a collection at a fixed delay.
+     *
+     * @param interval minutes between collections, 0 for none
+     */
+    void schedule(final long interval) {
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                deleteTombstoned();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("blob tombstones failed", e);
+            }
+        }, TOMBSTONE_INTERVAL, TOMBSTONE_INTERVAL, TimeUnit.MINUTES);
+        if (interval <= 0) {
+            return;
+        }
+        executor.scheduleWithFixedDelay(() -> {
+            try {
+                collect();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } catch (RuntimeException e) {
+                log.error("blob collection failed", e);
+            }
+        }, interval, interval, TimeUnit.MINUTES);
+    }
+
+    /**
+     * deletes the binaries of the tombstones older than the safety window that no document references, and
+     * the tombstones.
+     *
+     * @throws InterruptedException if it was stopped
+     */
+    synchronized void deleteTombstoned() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        long before = start - safetyWindow;
+        synchronized (commitLock) {
+            fileSystem.startCollection();
+        }
+        long done = 0;
+        try {
+            ORID last = null;
+            do {
+                List<ODocument> page = new ArrayList<>();
+                last = documents.scanTombstones(last, PAGE_SIZE, page::add);
+                List<ODocument> due = new ArrayList<>();
+                for (ODocument tombstone : page) {
+                    Number time = tombstone.field(TOMBSTONE_TIME);
+                    if (time.longValue() >= before) {
+                        continue;
+                    }
+                    due.add(tombstone);
+                    String id = tombstone.field(TOMBSTONE_BLOB);
+                    if (!documents.isReferenced(id) && (fileSystem.deleteUnreferencedFile(id, before)
+                            || fileSystem.deleteUnreferencedPacked(id, before))) {
+                        tombstonesDeleted++;
+                    }
+                }
+                documents.removeTombstones(due);
+                tombstones += due.size();
+                done += page.size();
+                throttle(start, done);
+            } while (last != null);
+        } finally {
+            fileSystem.endCollection();
+        }
+    }
+
+    /**
+     * runs a collection in the calling thread, or waits for the one that is running.
+     *
+     * @throws InterruptedException if the collection was stopped
+     */
+    synchronized void collect() throws InterruptedException {
+        long start = System.currentTimeMillis();
+        synchronized (commitLock) {
+            fileSystem.startCollection();
+        }
+        scanned = 0;
+        marked = 0;
+        checked = 0;
+        deleted = 0;
+        try {
+            Set<String> ids = mark(start);
+            sweep(ids, start);
+        } finally {
+            fileSystem.endCollection();
+            phase = "idle";
+        }
+        runs++;
+        lastDuration = System.currentTimeMillis() - start;
+        log.info("blob collection: " + this);
+    }
+
+    /**
+     * marks the binaries the bundle documents reference.
+     *
+     * @param start the start of the collection
+     * @return the ids
+     * @throws InterruptedException if the collection was stopped
+     */
+    private Set<String> mark(final long start) throws InterruptedException {
+        phase = "marking";
+        Set<String> ids = new HashSet<>();
+        ORID last = null;
+        do {
+            last = documents.scanBundles(last, PAGE_SIZE, doc -> {
+                BundleMapper.collectFileIds(doc, ids);
+                scanned++;
+            });
+            marked = ids.size();
+            throttle(start, scanned);
+        } while (last != null);
+        return ids;
+    }
+
+    /**
+     * deletes the binaries that are not marked and older than the safety window.
+     *
+     * @param ids   the marked ids
+     * @param start the start of the collection
+     * @throws InterruptedException if the collection was stopped
+     */
+    private void sweep(final Set<String> ids, final long start) throws InterruptedException {
+        phase = "sweeping";
+        long before = start - safetyWindow;
+        for (String folder : fileSystem.listFolders()) {
+            for (String id : fileSystem.listFiles(folder)) {
+                if (!ids.contains(id) && fileSystem.deleteUnreferencedFile(id, before)) {
+                    deleted++;
+                }
+                checked++;
+                throttle(start, scanned + checked);
+            }
+        }
+        for (String id : fileSystem.listPacked()) {
+            if (!ids.contains(id) && fileSystem.deleteUnreferencedPacked(id, before)) {
+                deleted++;
+            }
+            checked++;
+            throttle(start, scanned + checked);
+        }
+    }
+
+    /**
+     * waits until the documents and binaries done so far are in the rate.
+     *
+     * @param start the start of the collection
+     * @param done  the documents and binaries done
+     * @throws InterruptedException if the collection was stopped
+     */
+    private void throttle(final long start, final long done) throws InterruptedException {
+        if (rate <= 0) {
+            return;
+        }
+        long wait = start + done * MILLIS_PER_SECOND / rate - System.currentTimeMillis();
+        if (wait > 0) {
+            Thread.sleep(wait);
+        }
+    }
+
+    /**
+     * stops collecting, a running collection is interrupted.
+     */
+    void close() {
+        executor.shutdownNow();
+        try {
+            if (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+                log.warn("blob collection did not stop");
+            }
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        return phase + ", scanned " + scanned + " documents, marked " + marked + " binaries, checked " + checked
+                + ", deleted " + deleted + ", rate " + rate + "/s, runs " + runs + ", last took " + lastDuration
+                + " ms, tombstones " + tombstones + ", deleted by tombstones " + tombstonesDeleted;
+    }
+}
@@ -0,0 +1,239 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.security.MessageDigest;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Writes the binary files of the docs folder of a local filesystem.
+ * <p>
+ * A binary is copied to a temp file in the {@value #FOLDER} folder through a {@value #BUFFER_SIZE} byte
+ * buffer of the writing thread and hashed while it is copied, so it is read once, a compressed binary is
+ * deflated on the way. The temp file is then moved to its fanout folder with an atomic rename, a file in a
+ * fanout folder is always complete. The fanout folders exist already, no write checks for its folder.
+ * <p>
+ * Without syncing, a file is moved as soon as it is written and the operating system decides when it reaches
+ * the disk. With syncing, the temp files of a commit are kept until {@link #flush()}, which forces all of
+ * them to the disk, moves them and forces the folders they were moved to, before the documents that
+ * reference them are committed. Temp files left over from a crash are deleted when the writer is opened.
+ */
+final class BlobFileWriter {
+
+    /**
+     * name of the temp folder in the docs folder.
+     */
+    static final String FOLDER = "tmp";
+
+    /**
+     * size of the copy buffer of a thread.
+     */
+    private static final int BUFFER_SIZE = 1024 * 1024;
+
+    private static final ThreadLocal<byte[]> BUFFERS = ThreadLocal.withInitial(() -> new byte[BUFFER_SIZE]);
+
+    private static Logger log = LoggerFactory.getLogger(BlobFileWriter.class);
+
+    private final File root;
+
+    private final File temp;
+
+    private final DocsFolder files;
+
+    private final boolean sync;
+
+    private final AtomicLong counter = new AtomicLong();
+
+    /**
+     * the temp files that are written but not moved yet, by id.
+     */
+    private final Map<String, File> pending = new ConcurrentHashMap<>();
+
+    /**
+     * open a writer, deletes the temp files of the last run.
+     *
+     * @param proot  the root of the local filesystem
+     * @param pfiles the files of the docs folder
+     * @param psync  whether files are forced to the disk before they are moved
+     * @throws IOException if the temp folder cannot be created
+     */
+    BlobFileWriter(final File proot, final DocsFolder pfiles, final boolean psync) throws IOException {
+        this.root = proot;
+        this.files = pfiles;
+        this.sync = psync;
+        this.temp = new File(proot, DocsFolder.FOLDER + "/" + FOLDER);
+        if (!temp.isDirectory() && !temp.mkdirs()) {
+            throw new IOException("cannot create " + temp);
+        }
+        File[] left = temp.listFiles();
+        if (left != null) {
+            for (File file : left) {
+                Files.deleteIfExists(file.toPath());
+            }
+        }
+    }
+
+    /**
+     * creates the name of a new temp file.
+     *
+     * @return the file, it does not exist yet
+     */
+    File newTempFile() {
+        return new File(temp, counter.incrementAndGet() + ".tmp");
+    }
+
+    /**
+     * copies a stream to a temp file and hashes it.
+     *
+     * @param in       the stream
+     * @param file     the temp file
+     * @param digest   is updated with the content
+     * @param compress whether the file is compressed
+     * @param expected the length of the content, recorded in a compressed file
+     * @return the length of the content
+     * @throws IOException if the stream cannot be read or the file cannot be written
+     */
+    long copy(final InputStream in, final File file, final MessageDigest digest, final boolean compress,
+              final long expected) throws IOException {
+        byte[] buffer = BUFFERS.get();
+        long length = 0;
+        OutputStream out = new FileOutputStream(file);
+        if (compress) {
+            out = Compression.deflating(out, expected);
+        }
+        try {
+            for (int n = in.read(buffer); n >= 0; n = in.read(buffer)) {
+                digest.update(buffer, 0, n);
+                out.write(buffer, 0, n);
+                length += n;
+            }
+        } finally {
+            out.close();
+        }
+        if (compress && length != expected) {
+            throw new IOException("read " + length + " bytes of " + expected + " into " + file);
+        }
+        return length;
+    }
+
+    /**
+     * moves a temp file to its fanout folder, or keeps it for the next flush if files are synced.
+     *
+     * @param id   the id of the content
+     * @param file the temp file
+     * @throws IOException if the file cannot be moved
+     */
+    void store(final String id, final File file) throws IOException {
+        if (sync) {
+            File replaced = pending.put(id, file);
+            if (replaced != null) {
+                Files.deleteIfExists(replaced.toPath());
+            }
+            return;
+        }
+        move(file, target(id));
+    }
+
+    /**
+     * checks if a binary is written but not moved yet.
+     *
+     * @param id     the id
+     * @param length the length of the content, a compressed file is complete when it is pending
+     * @return true if it is
+     */
+    boolean isPending(final String id, final long length) {
+        File file = pending.get(id);
+        return file != null && (Compression.isCompressed(id) || file.length() == length);
+    }
+
+    /**
+     * forces the kept temp files to the disk, moves them and forces their folders.
+     *
+     * @throws IOException if a file cannot be forced or moved, the files that are not moved yet are kept
+     */
+    void flush() throws IOException {
+        if (pending.isEmpty()) {
+            return;
+        }
+        for (File file : pending.values()) {
+            force(file, StandardOpenOption.WRITE);
+        }
+        Set<File> folders = new HashSet<>();
+        for (Map.Entry<String, File> entry : pending.entrySet()) {
+            File target = target(entry.getKey());
+            move(entry.getValue(), target);
+            pending.remove(entry.getKey());
+            folders.add(target.getParentFile());
+        }
+        for (File folder : folders) {
+            try {
+                force(folder, StandardOpenOption.READ);
+            } catch (IOException e) {
+                // folders cannot be opened on windows, where a rename is durable anyway
+                log.debug("force " + folder, e);
+            }
+        }
+    }
+
+    /**
+     * deletes the kept temp files of a commit that failed.
+     */
+    void discard() {
+        for (File file : pending.values()) {
+            try {
+                Files.deleteIfExists(file.toPath());
+            } catch (IOException e) {
+                log.warn("delete " + file, e);
+            }
+        }
+        pending.clear();
+    }
+
+    /**
+     * gets the file of a binary.
+     *
+     * @param id the id
+     * @return the file in its fanout folder
+     */
+    private File target(final String id) {
+        return new File(root, files.path(id));
+    }
+
+    /**
+     * moves a file with an atomic rename, replacing the file that is there.
+     *
+     * @param file   the file
+     * @param target where it goes
+     * @throws IOException if it cannot be moved
+     */
+    private static void move(final File file, final File target) throws IOException {
+        Files.move(file.toPath(), target.toPath(), StandardCopyOption.ATOMIC_MOVE);
+    }
+
+    /**
+     * forces a file or folder to the disk.
+     *
+     * @param file   the file
+     * @param option how it is opened
+     * @throws IOException if it cannot be forced
+     */
+    private static void force(final File file, final StandardOpenOption option) throws IOException {
+        try (FileChannel channel = FileChannel.open(file.toPath(), option)) {
+            channel.force(true);
+        }
+    }
+}
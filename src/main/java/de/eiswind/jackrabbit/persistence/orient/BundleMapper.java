@@ -1,28 +1,40 @@
 package de.eiswind.jackrabbit.persistence.orient;
 
 import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
 import com.orientechnologies.orient.core.metadata.schema.OType;
 import com.orientechnologies.orient.core.record.impl.ODocument;
 import org.apache.commons.io.IOUtils;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
 import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
 import org.apache.jackrabbit.core.value.InternalValue;
 import org.apache.jackrabbit.spi.Name;
 import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.util.ISO8601;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import javax.jcr.PropertyType;
 import javax.jcr.RepositoryException;
+import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
+import java.io.UncheckedIOException;
 import java.math.BigDecimal;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Calendar;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Date;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.LinkedHashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 
 
@@ -38,14 +50,79 @@ public class BundleMapper {
 
     private static final long MIN_BLOB_SIZE = 1024;
 
+    /**
+     * the field holding the jackrabbit serialization of a bundle in the binary storage format.
+     */
+    private static final String BUNDLE = "bundle";
+
+    /**
+     * the fields of the document storage format that the binary one does not use.
+     */
+    private static final String[] DOCUMENT_FIELDS =
+            {"modCount", "mixinTypes", "properties", "sharedSet", "children", "childChunks", "blobs"};
+
+    /**
+     * the indexed field listing the ids of the binaries in the docs folder that a document references.
+     */
+    static final String BLOBS = "blobs";
+
     private ODocument doc;
     private ODatabaseRecord database;
     private NodePropBundle bundle;
 
+    /**
+     * the written property entries and their documents, in document order.
+     */
+    private List<NodePropBundle.PropertyEntry> properties;
+    private List<ODocument> propertyDocs;
+
+    /**
+     * the written child entries and their documents, in document order.
+     */
+    private List<NodePropBundle.ChildNodeEntry> children;
+    private List<ODocument> childDocs;
+
+    /**
+     * the written chunk records and their number of child entries, <code>null</code> if the child
+     * entries are embedded.
+     */
+    private List<OIdentifiable> chunks;
+    private List<Integer> chunkSizes;
+
     private BinaryFileSystemHelper fileSystem;
 
     /**
-     * create a mapper.
+     * the name dictionary, <code>null</code> to write names as embedded documents.
+     */
+    private NameDictionary dictionary;
+
+    /**
+     * the class of chunk records.
+     */
+    private String chunkClassName;
+
+    /**
+     * the maximum number of child entries per chunk record, 0 to always embed the child entries.
+     */
+    private int chunkSize;
+
+    /**
+     * the binding that reads and writes the binary storage format.
+     */
+    private BundleBinding binding;
+
+    /**
+     * true to write the binary storage format.
+     */
+    private boolean binary;
+
+    /**
+     * true to decode property values when they are first asked for.
+     */
+    private boolean lazy;
+
+    /**
+     * create a mapper that always embeds the child entries and names.
      *
      * @param pdoc        the document
      * @param pdatabase   the db
@@ -53,67 +130,403 @@ public class BundleMapper {
      */
     public BundleMapper(final ODocument pdoc, final ODatabaseRecord pdatabase,
                         final BinaryFileSystemHelper pfileSystem) {
+        this(pdoc, pdatabase, new MapperSettings(pfileSystem, null, null, 0, null, false, false));
+    }
+
+    /**
+     * create a mapper.
+     *
+     * @param pdoc      the document
+     * @param pdatabase the db
+     * @param settings  the mapping settings of the persistence manager
+     */
+    BundleMapper(final ODocument pdoc, final ODatabaseRecord pdatabase, final MapperSettings settings) {
 
         this.doc = pdoc;
         this.database = pdatabase;
-        this.fileSystem = pfileSystem;
+        this.fileSystem = settings.getFileSystem();
+        this.dictionary = settings.getDictionary();
+        this.chunkClassName = settings.getChunkClassName();
+        this.chunkSize = settings.getChunkSize();
+        this.binding = settings.getBinding();
+        this.binary = settings.isBinary();
+        this.lazy = settings.isLazy();
     }
 
     /**
-     * writes a bundle to a document.
+     * writes a bundle to a document, all fields are rewritten.
      *
      * @param pbundle the bundle
      * @throws IOException on io.
      */
     public final void writePhase1(final NodePropBundle pbundle) throws IOException {
+        writePhase1(pbundle, null);
+    }
+
+    /**
+     * writes a bundle to a document. if the snapshot of the last write still describes the document,
+     * only properties and child entries that differ from it are mapped again, the embedded documents
+     * of all others are reused. an unchanged bundle leaves the document clean.
+     *
+     * @param pbundle  the bundle
+     * @param previous the snapshot of the last write, may be <code>null</code>
+     * @throws IOException on io.
+     */
+    public final void writePhase1(final NodePropBundle pbundle, final BundleSnapshot previous) throws IOException {
         this.bundle = pbundle;
-        doc.field("primaryType", writeName(bundle.getNodeTypeName()), OType.EMBEDDED);
+        if (binary) {
+            writeBinary();
+            return;
+        }
+        // removing a field marks the document dirty even if it does not have it
+        if (doc.containsField(BUNDLE)) {
+            doc.removeField(BUNDLE);
+        }
+        BundleSnapshot base = previous;
+        if (base != null && base.getVersion() != doc.getRecordVersion().getCounter()) {
+            base = null;
+        }
+        properties = new ArrayList<NodePropBundle.PropertyEntry>(bundle.getPropertyEntries());
+        children = new ArrayList<NodePropBundle.ChildNodeEntry>(bundle.getChildNodeEntries());
+        if (base != null && !base.differsFrom(bundle, properties, children)) {
+            propertyDocs = base.getPropertyDocs();
+            childDocs = base.getChildDocs();
+            if (base.getChunkIds() != null) {
+                chunks = new ArrayList<OIdentifiable>(base.getChunkIds());
+                chunkSizes = base.getChunkSizes();
+            }
+            return;
+        }
+        writeName(doc, "primaryType", bundle.getNodeTypeName());
         NodeId parentId = bundle.getParentId();
         if (parentId == null) {
             parentId = NULL_PARENT_ID;
         }
-        doc.field("parentuuid", parentId.toString());
-        doc.field("uuid", bundle.getId().toString());
-//        System.out.println("Wrote " + bundle.getId());
+        doc.field("parentuuid", idValue(parentId), OType.BINARY);
+        doc.field("uuid", idValue(bundle.getId()), OType.BINARY);
         doc.field("modCount", bundle.getModCount());
 
-        List<ODocument> mixinDocs = new ArrayList<ODocument>();
+        List<Object> mixinDocs = new ArrayList<Object>();
         for (Name name : bundle.getMixinTypeNames()) {
-            mixinDocs.add(writeName(name));
+            mixinDocs.add(nameValue(name));
         }
         doc.field("mixinTypes", mixinDocs, OType.EMBEDDEDLIST);
-        List<ODocument> propertyDocs = new ArrayList<ODocument>();
-        for (NodePropBundle.PropertyEntry entry : bundle.getPropertyEntries()) {
-            propertyDocs.add(writeProperty(entry));
-        }
-        doc.field("properties", propertyDocs, OType.EMBEDDEDLIST);
+        writeProperties(base);
 
         List<ODocument> sharedDoc = new ArrayList<ODocument>();
         for (NodeId shared : bundle.getSharedSet()) {
             ODocument shareddoc = new ODocument();
-            shareddoc.field("uuid", shared.toString());
+            shareddoc.field("uuid", idValue(shared), OType.BINARY);
             sharedDoc.add(shareddoc);
         }
         doc.field("sharedSet", sharedDoc, OType.EMBEDDEDLIST);
+        writeChildren(base);
+    }
 
-        List<ODocument> childDocs = new ArrayList<ODocument>();
-        for (NodePropBundle.ChildNodeEntry child : bundle.getChildNodeEntries()) {
-            ODocument childDoc = database.newInstance();
-            ODocument name = writeName(child.getName());
-            childDoc.field("name", name, OType.EMBEDDED);
-            childDoc.field("uuid", child.getId().toString(), OType.STRING);
-            childDocs.add(childDoc);
+    /**
+     * writes the bundle in the binary storage format. the jackrabbit serialization goes into a single
+     * field, only the fields that are indexed or queried stay columns.
+     *
+     * @throws IOException on io
+     */
+    private void writeBinary() throws IOException {
+        if (!doc.containsField(BUNDLE)) {
+            // the document was written in the document storage format before
+            deleteChildChunks();
+            for (String field : DOCUMENT_FIELDS) {
+                doc.removeField(field);
+            }
+        }
+        writeName(doc, "primaryType", bundle.getNodeTypeName());
+        NodeId parentId = bundle.getParentId();
+        if (parentId == null) {
+            parentId = NULL_PARENT_ID;
         }
-        doc.field("children", childDocs, OType.EMBEDDEDLIST);
+        doc.field("parentuuid", idValue(parentId), OType.BINARY);
+        doc.field("uuid", idValue(bundle.getId()), OType.BINARY);
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        binding.writeBundle(out, bundle);
+        doc.field(BUNDLE, out.toByteArray(), OType.BINARY);
     }
 
     /**
-     * writes the name.
+     * starts writing the binaries of a bundle that are not embedded in its document, so they are written
+     * while the rest of the change log is staged. entries that are still the ones of the snapshot keep their
+     * documents, see {@link #writeProperties(BundleSnapshot)}, so their binaries are not spooled.
      *
-     * @param name the name
+     * @param pbundle     the bundle
+     * @param pbase       the snapshot of the last write, may be <code>null</code>
+     * @param pfileSystem the binary filesystem
+     */
+    static void spoolBlobs(final NodePropBundle pbundle, final BundleSnapshot pbase,
+                           final BinaryFileSystemHelper pfileSystem) {
+        Set<NodePropBundle.PropertyEntry> unchanged =
+                Collections.newSetFromMap(new IdentityHashMap<NodePropBundle.PropertyEntry, Boolean>());
+        if (pbase != null) {
+            unchanged.addAll(pbase.getProperties());
+        }
+        for (NodePropBundle.PropertyEntry entry : pbundle.getPropertyEntries()) {
+            // a lazy entry was loaded and not modified, its binaries are stored already
+            if (entry.getType() != PropertyType.BINARY || entry instanceof LazyPropertyEntry
+                    || unchanged.contains(entry)) {
+                continue;
+            }
+            for (InternalValue value : entry.getValues()) {
+                try {
+                    if (value.getLength() >= MIN_BLOB_SIZE) {
+                        pfileSystem.spool(value);
+                    }
+                } catch (RepositoryException e) {
+                    // the value is written when the property is, which reports the error
+                    log.debug("spool blob of " + entry.getId(), e);
+                }
+            }
+        }
+    }
+
+    /**
+     * writes the properties. jackrabbit replaces the entry of every modified property, so an entry that
+     * is still the one of the snapshot is unchanged and its document is reused.
+     *
+     * @param base the snapshot of the last write, may be <code>null</code>
+     * @throws IOException on io
+     */
+    private void writeProperties(final BundleSnapshot base) throws IOException {
+        Map<NodePropBundle.PropertyEntry, ODocument> reusable =
+                new IdentityHashMap<NodePropBundle.PropertyEntry, ODocument>();
+        if (base != null) {
+            for (int i = 0; i < base.getProperties().size(); i++) {
+                reusable.put(base.getProperties().get(i), base.getPropertyDocs().get(i));
+            }
+        }
+        propertyDocs = new ArrayList<ODocument>(properties.size());
+        for (NodePropBundle.PropertyEntry entry : properties) {
+            ODocument propDoc = reusable.get(entry);
+            if (propDoc == null) {
+                propDoc = writeProperty(entry);
+            }
+            propertyDocs.add(propDoc);
+        }
+        doc.field("properties", propertyDocs, OType.EMBEDDEDLIST);
+        Set<String> ids = fileIds(propertyDocs);
+        if (ids.isEmpty()) {
+            doc.removeField(BLOBS);
+        } else {
+            doc.field(BLOBS, new ArrayList<String>(ids), OType.EMBEDDEDLIST);
+        }
+    }
+
+    /**
+     * writes the child entries. lists with more than {@link #chunkSize} entries are stored in separate
+     * chunk records that the document links to, so a change only rewrites the chunks it touches.
+     * the documents of the common head and tail of the snapshot and the new list are reused, only the
+     * entries in between are mapped again.
+     *
+     * @param base the snapshot of the last write, may be <code>null</code>
+     */
+    private void writeChildren(final BundleSnapshot base) {
+        List<NodePropBundle.ChildNodeEntry> previous = Collections.emptyList();
+        if (base != null) {
+            previous = base.getChildren();
+        } else {
+            // the document may still link to the chunks of an earlier write
+            deleteChildChunks();
+        }
+        int newSize = children.size();
+        int oldSize = previous.size();
+        int max = Math.min(newSize, oldSize);
+        int head = 0;
+        while (head < max && children.get(head).equals(previous.get(head))) {
+            head++;
+        }
+        int tail = 0;
+        while (tail < max - head && children.get(newSize - 1 - tail).equals(previous.get(oldSize - 1 - tail))) {
+            tail++;
+        }
+        boolean wasChunked = base != null && base.getChunkIds() != null;
+        if (chunkSize <= 0 || (!wasChunked && newSize <= chunkSize)) {
+            childDocs = new ArrayList<ODocument>(newSize);
+            boolean reuse = base != null && base.getChildDocs() != null;
+            for (int i = 0; i < newSize; i++) {
+                if (reuse && i < head) {
+                    childDocs.add(base.getChildDocs().get(i));
+                } else if (reuse && i >= newSize - tail) {
+                    childDocs.add(base.getChildDocs().get(i - newSize + oldSize));
+                } else {
+                    childDocs.add(writeChild(children.get(i)));
+                }
+            }
+            doc.field("children", childDocs, OType.EMBEDDEDLIST);
+            doc.removeField("childChunks");
+            return;
+        }
+        childDocs = null;
+        if (wasChunked && head == newSize && newSize == oldSize) {
+            chunks = new ArrayList<OIdentifiable>(base.getChunkIds());
+            chunkSizes = base.getChunkSizes();
+        } else if (wasChunked) {
+            chunks = new ArrayList<OIdentifiable>();
+            chunkSizes = new ArrayList<Integer>();
+            updateChunks(base, head, oldSize - tail);
+        } else {
+            chunks = new ArrayList<OIdentifiable>();
+            chunkSizes = new ArrayList<Integer>();
+            writeChunks(0, newSize, Collections.<ORID>emptyList());
+        }
+        doc.field("childChunks", chunks, OType.LINKLIST);
+        doc.removeField("children");
+    }
+
+    /**
+     * rewrites the chunks of the snapshot that overlap the changed entries, all others are kept.
+     *
+     * @param base   the snapshot of the last write
+     * @param head   the number of unchanged entries at the start
+     * @param oldEnd the end of the changed entries in the snapshot
+     */
+    private void updateChunks(final BundleSnapshot base, final int head, final int oldEnd) {
+        List<ORID> oldIds = base.getChunkIds();
+        List<Integer> oldSizes = base.getChunkSizes();
+        if (oldIds.isEmpty()) {
+            writeChunks(0, children.size(), oldIds);
+            return;
+        }
+        // the chunk holding the first changed entry, or the last chunk for an append
+        int first = 0;
+        int firstStart = 0;
+        while (first < oldIds.size() - 1 && firstStart + oldSizes.get(first) <= head) {
+            firstStart += oldSizes.get(first);
+            first++;
+        }
+        // the chunk holding the last changed entry, at least the first one for a pure insert
+        int last = first;
+        int lastEnd = firstStart + oldSizes.get(first);
+        while (last < oldIds.size() - 1 && lastEnd < oldEnd) {
+            last++;
+            lastEnd += oldSizes.get(last);
+        }
+        int delta = children.size() - base.getChildren().size();
+        // merge with the next chunk rather than leaving a small one behind
+        if (last < oldIds.size() - 1 && lastEnd + delta - firstStart < chunkSize / 2) {
+            last++;
+            lastEnd += oldSizes.get(last);
+        }
+        for (int i = 0; i < first; i++) {
+            chunks.add(oldIds.get(i));
+            chunkSizes.add(oldSizes.get(i));
+        }
+        writeChunks(firstStart, lastEnd + delta, oldIds.subList(first, last + 1));
+        for (int i = last + 1; i < oldIds.size(); i++) {
+            chunks.add(oldIds.get(i));
+            chunkSizes.add(oldSizes.get(i));
+        }
+    }
+
+    /**
+     * writes a range of child entries into evenly filled chunks of at most {@link #chunkSize} entries.
+     *
+     * @param from     the first entry
+     * @param to       the end of the range, exclusive
+     * @param reusable chunk records to overwrite before new ones are created, surplus ones are deleted
+     */
+    private void writeChunks(final int from, final int to, final List<ORID> reusable) {
+        int count = to - from;
+        int pieces = (count + chunkSize - 1) / chunkSize;
+        for (int p = 0; p < pieces; p++) {
+            int start = from + (int) ((long) count * p / pieces);
+            int end = from + (int) ((long) count * (p + 1) / pieces);
+            ODocument chunk = null;
+            if (p < reusable.size()) {
+                chunk = database.load(reusable.get(p));
+            }
+            if (chunk == null) {
+                chunk = new ODocument(chunkClassName);
+            }
+            List<ODocument> entryDocs = new ArrayList<ODocument>(end - start);
+            for (int i = start; i < end; i++) {
+                entryDocs.add(writeChild(children.get(i)));
+            }
+            chunk.field("children", entryDocs, OType.EMBEDDEDLIST);
+            chunk.save();
+            chunks.add(chunk);
+            chunkSizes.add(end - start);
+        }
+        for (int p = pieces; p < reusable.size(); p++) {
+            database.delete(reusable.get(p));
+        }
+    }
+
+    /**
+     * deletes the chunk records the document links to.
+     */
+    final void deleteChildChunks() {
+        List<OIdentifiable> chunkIds = doc.field("childChunks", OType.LINKLIST);
+        if (chunkIds != null) {
+            for (OIdentifiable chunkId : new ArrayList<OIdentifiable>(chunkIds)) {
+                database.delete(chunkId.getIdentity());
+            }
+        }
+    }
+
+    /**
+     * writes a child entry.
+     *
+     * @param child the child
      * @return the doc
      */
-    private ODocument writeName(final Name name) {
+    private ODocument writeChild(final NodePropBundle.ChildNodeEntry child) {
+        ODocument childDoc = database.newInstance();
+        writeName(childDoc, "name", child.getName());
+        childDoc.field("uuid", idValue(child.getId()), OType.BINARY);
+        return childDoc;
+    }
+
+    /**
+     * snapshot of what the document contains after the last {@link #writePhase1}. must be taken after
+     * the document was saved, so it carries the saved record version.
+     *
+     * @return the snapshot, <code>null</code> for the binary storage format
+     */
+    final BundleSnapshot createSnapshot() {
+        if (binary) {
+            return null;
+        }
+        List<ORID> chunkIds = null;
+        if (chunks != null) {
+            chunkIds = new ArrayList<ORID>(chunks.size());
+            for (OIdentifiable chunk : chunks) {
+                chunkIds.add(chunk.getIdentity().copy());
+            }
+        }
+        return new BundleSnapshot(doc.getRecordVersion().getCounter(), bundle, properties, propertyDocs,
+                children, childDocs, chunkIds, chunkSizes);
+    }
+
+    /**
+     * writes a name to a field.
+     *
+     * @param target the doc
+     * @param field  the field
+     * @param name   the name
+     */
+    private void writeName(final ODocument target, final String field, final Name name) {
+        if (dictionary == null) {
+            target.field(field, nameValue(name), OType.EMBEDDED);
+        } else {
+            target.field(field, nameValue(name), OType.INTEGER);
+        }
+    }
+
+    /**
+     * maps a name to its dictionary index, or to an embedded document without a dictionary.
+     *
+     * @param name the name
+     * @return the index or the doc
+     */
+    private Object nameValue(final Name name) {
+        if (dictionary != null) {
+            return dictionary.toIndex(name, database);
+        }
         ODocument nDoc = database.newInstance();
         nDoc.field("local", name.getLocalName());
         nDoc.field("uri", name.getNamespaceURI());
@@ -121,12 +534,30 @@ public class BundleMapper {
     }
 
     /**
-     * reads the name.
+     * reads a name, either a dictionary index or an embedded document with uri and local name.
      *
-     * @param nDoc the doc
+     * @param value the field value
      * @return the name
      */
-    private Name readName(final ODocument nDoc) {
+    private Name readName(final Object value) {
+        return readName(value, dictionary);
+    }
+
+    /**
+     * reads a name, either a dictionary index or an embedded document with uri and local name.
+     *
+     * @param value       the field value
+     * @param pdictionary the name dictionary, <code>null</code> if names are embedded documents
+     * @return the name
+     */
+    static Name readName(final Object value, final NameDictionary pdictionary) {
+        if (value instanceof Number) {
+            if (pdictionary == null) {
+                throw new IllegalStateException("name index " + value + " cannot be read without a dictionary");
+            }
+            return pdictionary.toName(((Number) value).intValue());
+        }
+        ODocument nDoc = (ODocument) value;
         String local = nDoc.field("local", OType.STRING);
         String uri = nDoc.field("uri", OType.STRING);
         return NameFactoryImpl.getInstance().create(uri, local);
@@ -134,134 +565,312 @@ public class BundleMapper {
     }
 
     /**
-     * reads a bundle from the doc.
+     * maps a node id to the 16 raw bytes it is stored and indexed with.
+     *
+     * @param id the id
+     * @return the bytes
+     */
+    static byte[] idValue(final NodeId id) {
+        return id.getRawBytes();
+    }
+
+    /**
+     * reads a node id, either 16 raw bytes or the uuid string of documents written before.
+     *
+     * @param value the field value
+     * @return the id or <code>null</code> if the field is empty
+     */
+    static NodeId readId(final Object value) {
+        if (value instanceof byte[]) {
+            return new NodeId((byte[]) value);
+        }
+        if (value == null) {
+            return null;
+        }
+        return NodeId.valueOf((String) value);
+    }
+
+    /**
+     * reads a bundle from the doc, in the storage format it was written in.
      *
      * @return the bundle.
      */
     public final NodePropBundle read() {
-        String uuid = doc.field("uuid", OType.STRING);
-        bundle = new NodePropBundle(NodeId.valueOf(uuid));
+        // orient keeps the record source after parsing single fields, and every field that is not
+        // parsed yet, or absent like bundle and childChunks, would parse the whole record again
+        doc.deserializeFields();
+        NodeId id = readId(doc.field("uuid"));
+        byte[] data = doc.field(BUNDLE, OType.BINARY);
+        if (data != null) {
+            try {
+                bundle = binding.readBundle(new ByteArrayInputStream(data), id);
+            } catch (IOException x) {
+                throw new UncheckedIOException("failed to read bundle " + id, x);
+            }
+            return bundle;
+        }
+        bundle = new NodePropBundle(id);
 
-        String parentUUID = doc.field("parentuuid", OType.STRING);
-        NodeId parentId = NodeId.valueOf(parentUUID);
+        NodeId parentId = readId(doc.field("parentuuid"));
         if (NULL_PARENT_ID.equals(parentId)) {
             bundle.setParentId(null);
         } else {
 
             bundle.setParentId(parentId);
         }
-        ODocument primaryTypeDoc = doc.field("primaryType", OType.EMBEDDED);
-
-        Name name = readName(primaryTypeDoc);
+        Name name = readName(doc.field("primaryType"));
         bundle.setNodeTypeName(name);
 
-        List<ODocument> mixinDocs = doc.field("mixinTypes", OType.EMBEDDEDLIST);
-        Set<Name> mixins = new HashSet<Name>();
-        for (ODocument mDoc : mixinDocs) {
-            mixins.add(readName(mDoc));
+        // fields are read without a type, a typed read puts the type into a map of every document
+        List<Object> mixinDocs = doc.field("mixinTypes");
+        if (mixinDocs.isEmpty()) {
+            bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        } else {
+            Set<Name> mixins = new HashSet<Name>(mixinDocs.size() * 2);
+            for (Object mDoc : mixinDocs) {
+                mixins.add(readName(mDoc));
+            }
+            bundle.setMixinTypeNames(mixins);
         }
-        bundle.setMixinTypeNames(mixins);
 
-        List<ODocument> propertyDocs = doc.field("properties", OType.EMBEDDEDLIST);
+        List<ODocument> propertyDocs = doc.field("properties");
         if (propertyDocs != null) {
             for (ODocument pDoc : propertyDocs) {
                 bundle.addProperty(readProperty(pDoc, bundle));
             }
         }
         // read child refs
-        List<ODocument> childDocs = doc.field("children", OType.EMBEDDEDLIST);
-        for (ODocument childDoc : childDocs) {
-            ODocument nameDoc = childDoc.field("name", OType.EMBEDDED);
-            Name childname = readName(nameDoc);
-            String childuuid = childDoc.field("uuid", OType.STRING);
-            NodeId id = NodeId.valueOf(childuuid);
-            bundle.addChildNodeEntry(childname, id);
-
+        List<OIdentifiable> chunkIds = doc.field("childChunks", OType.LINKLIST);
+        if (chunkIds == null) {
+            readChildren(doc.field("children"));
+        } else {
+            for (OIdentifiable chunkId : chunkIds) {
+                ODocument chunk = chunkId.getRecord();
+                readChildren(chunk.field("children"));
+            }
         }
-        List<ODocument> sharedDocs = doc.field("sharedSet", OType.EMBEDDEDLIST);
-        Set<NodeId> sharedSet = new HashSet<NodeId>();
-        for (ODocument sharedDoc : sharedDocs) {
-            String shUuid = sharedDoc.field("uuid", OType.STRING);
-            NodeId shId = NodeId.valueOf(shUuid);
-            sharedSet.add(shId);
+        List<ODocument> sharedDocs = doc.field("sharedSet");
+        if (sharedDocs.isEmpty()) {
+            bundle.setSharedSet(Collections.<NodeId>emptySet());
+        } else {
+            Set<NodeId> sharedSet = new HashSet<NodeId>(sharedDocs.size() * 2);
+            for (ODocument sharedDoc : sharedDocs) {
+                sharedSet.add(readId(sharedDoc.field("uuid")));
+            }
+            bundle.setSharedSet(sharedSet);
         }
-
-        bundle.setSharedSet(sharedSet);
-        // TODO read sharedSet
         return bundle;
     }
 
     /**
-     * reads a property.
+     * reads child entries into the bundle.
+     *
+     * @param childDocs the docs
+     */
+    private void readChildren(final List<ODocument> childDocs) {
+        for (ODocument childDoc : childDocs) {
+            Name childname = readName(childDoc.field("name"));
+            bundle.addChildNodeEntry(childname, readId(childDoc.field("uuid")));
+
+        }
+    }
+
+    /**
+     * reads a property. all values have the type of the property, so it is read once. the values are
+     * decoded when they are first asked for if lazy property values are enabled.
      *
      * @param pDoc    the doc
      * @param pbundle the bundle
      * @return the propertyentry
      */
     private NodePropBundle.PropertyEntry readProperty(final ODocument pDoc, final NodePropBundle pbundle) {
-        ODocument nameDoc = pDoc.field("name", OType.EMBEDDED);
-        NodePropBundle.PropertyEntry entry = new NodePropBundle.PropertyEntry(new PropertyId(pbundle.getId(),
-                readName(nameDoc)));
-        Boolean multiValued = pDoc.field("multiValued", OType.BOOLEAN);
-        entry.setMultiValued(multiValued);
-        List<InternalValue> values = new ArrayList<InternalValue>();
-        List<ODocument> valDocs = pDoc.field("values", OType.EMBEDDEDLIST);
-        if (valDocs != null) {
-            for (ODocument vDoc : valDocs) {
-                int type = vDoc.field("type", OType.INTEGER);
-                switch (type) {
-                    case PropertyType.BINARY:
-                        Boolean embedded = vDoc.field("embedded", OType.BOOLEAN);
-                        if (embedded) {
-                            values.add(InternalValue.create((byte[]) vDoc.field("value", OType.BINARY)));
-                        } else {
-                            try {
+        PropertyId id = new PropertyId(pbundle.getId(), readName(pDoc.field("name")));
+        List<ODocument> valDocs = pDoc.field("values");
+        if (valDocs == null) {
+            valDocs = Collections.emptyList();
+        }
+        NodePropBundle.PropertyEntry entry;
+        if (lazy) {
+            entry = new LazyPropertyEntry(id, valDocs, fileSystem, dictionary);
+        } else {
+            entry = new NodePropBundle.PropertyEntry(id);
+        }
+        entry.setMultiValued(Boolean.TRUE.equals(pDoc.field("multiValued")));
+        Number propertyType = pDoc.field("type");
+        if (propertyType == null && !valDocs.isEmpty()) {
+            // written before the property type was stored, fall back to the first value
+            propertyType = valDocs.get(0).field("type");
+        }
+        if (propertyType != null) {
+            entry.setType(propertyType.intValue());
+        }
+        if (!lazy) {
+            entry.setValues(readValues(valDocs, entry.getType(), fileSystem, dictionary));
+        }
+        return entry;
+    }
 
-                                InputStream in = fileSystem.read(vDoc.field("value", OType.STRING));
-                                values.add(InternalValue.create(in));
-                            } catch (RepositoryException x) {
-                                log.error("Failed to read blob", x);
-                            }
-                        }
-                        break;
-                    case PropertyType.DOUBLE:
+    /**
+     * reads the values of a property.
+     *
+     * @param valDocs     the value docs
+     * @param type        the property type
+     * @param pfileSystem the filesystem of large binaries
+     * @param pdictionary the name dictionary, <code>null</code> if names are embedded documents
+     * @return the values
+     */
+    static InternalValue[] readValues(final List<ODocument> valDocs, final int type,
+                                      final BinaryFileSystemHelper pfileSystem, final NameDictionary pdictionary) {
+        InternalValue[] values = new InternalValue[valDocs.size()];
+        int count = 0;
+        for (ODocument vDoc : valDocs) {
+            InternalValue value = readValue(vDoc, type, pfileSystem, pdictionary);
+            if (value != null) {
+                values[count++] = value;
+            }
+        }
+        if (count == 0) {
+            log.error("ill property here");
+        }
+        if (count < values.length) {
+            values = Arrays.copyOf(values, count);
+        }
+        return values;
+    }
 
-                        values.add(InternalValue.create((Double) vDoc.field(VALUE, OType.DOUBLE)));
-                        break;
+    /**
+     * adds the ids of the binaries in the docs folder that a bundle document references. documents in the
+     * binary storage format do not reference any, their binaries are in the blob store or the data store.
+     *
+     * @param doc the bundle document
+     * @param ids the ids
+     */
+    static void collectFileIds(final ODocument doc, final Collection<String> ids) {
+        List<String> blobs = doc.field(BLOBS);
+        if (blobs != null) {
+            ids.addAll(blobs);
+        }
+    }
 
-                    case PropertyType.DECIMAL:
-                        values.add(InternalValue.create((BigDecimal) vDoc.field(VALUE, OType.DECIMAL)));
-                        break;
-                    case PropertyType.LONG:
-                        values.add(InternalValue.create(((Long) vDoc.field(VALUE, OType.LONG)).longValue()));
-                        break;
-                    case PropertyType.BOOLEAN:
-                        values.add(InternalValue.create((Boolean) vDoc.field(VALUE, OType.BOOLEAN)));
-                        break;
+    /**
+     * gets the ids of the binaries in the docs folder that the values of properties reference.
+     *
+     * @param propertyDocs the property documents, may be <code>null</code>
+     * @return the ids
+     */
+    static Set<String> fileIds(final List<ODocument> propertyDocs) {
+        Set<String> ids = new LinkedHashSet<String>();
+        if (propertyDocs == null) {
+            return ids;
+        }
+        for (ODocument pDoc : propertyDocs) {
+            List<ODocument> valDocs = pDoc.field("values");
+            if (valDocs == null) {
+                continue;
+            }
+            for (ODocument vDoc : valDocs) {
+                Number type = vDoc.field("type");
+                if (type != null && type.intValue() == PropertyType.BINARY
+                        && !Boolean.TRUE.equals(vDoc.field("embedded"))) {
+                    String id = vDoc.field(VALUE);
+                    if (!id.startsWith(BinaryFileSystemHelper.DATA_STORE_PREFIX)) {
+                        ids.add(id);
+                    }
+                }
+            }
+        }
+        return ids;
+    }
 
-                    case PropertyType.NAME:
-                        ODocument nDoc = vDoc.field(VALUE, OType.EMBEDDED);
-                        values.add(InternalValue.create(readName(nDoc)));
-                        break;
+    /**
+     * reads a value.
+     *
+     * @param vDoc        the doc
+     * @param type        the property type
+     * @param pfileSystem the filesystem of large binaries
+     * @param pdictionary the name dictionary, <code>null</code> if names are embedded documents
+     * @return the value, or <code>null</code> if it cannot be read
+     */
+    private static InternalValue readValue(final ODocument vDoc, final int type,
+                                           final BinaryFileSystemHelper pfileSystem,
+                                           final NameDictionary pdictionary) {
+        Object value = vDoc.field(VALUE);
+        switch (type) {
+            case PropertyType.BINARY:
+                if (Boolean.TRUE.equals(vDoc.field("embedded"))) {
+                    return InternalValue.create((byte[]) value);
+                }
+                try {
+                    return pfileSystem.readValue((String) value);
+                } catch (RepositoryException x) {
+                    log.error("Failed to read blob", x);
+                    return null;
+                }
+            case PropertyType.DOUBLE:
+                return InternalValue.create(((Number) value).doubleValue());
+            case PropertyType.DECIMAL:
+                if (value instanceof BigDecimal) {
+                    return InternalValue.create((BigDecimal) value);
+                }
+                return InternalValue.create(new BigDecimal(value.toString()));
+            case PropertyType.LONG:
+                return InternalValue.create(((Number) value).longValue());
+            case PropertyType.BOOLEAN:
+                return InternalValue.create(((Boolean) value).booleanValue());
+            case PropertyType.NAME:
+                return InternalValue.create(readName(value, pdictionary));
+            case PropertyType.WEAKREFERENCE:
+            case PropertyType.REFERENCE:
+                // documents written before reference values were stored have none
+                if (value == null) {
+                    return null;
+                }
+                return InternalValue.create(readId(value), type == PropertyType.WEAKREFERENCE);
+            case PropertyType.DATE:
+                return readDate(value);
+            default:
+                if (Boolean.TRUE.equals(vDoc.field(Compression.FLAG))) {
+                    return InternalValue.create(Compression.inflate((byte[]) value));
+                }
+                return InternalValue.create((String) value);
+        }
+    }
 
-                    case PropertyType.WEAKREFERENCE:
-                    case PropertyType.REFERENCE:
-                        //must be handled later by referenceresolver
-                        break;
+    /**
+     * writes a string, deflated if it is long and compresses well and compression is on.
+     *
+     * @param valDoc the value document
+     * @param value  the string
+     */
+    private void writeString(final ODocument valDoc, final String value) {
+        byte[] deflated = null;
+        if (fileSystem != null && fileSystem.isCompressing()) {
+            deflated = Compression.deflate(value);
+        }
+        if (deflated == null) {
+            valDoc.field(VALUE, value);
+            return;
+        }
+        valDoc.field(Compression.FLAG, true);
+        valDoc.field(VALUE, deflated, OType.BINARY);
+    }
 
-                    case PropertyType.DATE:
-                        values.add(InternalValue.create((Calendar) vDoc.field(VALUE, OType.DATETIME)));
-                        break;
-                    default:
-                        values.add(InternalValue.create((String) vDoc.field(VALUE, OType.STRING)));
-                }
-            }
+    /**
+     * reads a date, stored as an ISO8601 string like in the jackrabbit bundle serialization.
+     *
+     * @param value the field value
+     * @return the value, or <code>null</code> for documents written before dates were stored
+     */
+    private static InternalValue readDate(final Object value) {
+        if (value instanceof Date) {
+            Calendar date = Calendar.getInstance();
+            date.setTime((Date) value);
+            return InternalValue.create(date);
         }
-        if (values.size() == 0) {
-            log.error("ill property here");
+        if (value == null) {
+            return null;
         }
-        entry.setValues(values.toArray(new InternalValue[values.size()]));
-        return entry;
+        return InternalValue.create(ISO8601.parse((String) value));
     }
 
     /**
@@ -273,8 +882,9 @@ public class BundleMapper {
      */
     private ODocument writeProperty(final NodePropBundle.PropertyEntry state) throws IOException {
         ODocument propDoc = database.newInstance();
-        propDoc.field("name", writeName(state.getName()), OType.EMBEDDED);
+        writeName(propDoc, "name", state.getName());
         propDoc.field("multiValued", state.isMultiValued());
+        propDoc.field("type", state.getType());
 
         InternalValue[] values = state.getValues();
         List<ODocument> valDocs = new ArrayList<ODocument>();
@@ -295,7 +905,7 @@ public class BundleMapper {
                             valDoc.field(VALUE, out.toByteArray(), OType.BINARY);
                         } else {
 
-                            String id = fileSystem.write(val.getStream());
+                            String id = fileSystem.write(val);
                             valDoc.field(VALUE, id, OType.STRING);
                         }
                         break;
@@ -316,19 +926,20 @@ public class BundleMapper {
                         break;
 
                     case PropertyType.NAME:
-                        valDoc.field(VALUE, writeName(val.getName()), OType.EMBEDDED);
+                        writeName(valDoc, VALUE, val.getName());
                         break;
 
                     case PropertyType.WEAKREFERENCE:
                     case PropertyType.REFERENCE:
-                        //must be handled later by referenceresolver
+                        valDoc.field(VALUE, idValue(val.getNodeId()), OType.BINARY);
                         break;
 
                     case PropertyType.DATE:
-                        valDoc.field(VALUE, val.getDate());
+                        // keeps the time zone, a datetime field would not
+                        valDoc.field(VALUE, ISO8601.format(val.getDate()), OType.STRING);
                         break;
                     default:
-                        valDoc.field(VALUE, val.toString());
+                        writeString(valDoc, val.toString());
                 }
             } catch (RepositoryException x) {
                 String msg = "Error while storing value. id=" + state.getId() + " idx=" + i + " value=" + val;
@@ -0,0 +1,174 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+
+import java.util.Collection;
+
+/**
+ * Holds the child bundles that were read ahead when their parent was loaded, until jackrabbit asks
+ * for them. The bundle cache of jackrabbit cannot be filled from outside, so a prefetched bundle is
+ * handed out once and then cached by jackrabbit.
+ * <p>
+ * Prefetching only pays off if the children are not in the bundle cache of jackrabbit already and
+ * are read soon. After every {@value #WINDOW} prefetched bundles the share that was used is checked,
+ * and prefetching pauses for {@value #PAUSE} loads if less than a quarter was.
+ * <p>
+ * Every commit of bundles starts a new generation, and a bundle read before the commit is not kept,
+ * like in the {@link ReferenceExistenceCache}.
+ */
+final class BundlePrefetcher {
+
+    /**
+     * number of prefetched bundles after which the used share is checked.
+     */
+    private static final int WINDOW = 1024;
+
+    /**
+     * number of loads without prefetching after a window that did not pay off.
+     */
+    private static final int PAUSE = 4 * WINDOW;
+
+    /**
+     * a window pays off if at least one in this many prefetched bundles was used.
+     */
+    private static final int MIN_USED_SHARE = 4;
+
+    private final ConcurrentCache<NodeId, NodePropBundle> cache;
+
+    /**
+     * guards the generation, the window counters and the entries written under them.
+     */
+    private final Object lock = new Object();
+
+    private long generation;
+
+    private long prefetched;
+
+    private long used;
+
+    private long paused;
+
+    private long totalPrefetched;
+
+    private long totalUsed;
+
+    /**
+     * create a prefetcher.
+     *
+     * @param name          the name used in cache statistics
+     * @param maxMemorySize the maximum memory in bytes
+     */
+    BundlePrefetcher(final String name, final long maxMemorySize) {
+        cache = new ConcurrentCache<NodeId, NodePropBundle>(name);
+        cache.setMaxMemorySize(maxMemorySize);
+    }
+
+    /**
+     * takes a prefetched bundle.
+     *
+     * @param id the bundle id
+     * @return the bundle or <code>null</code> if it was not prefetched
+     */
+    NodePropBundle take(final NodeId id) {
+        NodePropBundle bundle = cache.remove(id);
+        if (bundle != null) {
+            synchronized (lock) {
+                used++;
+                totalUsed++;
+            }
+        }
+        return bundle;
+    }
+
+    /**
+     * checks if a bundle is prefetched.
+     *
+     * @param id the bundle id
+     * @return true if it is
+     */
+    boolean contains(final NodeId id) {
+        return cache.containsKey(id);
+    }
+
+    /**
+     * checks if the children of a loaded bundle should be prefetched. counts the loads while paused.
+     *
+     * @return false while prefetching is paused
+     */
+    boolean shouldPrefetch() {
+        synchronized (lock) {
+            if (paused > 0) {
+                paused--;
+                return false;
+            }
+            return true;
+        }
+    }
+
+    /**
+     * gets the current generation. must be taken before the database is read.
+     *
+     * @return the generation
+     */
+    long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * keeps a prefetched bundle, unless bundles were committed since the read started.
+     *
+     * @param bundle      the bundle
+     * @param pgeneration the generation taken before the read
+     */
+    void put(final NodePropBundle bundle, final long pgeneration) {
+        synchronized (lock) {
+            if (pgeneration != generation) {
+                return;
+            }
+            cache.put(bundle.getId(), bundle, bundle.getSize());
+            prefetched++;
+            totalPrefetched++;
+            if (prefetched >= WINDOW) {
+                if (used * MIN_USED_SHARE < prefetched) {
+                    paused = PAUSE;
+                }
+                prefetched = 0;
+                used = 0;
+            }
+        }
+    }
+
+    /**
+     * forgets changed bundles and starts a new generation.
+     *
+     * @param ids the ids of the stored and deleted bundles
+     */
+    void invalidate(final Collection<NodeId> ids) {
+        synchronized (lock) {
+            generation++;
+            for (NodeId id : ids) {
+                cache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * forgets all bundles.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        synchronized (lock) {
+            return cache.getCacheInfoAsString() + " prefetched=" + totalPrefetched + " used=" + totalUsed;
+        }
+    }
+}
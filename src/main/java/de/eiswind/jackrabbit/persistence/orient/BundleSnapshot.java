@@ -0,0 +1,194 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.spi.Name;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * What a bundle document was written with, at the record version of that write.
+ * <p>
+ * Jackrabbit updates cached bundles in place, so the snapshot copies everything it holds. Property
+ * entries are kept by reference, jackrabbit replaces the entry of every modified property.
+ * The {@link BundleMapper} diffs an incoming bundle against the snapshot instead of the document and
+ * reuses the embedded documents of unchanged properties and child entries. Orient rewrites the whole
+ * record anyway, but documents that are already in memory need neither mapping nor parsing.
+ */
+final class BundleSnapshot {
+
+    /**
+     * rough memory estimate of the snapshot itself.
+     */
+    private static final long BASE_SIZE = 256;
+
+    /**
+     * rough memory estimate of one list entry and its embedded document.
+     */
+    private static final long ENTRY_SIZE = 512;
+
+    /**
+     * rough memory estimate of a chunked child entry, which is kept without its document.
+     */
+    private static final long CHUNKED_ENTRY_SIZE = 32;
+
+    private final int version;
+
+    private final Name nodeTypeName;
+
+    private final NodeId parentId;
+
+    private final short modCount;
+
+    private final Set<Name> mixinTypeNames;
+
+    private final Set<NodeId> sharedSet;
+
+    private final List<NodePropBundle.PropertyEntry> properties;
+
+    private final List<ODocument> propertyDocs;
+
+    private final List<NodePropBundle.ChildNodeEntry> children;
+
+    private final List<ODocument> childDocs;
+
+    private final List<ORID> chunkIds;
+
+    private final List<Integer> chunkSizes;
+
+    /**
+     * create a snapshot.
+     *
+     * @param pversion      the record version of the document
+     * @param pbundle       the bundle the document was written with
+     * @param pproperties   the property entries in document order
+     * @param ppropertyDocs the documents of the property entries
+     * @param pchildren     the child entries in document order
+     * @param pchildDocs    the documents of the child entries, <code>null</code> if they are chunked
+     * @param pchunkIds     the chunk records in order, <code>null</code> if the child entries are embedded
+     * @param pchunkSizes   the number of child entries per chunk record
+     */
+    BundleSnapshot(final int pversion, final NodePropBundle pbundle,
+                   final List<NodePropBundle.PropertyEntry> pproperties, final List<ODocument> ppropertyDocs,
+                   final List<NodePropBundle.ChildNodeEntry> pchildren, final List<ODocument> pchildDocs,
+                   final List<ORID> pchunkIds, final List<Integer> pchunkSizes) {
+        this.version = pversion;
+        this.nodeTypeName = pbundle.getNodeTypeName();
+        this.parentId = pbundle.getParentId();
+        this.modCount = pbundle.getModCount();
+        this.mixinTypeNames = new HashSet<Name>(pbundle.getMixinTypeNames());
+        this.sharedSet = new HashSet<NodeId>(pbundle.getSharedSet());
+        this.properties = new ArrayList<NodePropBundle.PropertyEntry>(pproperties);
+        this.propertyDocs = ppropertyDocs;
+        this.children = new ArrayList<NodePropBundle.ChildNodeEntry>(pchildren);
+        this.childDocs = pchildDocs;
+        this.chunkIds = pchunkIds;
+        this.chunkSizes = pchunkSizes;
+    }
+
+    /**
+     * checks if writing a bundle would change the document.
+     *
+     * @param bundle        the bundle
+     * @param newProperties the property entries of the bundle
+     * @param newChildren   the child entries of the bundle
+     * @return true if anything differs from the snapshot
+     */
+    boolean differsFrom(final NodePropBundle bundle, final List<NodePropBundle.PropertyEntry> newProperties,
+                        final List<NodePropBundle.ChildNodeEntry> newChildren) {
+        if (!nodeTypeName.equals(bundle.getNodeTypeName()) || modCount != bundle.getModCount()) {
+            return true;
+        }
+        if (parentId == null) {
+            if (bundle.getParentId() != null) {
+                return true;
+            }
+        } else if (!parentId.equals(bundle.getParentId())) {
+            return true;
+        }
+        // jackrabbit hands in a NameSet, which does not implement set equality
+        if (!mixinTypeNames.equals(new HashSet<Name>(bundle.getMixinTypeNames()))
+                || !sharedSet.equals(new HashSet<NodeId>(bundle.getSharedSet()))) {
+            return true;
+        }
+        if (properties.size() != newProperties.size()) {
+            return true;
+        }
+        Set<NodePropBundle.PropertyEntry> unchanged =
+                Collections.newSetFromMap(new IdentityHashMap<NodePropBundle.PropertyEntry, Boolean>());
+        unchanged.addAll(properties);
+        for (NodePropBundle.PropertyEntry entry : newProperties) {
+            if (!unchanged.contains(entry)) {
+                return true;
+            }
+        }
+        return !children.equals(newChildren);
+    }
+
+    /**
+     * @return the record version of the document
+     */
+    int getVersion() {
+        return version;
+    }
+
+    /**
+     * @return the property entries in document order
+     */
+    List<NodePropBundle.PropertyEntry> getProperties() {
+        return properties;
+    }
+
+    /**
+     * @return the documents of the property entries
+     */
+    List<ODocument> getPropertyDocs() {
+        return propertyDocs;
+    }
+
+    /**
+     * @return the child entries in document order
+     */
+    List<NodePropBundle.ChildNodeEntry> getChildren() {
+        return children;
+    }
+
+    /**
+     * @return the documents of the child entries, <code>null</code> if they are chunked
+     */
+    List<ODocument> getChildDocs() {
+        return childDocs;
+    }
+
+    /**
+     * @return the chunk records in order, <code>null</code> if the child entries are embedded
+     */
+    List<ORID> getChunkIds() {
+        return chunkIds;
+    }
+
+    /**
+     * @return the number of child entries per chunk record
+     */
+    List<Integer> getChunkSizes() {
+        return chunkSizes;
+    }
+
+    /**
+     * @return the estimated memory size in bytes
+     */
+    long getMemorySize() {
+        long size = BASE_SIZE + ENTRY_SIZE * (mixinTypeNames.size() + sharedSet.size() + properties.size());
+        if (childDocs == null) {
+            return size + CHUNKED_ENTRY_SIZE * children.size();
+        }
+        return size + ENTRY_SIZE * children.size();
+    }
+}
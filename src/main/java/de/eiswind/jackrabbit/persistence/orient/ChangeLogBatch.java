@@ -0,0 +1,179 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.NodeReferences;
+
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * Collects the bundle and reference writes of one change log, so they can be
+ * committed in a single orient transaction.
+ */
+final class ChangeLogBatch {
+
+    /**
+     * bundles to store, in the order they were handed in.
+     */
+    private final Map<NodeId, NodePropBundle> bundles = new LinkedHashMap<NodeId, NodePropBundle>();
+
+    /**
+     * ids of the stored bundles that were new when they were handed in.
+     * the bundle is marked old right after staging, so this must be remembered here.
+     */
+    private final Set<NodeId> newBundles = new HashSet<NodeId>();
+
+    /**
+     * ids of bundles to delete.
+     */
+    private final Set<NodeId> destroyedBundles = new LinkedHashSet<NodeId>();
+
+    /**
+     * references to store.
+     */
+    private final Map<NodeId, NodeReferences> refs = new LinkedHashMap<NodeId, NodeReferences>();
+
+    /**
+     * target ids of references to delete.
+     */
+    private final Set<NodeId> destroyedRefs = new LinkedHashSet<NodeId>();
+
+    /**
+     * stages a bundle for storing.
+     *
+     * @param bundle the bundle
+     */
+    void store(final NodePropBundle bundle) {
+        bundles.put(bundle.getId(), bundle);
+        if (bundle.isNew()) {
+            newBundles.add(bundle.getId());
+        }
+    }
+
+    /**
+     * stages a bundle for deletion.
+     *
+     * @param bundle the bundle
+     */
+    void destroy(final NodePropBundle bundle) {
+        destroyedBundles.add(bundle.getId());
+    }
+
+    /**
+     * stages references for storing.
+     *
+     * @param references the references
+     */
+    void store(final NodeReferences references) {
+        destroyedRefs.remove(references.getTargetId());
+        refs.put(references.getTargetId(), references);
+    }
+
+    /**
+     * stages references for deletion.
+     *
+     * @param references the references
+     */
+    void destroy(final NodeReferences references) {
+        refs.remove(references.getTargetId());
+        destroyedRefs.add(references.getTargetId());
+    }
+
+    /**
+     * checks if anything was staged.
+     *
+     * @return true if there is nothing to commit
+     */
+    boolean isEmpty() {
+        return bundles.isEmpty() && destroyedBundles.isEmpty() && refs.isEmpty() && destroyedRefs.isEmpty();
+    }
+
+    /**
+     * @return the bundles to store
+     */
+    Collection<NodePropBundle> getBundles() {
+        return bundles.values();
+    }
+
+    /**
+     * checks if a staged bundle was new.
+     *
+     * @param id the bundle id
+     * @return true if the bundle has no stored document yet
+     */
+    boolean isNew(final NodeId id) {
+        return newBundles.contains(id);
+    }
+
+    /**
+     * @return the ids of the stored bundles that have no stored document yet
+     */
+    Set<NodeId> getNewBundleIds() {
+        return newBundles;
+    }
+
+    /**
+     * @return the ids of bundles to delete
+     */
+    Set<NodeId> getDestroyedBundles() {
+        return destroyedBundles;
+    }
+
+    /**
+     * @return the references to store
+     */
+    Collection<NodeReferences> getRefs() {
+        return refs.values();
+    }
+
+    /**
+     * @return the target ids of references to delete
+     */
+    Set<NodeId> getDestroyedRefs() {
+        return destroyedRefs;
+    }
+
+    /**
+     * the ids of all bundles that must already exist in the db.
+     *
+     * @return the ids of updated and deleted bundles
+     */
+    List<NodeId> getExistingBundleIds() {
+        List<NodeId> ids = new ArrayList<NodeId>(destroyedBundles);
+        for (NodeId id : bundles.keySet()) {
+            if (!newBundles.contains(id)) {
+                ids.add(id);
+            }
+        }
+        return ids;
+    }
+
+    /**
+     * the ids of all stored and deleted bundles.
+     *
+     * @return the ids
+     */
+    List<NodeId> getBundleIds() {
+        List<NodeId> ids = new ArrayList<NodeId>(bundles.keySet());
+        ids.addAll(destroyedBundles);
+        return ids;
+    }
+
+    /**
+     * the target ids of all touched references.
+     *
+     * @return the target ids of stored and deleted references
+     */
+    List<NodeId> getRefsIds() {
+        List<NodeId> ids = new ArrayList<NodeId>(refs.keySet());
+        ids.addAll(destroyedRefs);
+        return ids;
+    }
+}
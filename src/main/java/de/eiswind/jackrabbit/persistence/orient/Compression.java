@@ -0,0 +1,274 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Deflate compression of the binary files in the docs folder and of long strings in the documents.
+ * <p>
+ * Content is only compressed if a sample of its first {@value #SAMPLE_SIZE} bytes shrinks to at most
+ * {@value #MAX_EIGHTHS} eighths, media files and archives are stored raw. The id of a compressed file ends
+ * with {@value #SUFFIX}, so every value knows how its file is stored. Such a file starts with the length of
+ * the content, followed by the zlib stream, which is inflated while it is read. A compressed string is
+ * stored as the deflated UTF-8 bytes in a value document that has the {@value #FLAG} field set.
+ * <p>
+ * Compression uses the fastest level, the point is less disk and cache traffic, not the smallest files.
+ */
+final class Compression {
+
+    /**
+     * the only codec.
+     */
+    static final String DEFLATE = "deflate";
+
+    /**
+     * no compression.
+     */
+    static final String NONE = "none";
+
+    /**
+     * suffix of the ids of compressed files.
+     */
+    static final String SUFFIX = ".z";
+
+    /**
+     * the field of a value document that marks a compressed string.
+     */
+    static final String FLAG = "deflated";
+
+    /**
+     * strings shorter than this are never compressed.
+     */
+    static final int MIN_STRING_LENGTH = 1024;
+
+    /**
+     * bytes of content that are compressed to decide if it is compressible.
+     */
+    private static final int SAMPLE_SIZE = 64 * 1024;
+
+    /**
+     * content is compressed if the sample shrinks to this many eighths or less.
+     */
+    private static final int MAX_EIGHTHS = 7;
+
+    private static final int EIGHTHS = 8;
+
+    private static final int BUFFER_SIZE = 0x10000;
+
+    /**
+     * no instances.
+     */
+    private Compression() {
+    }
+
+    /**
+     * checks the codec of a configuration.
+     *
+     * @param codec the name of the codec
+     * @return true for {@value #DEFLATE}, false for {@value #NONE}
+     */
+    static boolean isEnabled(final String codec) {
+        if (DEFLATE.equals(codec)) {
+            return true;
+        }
+        if (NONE.equals(codec)) {
+            return false;
+        }
+        throw new IllegalArgumentException("unknown compression " + codec + ", use " + DEFLATE + " or " + NONE);
+    }
+
+    /**
+     * checks if a file is compressed.
+     *
+     * @param id the id of the file
+     * @return true if it is
+     */
+    static boolean isCompressed(final String id) {
+        return id.endsWith(SUFFIX);
+    }
+
+    /**
+     * compresses a sample of content to see if it is worth compressing.
+     *
+     * @param in the content, it is closed
+     * @return true if it is
+     * @throws IOException if it cannot be read
+     */
+    static boolean isCompressible(final InputStream in) throws IOException {
+        byte[] sample = new byte[SAMPLE_SIZE];
+        int length = 0;
+        try {
+            while (length < SAMPLE_SIZE) {
+                int n = in.read(sample, length, SAMPLE_SIZE - length);
+                if (n < 0) {
+                    break;
+                }
+                length += n;
+            }
+        } finally {
+            in.close();
+        }
+        return isCompressible(sample, length);
+    }
+
+    /**
+     * compresses content to see if it shrinks enough.
+     *
+     * @param content the content
+     * @param length  the length of the content
+     * @return true if it does
+     */
+    private static boolean isCompressible(final byte[] content, final int length) {
+        if (length == 0) {
+            return false;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content, 0, length);
+            deflater.finish();
+            // output beyond the limit is not needed, the sample is not compressible then
+            int limit = length * MAX_EIGHTHS / EIGHTHS;
+            byte[] out = new byte[limit + 1];
+            int size = 0;
+            while (!deflater.finished() && size < out.length) {
+                size += deflater.deflate(out, size, out.length - size);
+            }
+            return deflater.finished() && size <= limit;
+        } finally {
+            deflater.end();
+        }
+    }
+
+    /**
+     * starts a compressed file.
+     *
+     * @param out    the file, it is closed if the length cannot be written
+     * @param length the length of the content
+     * @return the stream the content is written to, closing it closes the file
+     * @throws IOException if the length cannot be written
+     */
+    static OutputStream deflating(final OutputStream out, final long length) throws IOException {
+        try {
+            new DataOutputStream(out).writeLong(length);
+        } catch (IOException e) {
+            out.close();
+            throw e;
+        }
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        return new DeflaterOutputStream(out, deflater, BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    deflater.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * reads a compressed file.
+     *
+     * @param in the file, it is closed if the length cannot be read
+     * @return the content, closing it closes the file
+     * @throws IOException if the length cannot be read
+     */
+    static InputStream inflating(final InputStream in) throws IOException {
+        try {
+            new DataInputStream(in).readLong();
+        } catch (IOException e) {
+            in.close();
+            throw e;
+        }
+        return new InflaterInputStream(in, new Inflater(), BUFFER_SIZE) {
+            @Override
+            public void close() throws IOException {
+                try {
+                    super.close();
+                } finally {
+                    inf.end();
+                }
+            }
+        };
+    }
+
+    /**
+     * reads the length of the content of a compressed file.
+     *
+     * @param in the file, it is closed
+     * @return the length
+     * @throws IOException if it cannot be read
+     */
+    static long length(final InputStream in) throws IOException {
+        try (DataInputStream data = new DataInputStream(in)) {
+            return data.readLong();
+        }
+    }
+
+    /**
+     * compresses a string if it is long and compressible.
+     *
+     * @param value the string
+     * @return the deflated UTF-8 bytes, <code>null</code> if it is stored as it is
+     */
+    static byte[] deflate(final String value) {
+        if (value.length() < MIN_STRING_LENGTH) {
+            return null;
+        }
+        byte[] content = value.getBytes(StandardCharsets.UTF_8);
+        ByteArrayOutputStream out = new ByteArrayOutputStream(content.length / 2);
+        Deflater deflater = new Deflater(Deflater.BEST_SPEED);
+        try {
+            deflater.setInput(content);
+            deflater.finish();
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!deflater.finished()) {
+                out.write(buffer, 0, deflater.deflate(buffer));
+            }
+        } finally {
+            deflater.end();
+        }
+        if (out.size() > content.length * MAX_EIGHTHS / EIGHTHS) {
+            return null;
+        }
+        return out.toByteArray();
+    }
+
+    /**
+     * decompresses a string.
+     *
+     * @param deflated the deflated UTF-8 bytes
+     * @return the string
+     */
+    static String inflate(final byte[] deflated) {
+        ByteArrayOutputStream out = new ByteArrayOutputStream(deflated.length * 2);
+        Inflater inflater = new Inflater();
+        try {
+            inflater.setInput(deflated);
+            byte[] buffer = new byte[BUFFER_SIZE];
+            while (!inflater.finished()) {
+                int n = inflater.inflate(buffer);
+                if (n == 0 && inflater.needsInput()) {
+                    throw new IllegalStateException("truncated compressed string");
+                }
+                out.write(buffer, 0, n);
+            }
+        } catch (DataFormatException e) {
+            throw new IllegalStateException("corrupt compressed string", e);
+        } finally {
+            inflater.end();
+        }
+        return new String(out.toByteArray(), StandardCharsets.UTF_8);
+    }
+}
@@ -0,0 +1,474 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.data.DataIdentifier;
+import org.apache.jackrabbit.core.data.DataRecord;
+import org.apache.jackrabbit.core.data.DataStoreException;
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemException;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Read only view of the binary files in the docs folder, as records.
+ * <p>
+ * The records are never handed to jackrabbit: it stores a data store value by its identifier, which the
+ * persistence manager of the version storage or of another workspace cannot resolve. Large files are loaded
+ * as values of a {@link #resource(String)} instead. The identifiers start with {@value #PREFIX} followed by
+ * the id of the file. Small binaries are read from the {@link PackStore} if there is one. Files are written
+ * and deleted by the {@link BinaryFileSystemHelper}.
+ * <p>
+ * The files are spread over fanout folders named by the first hex digits of their id, two for each level,
+ * so a file with the id abcd... is docs/ab/abcd... with one level and docs/ab/cd/abcd... with two.
+ * A file with a {@link Compression#SUFFIX} id is inflated while it is read.
+ * <p>
+ * With a {@link BlobCache}, small binaries are read from memory once they were read, and a cached binary is
+ * not looked for in the filesystem.
+ */
+final class DocsFolder {
+
+    /**
+     * prefix of the identifiers.
+     */
+    static final String PREFIX = "docs:";
+
+    /**
+     * path of the docs folder in the filesystem of the workspace.
+     */
+    static final String FOLDER = "/docs";
+
+    /**
+     * hex digits of the id that name the folder of a level.
+     */
+    private static final int LEVEL_DIGITS = 2;
+
+    private static final int HEX_RADIX = 16;
+
+    private final FileSystem fileSystem;
+
+    private final PackStore packs;
+
+    private final int fanout;
+
+    /**
+     * the cache of small binaries, <code>null</code> if there is none.
+     */
+    private BlobCache cache;
+
+    /**
+     * create a view of the docs folder.
+     *
+     * @param pfileSystem the filesystem of the docs folder
+     * @param ppacks      the packs of small binaries, may be <code>null</code>
+     * @param pfanout     the number of levels of fanout folders
+     */
+    DocsFolder(final FileSystem pfileSystem, final PackStore ppacks, final int pfanout) {
+        this.fileSystem = pfileSystem;
+        this.packs = ppacks;
+        this.fanout = pfanout;
+    }
+
+    /**
+     * sets the cache of small binaries, before the folder is used.
+     *
+     * @param pcache the cache, <code>null</code> for none
+     */
+    void setCache(final BlobCache pcache) {
+        this.cache = pcache;
+    }
+
+    /**
+     * gets the path of a file.
+     *
+     * @param id the file id
+     * @return the path
+     */
+    String path(final String id) {
+        return FOLDER + "/" + folder(id) + "/" + id;
+    }
+
+    /**
+     * gets the fanout folder of a file.
+     *
+     * @param id the file id
+     * @return the folder, relative to the docs folder
+     */
+    String folder(final String id) {
+        StringBuilder folder = new StringBuilder(id.substring(0, LEVEL_DIGITS));
+        for (int level = 1; level < fanout; level++) {
+            folder.append('/').append(id, level * LEVEL_DIGITS, (level + 1) * LEVEL_DIGITS);
+        }
+        return folder.toString();
+    }
+
+    /**
+     * lists all fanout folders of the files, in the order they are created in.
+     *
+     * @return the folders, relative to the docs folder
+     */
+    List<String> folders() {
+        List<String> folders = Collections.singletonList("");
+        for (int level = 0; level < fanout; level++) {
+            List<String> next = new ArrayList<>();
+            for (String parent : folders) {
+                for (int i = 0; i < HEX_RADIX * HEX_RADIX; i++) {
+                    String name = String.format("%02x", i);
+                    if (parent.isEmpty()) {
+                        next.add(name);
+                    } else {
+                        next.add(parent + "/" + name);
+                    }
+                }
+            }
+            folders = next;
+        }
+        return folders;
+    }
+
+    /**
+     * gets the record of a binary if it exists.
+     *
+     * @param identifier the identifier
+     * @return the record, <code>null</code> if there is no such binary
+     * @throws DataStoreException if the identifier is not of the docs folder, or the filesystem fails
+     */
+    DataRecord getRecordIfStored(final DataIdentifier identifier) throws DataStoreException {
+        DataRecord record = getRecord(identifier);
+        if (record instanceof PackRecord || record instanceof CachedRecord) {
+            return record;
+        }
+        try {
+            if (!fileSystem.exists(path(record.getIdentifier().toString().substring(PREFIX.length())))) {
+                return null;
+            }
+        } catch (FileSystemException e) {
+            throw new DataStoreException("check " + identifier, e);
+        }
+        return record;
+    }
+
+    /**
+     * gets the record of a binary. does not check if the file exists, reading a missing file fails.
+     *
+     * @param identifier the identifier
+     * @return the record
+     * @throws DataStoreException if the identifier is not of the docs folder
+     */
+    DataRecord getRecord(final DataIdentifier identifier) throws DataStoreException {
+        String value = identifier.toString();
+        if (!value.startsWith(PREFIX)) {
+            throw new DataStoreException("not a docs record " + identifier);
+        }
+        String id = value.substring(PREFIX.length());
+        if (cache != null) {
+            ByteBuffer content = cache.get(id);
+            if (content != null) {
+                return new CachedRecord(identifier, content);
+            }
+        }
+        if (packs != null && packs.contains(id)) {
+            return new PackRecord(identifier, id);
+        }
+        return new FileRecord(identifier, id);
+    }
+
+    /**
+     * gets a file as a resource, for a value of the file.
+     *
+     * @param id the file id
+     * @return the resource
+     */
+    FileSystemResource resource(final String id) {
+        return new Resource(id);
+    }
+
+    /**
+     * a file of the docs folder as a resource. it reads the record of the file, so a compressed file is
+     * inflated and a cached binary is read from memory. jackrabbit deletes the resource of a value it drops,
+     * the files are shared and collected by the persistence manager, so that does nothing.
+     */
+    private final class Resource extends FileSystemResource {
+
+        private final DataIdentifier identifier;
+
+        /**
+         * create a resource.
+         *
+         * @param pid the id of the file
+         */
+        Resource(final String pid) {
+            super(fileSystem, path(pid));
+            this.identifier = new DataIdentifier(PREFIX + pid);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public boolean exists() throws FileSystemException {
+            try {
+                return getRecordIfStored(identifier) != null;
+            } catch (DataStoreException e) {
+                throw new FileSystemException("check " + identifier, e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public long length() throws FileSystemException {
+            try {
+                return getRecord(identifier).getLength();
+            } catch (DataStoreException e) {
+                throw new FileSystemException("length of " + identifier, e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public InputStream getInputStream() throws FileSystemException {
+            try {
+                return getRecord(identifier).getStream();
+            } catch (DataStoreException e) {
+                throw new FileSystemException("read " + identifier, e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public void delete(final boolean ppruneEmptyParentDirs) {
+            // the file may be shared, unreferenced files are deleted by the persistence manager
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public String toString() {
+            return identifier.toString();
+        }
+    }
+
+    /**
+     * a file of the docs folder.
+     */
+    private final class FileRecord implements DataRecord {
+
+        private final DataIdentifier identifier;
+
+        private final String id;
+
+        private final String path;
+
+        private final boolean compressed;
+
+        /**
+         * create a record.
+         *
+         * @param pidentifier the identifier
+         * @param pid         the id of the file
+         */
+        FileRecord(final DataIdentifier pidentifier, final String pid) {
+            this.identifier = pidentifier;
+            this.id = pid;
+            this.path = path(pid);
+            this.compressed = Compression.isCompressed(pid);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public DataIdentifier getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getReference() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getLength() throws DataStoreException {
+            try {
+                if (compressed) {
+                    return Compression.length(fileSystem.getInputStream(path));
+                }
+                return fileSystem.length(path);
+            } catch (IOException | FileSystemException e) {
+                throw new DataStoreException("Blob not found " + path, e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InputStream getStream() throws DataStoreException {
+            try {
+                InputStream in = fileSystem.getInputStream(path);
+                if (compressed) {
+                    in = Compression.inflating(in);
+                }
+                if (cache != null) {
+                    return cache.load(id, in);
+                }
+                return in;
+            } catch (IOException | FileSystemException e) {
+                throw new DataStoreException("Blob not found " + path, e);
+            }
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getLastModified() {
+            try {
+                return fileSystem.lastModified(path);
+            } catch (FileSystemException e) {
+                return 0;
+            }
+        }
+    }
+
+    /**
+     * a binary in a pack.
+     */
+    private final class PackRecord implements DataRecord {
+
+        private final DataIdentifier identifier;
+
+        private final String id;
+
+        /**
+         * create a record.
+         *
+         * @param pidentifier the identifier
+         * @param pid         the id of the binary
+         */
+        PackRecord(final DataIdentifier pidentifier, final String pid) {
+            this.identifier = pidentifier;
+            this.id = pid;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public DataIdentifier getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getReference() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getLength() throws DataStoreException {
+            long length = packs.length(id);
+            if (length < 0) {
+                throw new DataStoreException("Blob not found " + id);
+            }
+            return length;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InputStream getStream() throws DataStoreException {
+            byte[] content;
+            try {
+                content = packs.read(id);
+            } catch (IOException e) {
+                throw new DataStoreException("read " + id, e);
+            }
+            if (content == null) {
+                throw new DataStoreException("Blob not found " + id);
+            }
+            if (cache != null) {
+                return cache.miss(id, content);
+            }
+            return new ByteArrayInputStream(content);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getLastModified() {
+            return 0;
+        }
+    }
+
+    /**
+     * a binary in the cache.
+     */
+    private final class CachedRecord implements DataRecord {
+
+        private final DataIdentifier identifier;
+
+        private final ByteBuffer content;
+
+        /**
+         * create a record.
+         *
+         * @param pidentifier the identifier
+         * @param pcontent    the cached content
+         */
+        CachedRecord(final DataIdentifier pidentifier, final ByteBuffer pcontent) {
+            this.identifier = pidentifier;
+            this.content = pcontent;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public DataIdentifier getIdentifier() {
+            return identifier;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public String getReference() {
+            return null;
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getLength() {
+            return content.remaining();
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public InputStream getStream() {
+            return cache.hit(content);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public long getLastModified() {
+            return 0;
+        }
+    }
+}
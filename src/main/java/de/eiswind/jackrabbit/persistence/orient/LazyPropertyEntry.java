@@ -0,0 +1,101 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+
+import java.util.List;
+
+/**
+ * Property entry of a loaded bundle that decodes its values when they are first asked for.
+ * <p>
+ * Jackrabbit builds the node state from the property names only and asks for the values when a
+ * property state is created, so resolving a path never decodes the values of the nodes it passes.
+ * The entry keeps the embedded value documents until then, orient parses them on the first field
+ * access. Loaded bundles are shared by the sessions through the bundle cache, so decoding is
+ * guarded, and the values are published by clearing the volatile documents field.
+ */
+final class LazyPropertyEntry extends NodePropBundle.PropertyEntry {
+
+    private volatile List<ODocument> valDocs;
+
+    private final BinaryFileSystemHelper fileSystem;
+
+    private final NameDictionary dictionary;
+
+    /**
+     * create an entry.
+     *
+     * @param id          the property id
+     * @param pvalDocs    the value documents
+     * @param pfileSystem the filesystem of large binaries
+     * @param pdictionary the name dictionary, <code>null</code> if names are embedded documents
+     */
+    LazyPropertyEntry(final PropertyId id, final List<ODocument> pvalDocs,
+                      final BinaryFileSystemHelper pfileSystem, final NameDictionary pdictionary) {
+        super(id);
+        this.valDocs = pvalDocs;
+        this.fileSystem = pfileSystem;
+        this.dictionary = pdictionary;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * decodes the values on the first call.
+     */
+    @Override
+    public InternalValue[] getValues() {
+        if (valDocs != null) {
+            synchronized (this) {
+                List<ODocument> docs = valDocs;
+                if (docs != null) {
+                    super.setValues(BundleMapper.readValues(docs, getType(), fileSystem, dictionary));
+                    valDocs = null;
+                }
+            }
+        }
+        return super.getValues();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized void setValues(final InternalValue[] values) {
+        super.setValues(values);
+        valDocs = null;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * jackrabbit compares the values field, so both entries are decoded first.
+     */
+    @Override
+    public boolean equals(final Object obj) {
+        getValues();
+        if (obj instanceof NodePropBundle.PropertyEntry) {
+            ((NodePropBundle.PropertyEntry) obj).getValues();
+        }
+        return super.equals(obj);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int hashCode() {
+        return super.hashCode();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public String toString() {
+        getValues();
+        return super.toString();
+    }
+}
@@ -0,0 +1,96 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.persistence.util.BundleBinding;
+
+/**
+ * How a persistence manager maps its bundles to documents, shared by all of its {@link BundleMapper}s.
+ */
+final class MapperSettings {
+
+    private final BinaryFileSystemHelper fileSystem;
+
+    private final NameDictionary dictionary;
+
+    private final String chunkClassName;
+
+    private final int chunkSize;
+
+    private final BundleBinding binding;
+
+    private final boolean binary;
+
+    private final boolean lazy;
+
+    /**
+     * create settings.
+     *
+     * @param pfileSystem     the filesystem of large binaries
+     * @param pdictionary     the name dictionary, <code>null</code> to write names as embedded documents
+     * @param pchunkClassName the class of chunk records
+     * @param pchunkSize      the maximum number of child entries per chunk record, 0 to always embed them
+     * @param pbinding        the binding of the binary storage format, <code>null</code> if it cannot be read
+     * @param pbinary         true to write the binary storage format
+     * @param plazy           true to decode the property values of the document format when they are first
+     *                        asked for
+     */
+    MapperSettings(final BinaryFileSystemHelper pfileSystem, final NameDictionary pdictionary,
+                   final String pchunkClassName, final int pchunkSize, final BundleBinding pbinding,
+                   final boolean pbinary, final boolean plazy) {
+        this.fileSystem = pfileSystem;
+        this.dictionary = pdictionary;
+        this.chunkClassName = pchunkClassName;
+        this.chunkSize = pchunkSize;
+        this.binding = pbinding;
+        this.binary = pbinary;
+        this.lazy = plazy;
+    }
+
+    /**
+     * @return the filesystem of large binaries
+     */
+    BinaryFileSystemHelper getFileSystem() {
+        return fileSystem;
+    }
+
+    /**
+     * @return the name dictionary, <code>null</code> to write names as embedded documents
+     */
+    NameDictionary getDictionary() {
+        return dictionary;
+    }
+
+    /**
+     * @return the class of chunk records
+     */
+    String getChunkClassName() {
+        return chunkClassName;
+    }
+
+    /**
+     * @return the maximum number of child entries per chunk record, 0 to always embed them
+     */
+    int getChunkSize() {
+        return chunkSize;
+    }
+
+    /**
+     * @return the binding of the binary storage format
+     */
+    BundleBinding getBinding() {
+        return binding;
+    }
+
+    /**
+     * @return true to write the binary storage format
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * @return true to decode property values when they are first asked for
+     */
+    boolean isLazy() {
+        return lazy;
+    }
+}
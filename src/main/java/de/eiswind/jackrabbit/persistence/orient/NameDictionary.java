@@ -0,0 +1,177 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
+import com.orientechnologies.orient.core.iterator.ORecordIteratorClass;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+
+/**
+ * Workspace wide dictionary that maps the names in bundle documents to ints.
+ * <p>
+ * Every name has a record with its index, namespace uri and local name in a class of its own. A new name
+ * is saved in the transaction of the bundle that uses it first, so a bundle is never committed without its
+ * names, and a name that was rolled back is forgotten again. All names are read when the persistence
+ * manager starts, every index is decoded to one shared {@link Name} instance. The indexes of names
+ * imported from the name index file of earlier versions are 24 bit hashes, not dense from zero, so the
+ * names are kept in a map by index.
+ */
+final class NameDictionary {
+
+    /**
+     * the field of a name record holding the index.
+     */
+    static final String INDEX = "index";
+
+    /**
+     * the field of a name record holding the namespace uri.
+     */
+    static final String URI = "uri";
+
+    /**
+     * the field of a name record holding the local name.
+     */
+    static final String LOCAL = "local";
+
+    private final String className;
+
+    private final ConcurrentMap<Name, Integer> indexes = new ConcurrentHashMap<Name, Integer>();
+
+    private final ConcurrentMap<Integer, Name> names = new ConcurrentHashMap<Integer, Name>();
+
+    /**
+     * the names added in the running transaction, under the monitor of the dictionary.
+     */
+    private final Map<Name, Integer> pending = new HashMap<Name, Integer>();
+
+    /**
+     * the index of the next new name, under the monitor of the dictionary.
+     */
+    private int next;
+
+    /**
+     * create a dictionary.
+     *
+     * @param pclassName the class of the name records
+     */
+    NameDictionary(final String pclassName) {
+        this.className = pclassName;
+    }
+
+    /**
+     * reads all names.
+     *
+     * @param database the database of the current thread
+     */
+    synchronized void load(final ODatabaseRecord database) {
+        for (ODocument doc : new ORecordIteratorClass<ODocument>(database, database, className, true)) {
+            int index = ((Number) doc.field(INDEX)).intValue();
+            Name name = NameFactoryImpl.getInstance().create((String) doc.field(URI), (String) doc.field(LOCAL));
+            indexes.put(name, index);
+            names.put(index, name);
+            next = Math.max(next, index + 1);
+        }
+    }
+
+    /**
+     * gets the index of a name, new names are saved in the running transaction.
+     *
+     * @param name     the name
+     * @param database the database of the current thread
+     * @return the index
+     */
+    int toIndex(final Name name, final ODatabaseRecord database) {
+        Integer index = indexes.get(name);
+        if (index == null) {
+            index = add(name, database);
+        }
+        return index;
+    }
+
+    /**
+     * saves a new name, unless another write was first.
+     *
+     * @param name     the name
+     * @param database the database of the current thread
+     * @return the index
+     */
+    private synchronized int add(final Name name, final ODatabaseRecord database) {
+        Integer index = indexes.get(name);
+        if (index == null) {
+            index = pending.get(name);
+        }
+        if (index != null) {
+            return index;
+        }
+        index = next++;
+        save(index, name);
+        // readers can find the name as soon as a bundle that uses it is committed
+        names.put(index, name);
+        if (database.getTransaction().isActive()) {
+            pending.put(name, index);
+        } else {
+            indexes.put(name, index);
+        }
+        return index;
+    }
+
+    /**
+     * saves a name record.
+     *
+     * @param index the index
+     * @param name  the name
+     */
+    private void save(final int index, final Name name) {
+        ODocument doc = new ODocument(className);
+        doc.field(INDEX, index, OType.INTEGER);
+        doc.field(URI, name.getNamespaceURI(), OType.STRING);
+        doc.field(LOCAL, name.getLocalName(), OType.STRING);
+        doc.save();
+    }
+
+    /**
+     * keeps the names of a committed transaction.
+     */
+    synchronized void committed() {
+        indexes.putAll(pending);
+        pending.clear();
+    }
+
+    /**
+     * forgets the names of a transaction that was rolled back, their indexes are given out again.
+     */
+    synchronized void rolledBack() {
+        for (Integer index : pending.values()) {
+            names.remove(index);
+        }
+        next -= pending.size();
+        pending.clear();
+    }
+
+    /**
+     * gets the name of an index.
+     *
+     * @param index the index
+     * @return the shared name instance
+     */
+    Name toName(final int index) {
+        Name name = names.get(index);
+        if (name == null) {
+            throw new IllegalStateException("name index " + index + " is not in the dictionary");
+        }
+        return name;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "names=" + names.size();
+    }
+}
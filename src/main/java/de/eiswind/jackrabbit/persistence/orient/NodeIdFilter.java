@@ -0,0 +1,150 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Bloom filter over the ids of the stored bundles. Jackrabbit checks every new node id for existence
+ * before the node is created, so most checks during node creation and imports are misses, and a miss
+ * answered by the filter never touches the database.
+ * <p>
+ * The filter is built from the uuid index when the persistence manager starts, and the ids of new
+ * bundles are added before they are committed. Deleted ids cannot be removed and stay false positives,
+ * which are answered by the index. The bits are set atomically, readers need no lock.
+ */
+final class NodeIdFilter {
+
+    /**
+     * the smallest number of ids a filter is sized for.
+     */
+    static final long MIN_CAPACITY = 64 * 1024;
+
+    /**
+     * bits per id, about one false positive in a hundred with {@value #HASH_COUNT} hashes.
+     */
+    private static final int BITS_PER_ID = 10;
+
+    private static final int HASH_COUNT = 7;
+
+    private static final int WORD_SHIFT = 6;
+
+    private static final int WORD_MASK = 63;
+
+    /**
+     * constants of the 64 bit finalizer of murmur3, node ids are not all random.
+     */
+    private static final long MIX_1 = 0xff51afd7ed558ccdL;
+
+    private static final long MIX_2 = 0xc4ceb9fe1a85ec53L;
+
+    private static final int MIX_SHIFT = 33;
+
+    private final AtomicLongArray words;
+
+    private final long bitCount;
+
+    private final long capacity;
+
+    private final AtomicLong count = new AtomicLong();
+
+    private final AtomicLong negatives = new AtomicLong();
+
+    /**
+     * create an empty filter.
+     *
+     * @param pcapacity the number of ids the filter is sized for
+     */
+    NodeIdFilter(final long pcapacity) {
+        this.capacity = Math.max(MIN_CAPACITY, pcapacity);
+        this.words = new AtomicLongArray((int) ((capacity * BITS_PER_ID + WORD_MASK) >>> WORD_SHIFT));
+        this.bitCount = (long) words.length() << WORD_SHIFT;
+    }
+
+    /**
+     * adds an id.
+     *
+     * @param id the id
+     */
+    void add(final NodeId id) {
+        long h1 = mix(id.getMostSignificantBits() ^ mix(id.getLeastSignificantBits()));
+        long h2 = mix(h1 ^ id.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            int word = (int) (bit >>> WORD_SHIFT);
+            long mask = 1L << (bit & WORD_MASK);
+            long old = words.get(word);
+            while ((old & mask) == 0 && !words.compareAndSet(word, old, old | mask)) {
+                old = words.get(word);
+            }
+        }
+        count.incrementAndGet();
+    }
+
+    /**
+     * checks if an id may have been added.
+     *
+     * @param id the id
+     * @return false if the id was certainly never added
+     */
+    boolean mightContain(final NodeId id) {
+        long h1 = mix(id.getMostSignificantBits() ^ mix(id.getLeastSignificantBits()));
+        long h2 = mix(h1 ^ id.getLeastSignificantBits()) | 1;
+        for (int i = 0; i < HASH_COUNT; i++) {
+            long bit = Math.floorMod(h1 + i * h2, bitCount);
+            if ((words.get((int) (bit >>> WORD_SHIFT)) & (1L << (bit & WORD_MASK))) == 0) {
+                negatives.incrementAndGet();
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * checks if the filter can take more ids without getting less selective than it was sized for.
+     *
+     * @param more the number of ids to add
+     * @return true if the filter should be rebuilt larger first
+     */
+    boolean isFull(final int more) {
+        return count.get() + more > capacity;
+    }
+
+    /**
+     * @return the number of added ids
+     */
+    long getCount() {
+        return count.get();
+    }
+
+    /**
+     * @return the number of checks that were answered without the database
+     */
+    long getNegativeCount() {
+        return negatives.get();
+    }
+
+    /**
+     * spreads the bits of a long.
+     *
+     * @param pvalue the value
+     * @return the mixed value
+     */
+    private static long mix(final long pvalue) {
+        long h = pvalue;
+        h ^= h >>> MIX_SHIFT;
+        h *= MIX_1;
+        h ^= h >>> MIX_SHIFT;
+        h *= MIX_2;
+        h ^= h >>> MIX_SHIFT;
+        return h;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return "ids=" + count.get() + " capacity=" + capacity + " negatives=" + negatives.get();
+    }
+}
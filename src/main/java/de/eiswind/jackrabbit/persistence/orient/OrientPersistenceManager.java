@@ -4,23 +4,28 @@
 package de.eiswind.jackrabbit.persistence.orient;
 
 import com.orientechnologies.common.exception.OException;
+import com.orientechnologies.orient.core.Orient;
 import com.orientechnologies.orient.core.config.OGlobalConfiguration;
 import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentPool;
 import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
 import com.orientechnologies.orient.core.db.record.ODatabaseRecord;
 import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.index.OCompositeKey;
 import com.orientechnologies.orient.core.index.OIndex;
+import com.orientechnologies.orient.core.index.OIndexCursor;
 import com.orientechnologies.orient.core.index.OIndexManagerProxy;
+import com.orientechnologies.orient.core.iterator.ORecordIteratorClass;
 import com.orientechnologies.orient.core.metadata.schema.OClass;
 import com.orientechnologies.orient.core.metadata.schema.OProperty;
 import com.orientechnologies.orient.core.metadata.schema.OSchema;
 import com.orientechnologies.orient.core.metadata.schema.OType;
-import com.orientechnologies.orient.core.query.OQuery;
+import com.orientechnologies.orient.core.record.ORecordInternal;
 import com.orientechnologies.orient.core.record.impl.ODocument;
-import com.orientechnologies.orient.core.sql.query.OSQLSynchQuery;
+import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.fs.BasedFileSystem;
 import org.apache.jackrabbit.core.fs.FileSystem;
-import org.apache.jackrabbit.core.fs.FileSystemException;
 import org.apache.jackrabbit.core.id.NodeId;
 import org.apache.jackrabbit.core.id.PropertyId;
 import org.apache.jackrabbit.core.persistence.PMContext;
@@ -34,15 +39,25 @@ import org.apache.jackrabbit.core.state.ChangeLog;
 import org.apache.jackrabbit.core.state.ItemStateException;
 import org.apache.jackrabbit.core.state.NoSuchItemStateException;
 import org.apache.jackrabbit.core.state.NodeReferences;
+import org.apache.jackrabbit.core.util.StringIndex;
+import org.apache.jackrabbit.spi.Name;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import javax.jcr.PropertyType;
+import java.io.IOException;
+import java.io.InputStream;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+import java.util.function.Consumer;
 import java.util.function.Function;
 
 /**
@@ -64,16 +79,34 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
      */
     private static final Logger LOG = LoggerFactory.getLogger(OrientPersistenceManager.class);
     private static final int POOL_MAX_SIZE = 50;
-    private static final int SB_CAPACITY = 35;
-    private static final int THIRTEEN = 13;
-    private static final int EIGHTEEN = 18;
-    private static final int TWENTYTHREE = 23;
-    private static final int EIGHT = 8;
+    private static final long BYTES_PER_MB = 1024 * 1024;
+    private static final long DEFAULT_RID_CACHE_SIZE = 8 * BYTES_PER_MB;
+    private static final long DEFAULT_SNAPSHOT_CACHE_SIZE = 16 * BYTES_PER_MB;
+    private static final long DEFAULT_REFS_CACHE_SIZE = 2 * BYTES_PER_MB;
+    private static final int DEFAULT_CHILD_CHUNK_SIZE = 1000;
+    private static final int DEFAULT_PREFETCH_CHILD_COUNT = 0;
+    private static final long DEFAULT_PREFETCH_CACHE_SIZE = 8 * BYTES_PER_MB;
+    private static final long DEFAULT_BLOB_CACHE_SIZE = 16 * BYTES_PER_MB;
+    private static final long MILLIS_PER_MINUTE = 60 * 1000;
+    private static final long DEFAULT_BLOB_GC_INTERVAL = 0;
+    private static final int DEFAULT_BLOB_GC_RATE = 10000;
+    private static final long DEFAULT_BLOB_GC_SAFETY_WINDOW = 60;
 
     /**
-     * flag indicating if this manager was initialized.
+     * stores bundles as documents with a nested document for every name, property and value.
      */
-    private boolean initialized;
+    public static final String STORAGE_FORMAT_DOCUMENT = "document";
+
+    /**
+     * stores bundles in the jackrabbit bundle serialization, in a single binary field.
+     */
+    public static final String STORAGE_FORMAT_BINARY = "binary";
+
+    /**
+     * flag indicating if this manager was initialized. read without locking by
+     * the concurrent read path.
+     */
+    private volatile boolean initialized;
 
     /**
      * prefix for orient classnames.
@@ -84,9 +117,6 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
     private String user = "admin";
     private String pass = "admin";
 
-
-    private FileSystem itemFs;
-
     private ODatabaseDocumentPool pool;
 
     /**
@@ -164,160 +194,1329 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
 
 
     /**
-     * the minimum size of a property until it gets written to the blob store.
+     * gets the size of the record id cache.
+     *
+     * @return the size in megabytes
      */
-    private int minBlobSize = MIN_BLOB_SIZE;
+    public final String getRidCacheSize() {
+        return Long.toString(ridCacheSize / BYTES_PER_MB);
+    }
 
     /**
-     * the bundle binding.
+     * sets the size of the record id cache.
+     *
+     * @param size the size in megabytes
      */
-    private BundleBinding binding;
+    public final void setRidCacheSize(final String size) {
+        this.ridCacheSize = Long.parseLong(size.trim()) * BYTES_PER_MB;
+    }
 
+    /**
+     * gets the number of bundle loads that found the record id in the cache.
+     *
+     * @return the hit count
+     */
+    public final long getRidCacheHits() {
+        return ridCache.getHitCount();
+    }
 
     /**
-     * flag for error handling.
+     * gets the number of bundle loads that had to probe the uuid index.
+     *
+     * @return the miss count
      */
-    private ErrorHandling errorHandling = new ErrorHandling();
+    public final long getRidCacheMisses() {
+        return ridCache.getMissCount();
+    }
 
     /**
-     * the name of this persistence manager.
+     * gets the size of the reference existence cache.
+     *
+     * @return the size in megabytes
      */
-    private String name = super.toString();
+    public final String getRefsCacheSize() {
+        return Long.toString(refsCacheSize / BYTES_PER_MB);
+    }
 
+    /**
+     * sets the size of the reference existence cache.
+     *
+     * @param size the size in megabytes
+     */
+    public final void setRefsCacheSize(final String size) {
+        this.refsCacheSize = Long.parseLong(size.trim()) * BYTES_PER_MB;
+    }
 
-    private String bundleClassName;
-    private String refsClassName;
+    /**
+     * gets the number of bundle existence checks that were answered by the bundle filter.
+     *
+     * @return the number of checks that did not touch the database
+     */
+    public final long getBundleFilterNegatives() {
+        return bundleFilter.getNegativeCount();
+    }
 
     /**
-     * file system where BLOB data is stored.
+     * gets the number of reference lookups that were answered from the cache.
+     *
+     * @return the hit count
      */
-    private OrientPersistenceManager.CloseableBLOBStore blobStore;
+    public final long getRefsCacheHits() {
+        return refsCache.getHitCount();
+    }
 
+    /**
+     * gets the number of reference lookups that had to probe the target id index.
+     *
+     * @return the miss count
+     */
+    public final long getRefsCacheMisses() {
+        return refsCache.getMissCount();
+    }
 
-    private int blobFSBlockSize;
+    /**
+     * gets the size of the bundle snapshot cache.
+     *
+     * @return the size in megabytes
+     */
+    public final String getSnapshotCacheSize() {
+        return Long.toString(snapshotCacheSize / BYTES_PER_MB);
+    }
 
+    /**
+     * sets the size of the bundle snapshot cache. bundles without a snapshot are written in full.
+     *
+     * @param size the size in megabytes
+     */
+    public final void setSnapshotCacheSize(final String size) {
+        this.snapshotCacheSize = Long.parseLong(size.trim()) * BYTES_PER_MB;
+    }
 
-    private Map<NodeId, BundleMapper> documentMap = new HashMap<NodeId, BundleMapper>();
+    /**
+     * gets the maximum number of child entries per chunk record.
+     *
+     * @return the chunk size
+     */
+    public final String getChildChunkSize() {
+        return Integer.toString(childChunkSize);
+    }
 
     /**
-     * Sets the error handling behaviour of this manager. See {@link ErrorHandling}
-     * for details about the flags.
+     * sets the maximum number of child entries per chunk record. nodes with more children store them in
+     * separate chunk records, so adding or removing a child only rewrites one chunk. 0 always embeds the
+     * child entries in the bundle document.
      *
-     * @param myErrorHandling the error handling
+     * @param size the chunk size
      */
-    public final void setErrorHandling(final String myErrorHandling) {
-        this.errorHandling = new ErrorHandling(myErrorHandling);
+    public final void setChildChunkSize(final String size) {
+        this.childChunkSize = Integer.parseInt(size.trim());
     }
 
     /**
-     * Returns the error handling configuration of this manager.
+     * gets the number of child bundles that are read ahead when a bundle is loaded.
      *
-     * @return the error handling configuration of this manager
+     * @return the child count
      */
-    public final String getErrorHandling() {
-        return errorHandling.toString();
+    public final String getPrefetchChildCount() {
+        return Integer.toString(prefetchChildCount);
     }
 
+    /**
+     * sets the number of child bundles that are read ahead when a bundle is loaded. the first children
+     * are read with one multi key lookup and kept until jackrabbit asks for them. prefetching pauses by
+     * itself while the prefetched bundles are not used. 0, the default, disables prefetching. with an
+     * embedded database a record is read about as fast as a multi key lookup, prefetching pays off with
+     * a remote one.
+     *
+     * @param count the child count
+     */
+    public final void setPrefetchChildCount(final String count) {
+        this.prefetchChildCount = Integer.parseInt(count.trim());
+    }
 
     /**
-     * {@inheritDoc}
+     * gets the size of the cache of prefetched bundles.
+     *
+     * @return the size in megabytes
      */
-    @Override
-    protected final BLOBStore getBlobStore() {
-        return blobStore;
+    public final String getPrefetchCacheSize() {
+        return Long.toString(prefetchCacheSize / BYTES_PER_MB);
     }
 
     /**
-     * should blob store be used.
+     * sets the size of the cache of prefetched bundles.
      *
-     * @return the if blob store is used
+     * @param size the size in megabytes
      */
-    public final boolean useLocalFsBlobStore() {
-        return blobFSBlockSize == 0;
+    public final void setPrefetchCacheSize(final String size) {
+        this.prefetchCacheSize = Long.parseLong(size.trim()) * BYTES_PER_MB;
     }
 
+    /**
+     * gets whether property values are decoded when they are first asked for.
+     *
+     * @return "true" or "false"
+     */
+    public final String getLazyPropertyValues() {
+        return Boolean.toString(lazyPropertyValues);
+    }
 
-    private BinaryFileSystemHelper fileSystem;
+    /**
+     * sets whether the property values of bundles in the document storage format are decoded when they are
+     * first asked for, instead of when the bundle is loaded. resolving a path then only decodes the names
+     * and child entries of the nodes it passes. on by default.
+     *
+     * @param lazy "true" or "false"
+     */
+    public final void setLazyPropertyValues(final String lazy) {
+        this.lazyPropertyValues = Boolean.parseBoolean(lazy.trim());
+    }
 
     /**
-     * {@inheritDoc}
+     * gets the size below which binaries are stored in pack files.
+     *
+     * @return the size in bytes
      */
-    public final void init(final PMContext context) throws Exception {
-        if (initialized) {
-            throw new IllegalStateException("already initialized");
-        }
-        this.fileSystem = new BinaryFileSystemHelper(context.getFileSystem());
+    public final String getMaxPackedBlobSize() {
+        return Integer.toString(maxPackedBlobSize);
+    }
 
-        OGlobalConfiguration.STORAGE_KEEP_OPEN.setValue(false);
-        ODatabaseDocumentTx db;
+    /**
+     * sets the size below which binaries that are not embedded in the documents are appended to pack files
+     * instead of getting a file each. only used without a data store and with a local filesystem. 0 stores
+     * every binary in its own file.
+     *
+     * @param size the size in bytes
+     */
+    public final void setMaxPackedBlobSize(final String size) {
+        this.maxPackedBlobSize = Integer.parseInt(size.trim());
+    }
 
-        db = new ODatabaseDocumentTx(url);
+    /**
+     * gets the levels of fanout folders of the binary files.
+     *
+     * @return the levels
+     */
+    public final String getBlobFanout() {
+        return Integer.toString(blobFanout);
+    }
 
-        if (!db.exists()) {
-            db.create();
+    /**
+     * sets the levels of fanout folders the binary files of a new docs folder are spread over, each level
+     * has 256 folders. 1 by default, 2 is meant for millions of files. an existing docs folder keeps its
+     * levels.
+     *
+     * @param fanout 1 or 2
+     */
+    public final void setBlobFanout(final String fanout) {
+        this.blobFanout = Integer.parseInt(fanout.trim());
+    }
+
+    /**
+     * gets whether binary files are forced to the disk before a commit.
+     *
+     * @return "true" or "false"
+     */
+    public final String getSyncBlobs() {
+        return Boolean.toString(syncBlobs);
+    }
+
+    /**
+     * sets whether the binary files and packed binaries written by a commit are forced to the disk, all
+     * together, before the documents that reference them are committed. only used with a local filesystem,
+     * off by default.
+     *
+     * @param sync "true" or "false"
+     */
+    public final void setSyncBlobs(final String sync) {
+        this.syncBlobs = Boolean.parseBoolean(sync.trim());
+    }
+
+    /**
+     * gets the number of threads that write binaries while a change log is staged.
+     *
+     * @return the number of threads
+     */
+    public final String getBlobWriteThreads() {
+        return Integer.toString(blobWriteThreads);
+    }
+
+    /**
+     * sets the number of threads that write the binaries of a change log in parallel, starting when their
+     * bundle is staged. the commit waits for them before the documents are committed. 4 by default, 0
+     * writes them one after another while the documents are written.
+     *
+     * @param threads the number of threads
+     */
+    public final void setBlobWriteThreads(final String threads) {
+        this.blobWriteThreads = Integer.parseInt(threads.trim());
+    }
+
+    /**
+     * gets the compression of binary files and long strings.
+     *
+     * @return "deflate" or "none"
+     */
+    public final String getCompression() {
+        return compression;
+    }
+
+    /**
+     * sets the compression of binary files and long strings. with "deflate", files in the docs folder and
+     * strings of 1024 characters and more are deflated if a sample of them compresses well, "none" by
+     * default. values written before keep how they are stored, so it can be changed at any time.
+     *
+     * @param pcompression "deflate" or "none"
+     */
+    public final void setCompression(final String pcompression) {
+        String codec = pcompression.trim();
+        Compression.isEnabled(codec);
+        this.compression = codec;
+    }
+
+    /**
+     * gets the size of the cache of small binaries.
+     *
+     * @return the size in megabytes
+     */
+    public final String getBlobCacheSize() {
+        return Long.toString(blobCacheSize / BYTES_PER_MB);
+    }
+
+    /**
+     * sets the size of the cache of small binaries of the docs folder, 16 by default, 0 for no cache.
+     * binaries of up to 256 kB are kept once they were read, the least recently used ones are evicted by
+     * their size.
+     *
+     * @param size the size in megabytes
+     */
+    public final void setBlobCacheSize(final String size) {
+        this.blobCacheSize = Long.parseLong(size.trim()) * BYTES_PER_MB;
+    }
+
+    /**
+     * gets whether the cache of small binaries is kept off heap.
+     *
+     * @return "true" or "false"
+     */
+    public final String getBlobCacheOffHeap() {
+        return Boolean.toString(blobCacheOffHeap);
+    }
 
+    /**
+     * sets whether the cache of small binaries keeps them in direct buffers outside of the heap, which need
+     * a large enough -XX:MaxDirectMemorySize. off by default.
+     *
+     * @param offHeap "true" or "false"
+     */
+    public final void setBlobCacheOffHeap(final String offHeap) {
+        this.blobCacheOffHeap = Boolean.parseBoolean(offHeap.trim());
+    }
+
+    /**
+     * gets the number of binary reads that were served from the cache.
+     *
+     * @return the hit count, 0 without a cache
+     */
+    public final long getBlobCacheHits() {
+        if (blobCache == null) {
+            return 0;
         }
+        return blobCache.getHitCount();
+    }
 
-        pool = new ODatabaseDocumentPool(url, "admin", "admin");
-        pool.setup(1, POOL_MAX_SIZE);
-        super.init(context);
+    /**
+     * gets the number of binary reads that went to a file or a pack.
+     *
+     * @return the miss count, 0 without a cache
+     */
+    public final long getBlobCacheMisses() {
+        if (blobCache == null) {
+            return 0;
+        }
+        return blobCache.getMissCount();
+    }
 
-        // load namespaces
-        binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
-        binding.setMinBlobSize(minBlobSize);
+    /**
+     * gets the share of binary reads that were served from the cache.
+     *
+     * @return the hit rate in percent, 0 without a cache
+     */
+    public final double getBlobCacheHitRate() {
+        if (blobCache == null) {
+            return 0;
+        }
+        return blobCache.getHitRate();
+    }
 
+    /**
+     * gets the minutes between garbage collections of the binaries.
+     *
+     * @return the interval
+     */
+    public final String getBlobGcInterval() {
+        return Long.toString(blobGcInterval);
+    }
 
-        this.name = context.getHomeDir().getName();
+    /**
+     * sets the minutes between garbage collections of the binaries in the docs folder. a collection scans
+     * all bundle documents and deletes the binaries none of them references. 0, the default, disables it, the
+     * binaries dropped by commits are still deleted through their tombstones.
+     *
+     * @param interval the interval in minutes
+     */
+    public final void setBlobGcInterval(final String interval) {
+        this.blobGcInterval = Long.parseLong(interval.trim());
+    }
 
+    /**
+     * gets the rate of the garbage collection of the binaries.
+     *
+     * @return documents and binaries per second
+     */
+    public final String getBlobGcRate() {
+        return Integer.toString(blobGcRate);
+    }
 
-        runWithDatabase(database -> {
+    /**
+     * sets the number of bundle documents and binaries the garbage collection checks per second, so it does
+     * not compete with the sessions for the disk. 0 does not throttle it.
+     *
+     * @param rate documents and binaries per second
+     */
+    public final void setBlobGcRate(final String rate) {
+        this.blobGcRate = Integer.parseInt(rate.trim());
+    }
 
-            OSchema schema = database.getMetadata().getSchema();
-            bundleClassName = getSchemaObjectPrefix() + name + "Bundle";
-            refsClassName = getSchemaObjectPrefix() + name + "Refs";
-            OClass bundleClass = schema.getClass(bundleClassName);
-            OClass vertexClass = schema.getClass("V");
-            if (bundleClass == null) {
-                bundleClass = schema.createClass(bundleClassName, vertexClass);
-                OProperty id = bundleClass.createProperty("uuid", OType.STRING);
-                id.createIndex(OClass.INDEX_TYPE.UNIQUE);
-                schema.save();
-            }
+    /**
+     * gets the safety window of the garbage collection of the binaries.
+     *
+     * @return the window in minutes
+     */
+    public final String getBlobGcSafetyWindow() {
+        return Long.toString(blobGcSafetyWindow);
+    }
 
-            OClass refsClass = schema.getClass(refsClassName);
-            if (refsClass == null) {
-                refsClass = schema.createClass(refsClassName, vertexClass);
-                OProperty id = refsClass.createProperty("targetuuid", OType.STRING);
-                id.createIndex(OClass.INDEX_TYPE.UNIQUE);
-                schema.save();
-            }
-            return null;
-        });
+    /**
+     * sets the minutes an unreferenced binary is kept after it was written, as jackrabbit may still hand out
+     * values it read before the binary was dropped.
+     *
+     * @param window the window in minutes
+     */
+    public final void setBlobGcSafetyWindow(final String window) {
+        this.blobGcSafetyWindow = Long.parseLong(window.trim());
+    }
 
+    /**
+     * gets the progress of the garbage collection of the binaries.
+     *
+     * @return the phase and the counts of the running or last collection
+     */
+    public final String getBlobGcProgress() {
+        return String.valueOf(blobCollector);
+    }
 
-        initialized = true;
+    /**
+     * runs a garbage collection of the binaries in the docs folder now, in the calling thread. waits for a
+     * running collection first.
+     *
+     * @throws InterruptedException if the collection was interrupted
+     */
+    public final void collectBlobs() throws InterruptedException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        blobCollector.collect();
+    }
+
+    /**
+     * gets the storage format of bundles.
+     *
+     * @return {@link #STORAGE_FORMAT_DOCUMENT} or {@link #STORAGE_FORMAT_BINARY}
+     */
+    public final String getStorageFormat() {
+        return storageFormat;
+    }
+
+    /**
+     * sets the storage format that bundles are written in. the binary format stores the jackrabbit
+     * bundle serialization and keeps only uuid, parentuuid and primaryType as fields. it is more compact
+     * and faster to read, but its properties cannot be queried in orient and large child lists are not chunked.
+     * bundles are read in the format they were written in, either one is converted on its next write.
+     *
+     * @param format {@link #STORAGE_FORMAT_DOCUMENT} or {@link #STORAGE_FORMAT_BINARY}
+     */
+    public final void setStorageFormat(final String format) {
+        String value = format.trim();
+        if (!STORAGE_FORMAT_DOCUMENT.equals(value) && !STORAGE_FORMAT_BINARY.equals(value)) {
+            throw new IllegalArgumentException("unknown storage format: " + format);
+        }
+        this.storageFormat = value;
+    }
+
+    /**
+     * the storage format of bundles.
+     */
+    private String storageFormat = STORAGE_FORMAT_DOCUMENT;
+
+    /**
+     * the minimum size of a property until it gets written to the blob store.
+     */
+    private int minBlobSize = MIN_BLOB_SIZE;
+
+    /**
+     * the bundle binding.
+     */
+    private BundleBinding binding;
+
+    /**
+     * the names of all bundle documents of this workspace.
+     */
+    private NameDictionary nameDictionary;
+
+    /**
+     * how bundles are mapped to documents.
+     */
+    private MapperSettings mapperSettings;
+
+
+    /**
+     * flag for error handling.
+     */
+    private ErrorHandling errorHandling = new ErrorHandling();
+
+    /**
+     * the name of this persistence manager.
+     */
+    private String name = super.toString();
+
+
+    private String bundleClassName;
+    private String refsClassName;
+    private String referenceClassName;
+    private String childrenClassName;
+    private String tombstoneClassName;
+    private String nameClassName;
+
+    /**
+     * the maximum number of child entries per chunk record.
+     */
+    private int childChunkSize = DEFAULT_CHILD_CHUNK_SIZE;
+
+    /**
+     * file system where BLOB data is stored.
+     */
+    private OrientPersistenceManager.CloseableBLOBStore blobStore;
+
+
+    private int blobFSBlockSize;
+
+
+    private Map<NodeId, BundleMapper> documentMap = new HashMap<NodeId, BundleMapper>();
+
+    /**
+     * the writes of the change log currently being stored. only set while
+     * {@link #store(ChangeLog)} holds the monitor.
+     */
+    private ChangeLogBatch batch;
+
+    /**
+     * size of the record id cache in bytes.
+     */
+    private long ridCacheSize = DEFAULT_RID_CACHE_SIZE;
+
+    /**
+     * record ids of bundle documents by node id.
+     */
+    private RecordIdCache ridCache;
+
+    /**
+     * size of the reference existence cache in bytes.
+     */
+    private long refsCacheSize = DEFAULT_REFS_CACHE_SIZE;
+
+    /**
+     * whether nodes are targets of references.
+     */
+    private ReferenceExistenceCache refsCache;
+
+    /**
+     * the number of child bundles read ahead when a bundle is loaded.
+     */
+    private int prefetchChildCount = DEFAULT_PREFETCH_CHILD_COUNT;
+
+    /**
+     * size of the cache of prefetched bundles in bytes.
+     */
+    private long prefetchCacheSize = DEFAULT_PREFETCH_CACHE_SIZE;
+
+    /**
+     * whether property values are decoded when they are first asked for.
+     */
+    private boolean lazyPropertyValues = true;
+
+    /**
+     * binaries smaller than this are stored in pack files.
+     */
+    private int maxPackedBlobSize = BinaryFileSystemHelper.DEFAULT_MAX_PACKED_SIZE;
+
+    /**
+     * levels of fanout folders of the binary files.
+     */
+    private int blobFanout = BinaryFileSystemHelper.DEFAULT_FANOUT;
+
+    /**
+     * whether binary files are forced to the disk before a commit.
+     */
+    private boolean syncBlobs;
+
+    /**
+     * threads that write the binaries of a change log in parallel.
+     */
+    private int blobWriteThreads = BinaryFileSystemHelper.DEFAULT_WRITE_THREADS;
+
+    /**
+     * the compression of binary files and long strings.
+     */
+    private String compression = Compression.NONE;
+
+    /**
+     * the size of the cache of small binaries in bytes.
+     */
+    private long blobCacheSize = DEFAULT_BLOB_CACHE_SIZE;
+
+    /**
+     * whether the cache of small binaries is kept off heap.
+     */
+    private boolean blobCacheOffHeap;
+
+    /**
+     * the cache of small binaries, <code>null</code> if there is none.
+     */
+    private BlobCache blobCache;
+
+    /**
+     * minutes between garbage collections of the binaries.
+     */
+    private long blobGcInterval = DEFAULT_BLOB_GC_INTERVAL;
+
+    /**
+     * documents and binaries the garbage collection checks per second.
+     */
+    private int blobGcRate = DEFAULT_BLOB_GC_RATE;
+
+    /**
+     * minutes after which an unreferenced binary may be deleted.
+     */
+    private long blobGcSafetyWindow = DEFAULT_BLOB_GC_SAFETY_WINDOW;
+
+    /**
+     * the garbage collection of the binaries in the docs folder.
+     */
+    private BlobCollector blobCollector;
+
+    /**
+     * the child bundles read ahead.
+     */
+    private BundlePrefetcher prefetcher;
+
+    /**
+     * the ids of the stored bundles, answers most existence checks for new nodes. replaced by a larger
+     * filter when it is full.
+     */
+    private volatile NodeIdFilter bundleFilter;
+
+    /**
+     * size of the bundle snapshot cache in bytes.
+     */
+    private long snapshotCacheSize = DEFAULT_SNAPSHOT_CACHE_SIZE;
+
+    /**
+     * what the bundle documents were last written with, used to update them without mapping and
+     * parsing their unchanged embedded documents again.
+     */
+    private ConcurrentCache<NodeId, BundleSnapshot> snapshots;
+
+    /**
+     * Sets the error handling behaviour of this manager. See {@link ErrorHandling}
+     * for details about the flags.
+     *
+     * @param myErrorHandling the error handling
+     */
+    public final void setErrorHandling(final String myErrorHandling) {
+        this.errorHandling = new ErrorHandling(myErrorHandling);
+    }
+
+    /**
+     * Returns the error handling configuration of this manager.
+     *
+     * @return the error handling configuration of this manager
+     */
+    public final String getErrorHandling() {
+        return errorHandling.toString();
+    }
+
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    protected final BLOBStore getBlobStore() {
+        return blobStore;
+    }
+
+    /**
+     * should blob store be used.
+     *
+     * @return the if blob store is used
+     */
+    public final boolean useLocalFsBlobStore() {
+        return blobFSBlockSize == 0;
+    }
+
+
+    private BinaryFileSystemHelper fileSystem;
+
+    /**
+     * {@inheritDoc}
+     */
+    public final void init(final PMContext context) throws Exception {
+        if (initialized) {
+            throw new IllegalStateException("already initialized");
+        }
+        this.fileSystem = new BinaryFileSystemHelper(context.getFileSystem(), context.getDataStore(),
+                maxPackedBlobSize, blobFanout, syncBlobs, blobWriteThreads, Compression.isEnabled(compression));
+
+        OGlobalConfiguration.STORAGE_KEEP_OPEN.setValue(false);
+        // by default every plocal db named "orient" would share the storage that was opened first
+        Orient.setRegisterDatabaseByPath(true);
+        ODatabaseDocumentTx db;
+
+        db = new ODatabaseDocumentTx(url);
+
+        if (!db.exists()) {
+            db.create();
+
+        }
+
+        pool = new ODatabaseDocumentPool(url, "admin", "admin");
+        pool.setup(1, POOL_MAX_SIZE);
+        super.init(context);
+
+        blobStore = new FSBlobStore(new BasedFileSystem(context.getFileSystem(), "blobs"));
+        // load namespaces
+        binding = new BundleBinding(errorHandling, blobStore, getNsIndex(), getNameIndex(), context.getDataStore());
+        binding.setMinBlobSize(minBlobSize);
+
+
+        this.name = context.getHomeDir().getName();
+        ridCache = new RecordIdCache(name + "RecordIds", ridCacheSize);
+        refsCache = new ReferenceExistenceCache(name + "ReferenceExistence", refsCacheSize);
+        prefetcher = new BundlePrefetcher(name + "PrefetchedBundles", prefetchCacheSize);
+        if (blobCacheSize > 0) {
+            blobCache = new BlobCache(name + "Blobs", blobCacheSize, blobCacheOffHeap);
+            fileSystem.setCache(blobCache);
+        }
+        snapshots = new ConcurrentCache<NodeId, BundleSnapshot>(name + "BundleSnapshots");
+        snapshots.setMaxMemorySize(snapshotCacheSize);
+
+
+        runWithDatabase(database -> {
+
+            OSchema schema = database.getMetadata().getSchema();
+            bundleClassName = getSchemaObjectPrefix() + name + "Bundle";
+            refsClassName = getSchemaObjectPrefix() + name + "Refs";
+            referenceClassName = getSchemaObjectPrefix() + name + "Reference";
+            childrenClassName = getSchemaObjectPrefix() + name + "Children";
+            tombstoneClassName = getSchemaObjectPrefix() + name + "BlobTombstone";
+            nameClassName = getSchemaObjectPrefix() + name + "Name";
+            OClass bundleClass = schema.getClass(bundleClassName);
+            OClass vertexClass = schema.getClass("V");
+            if (bundleClass == null) {
+                bundleClass = schema.createClass(bundleClassName, vertexClass);
+                OProperty id = bundleClass.createProperty("uuid", OType.BINARY);
+                id.createIndex(OClass.INDEX_TYPE.UNIQUE);
+                schema.save();
+            }
+
+            if (schema.getClass(referenceClassName) == null) {
+                // one record per reference, the index key holds everything a reference consists of
+                OClass referenceClass = schema.createClass(referenceClassName);
+                referenceClass.createProperty("targetuuid", OType.BINARY);
+                referenceClass.createProperty("uuid", OType.BINARY);
+                referenceClass.createProperty("name", OType.INTEGER);
+                referenceClass.createProperty("ordinal", OType.INTEGER);
+                referenceClass.createIndex(referenceClassName + ".targetuuid", OClass.INDEX_TYPE.UNIQUE,
+                        "targetuuid", "uuid", "name", "ordinal");
+                schema.save();
+            }
+
+            if (schema.getClass(childrenClassName) == null) {
+                schema.createClass(childrenClassName);
+                schema.save();
+            }
+
+            if (schema.getClass(tombstoneClassName) == null) {
+                OClass tombstoneClass = schema.createClass(tombstoneClassName);
+                tombstoneClass.createProperty(BlobCollector.TOMBSTONE_BLOB, OType.STRING);
+                tombstoneClass.createProperty(BlobCollector.TOMBSTONE_TIME, OType.LONG);
+                schema.save();
+            }
+
+            if (schema.getClass(nameClassName) == null) {
+                OClass nameClass = schema.createClass(nameClassName);
+                nameClass.createProperty(NameDictionary.INDEX, OType.INTEGER).createIndex(OClass.INDEX_TYPE.UNIQUE);
+                nameClass.createProperty(NameDictionary.URI, OType.STRING);
+                nameClass.createProperty(NameDictionary.LOCAL, OType.STRING);
+                schema.save();
+            }
+            return null;
+        });
+        importNameIndex(context.getFileSystem());
+        nameDictionary = new NameDictionary(nameClassName);
+        readWithDatabase(database -> {
+            nameDictionary.load(database);
+            return null;
+        });
+        migrateNodeIds(bundleClassName, "uuid", "parentuuid");
+        convertRefsDocs();
+        indexFileIds();
+        bundleFilter = readWithDatabase(database -> buildBundleFilter(database, 0));
+        mapperSettings = new MapperSettings(fileSystem, nameDictionary, childrenClassName, childChunkSize, binding,
+                STORAGE_FORMAT_BINARY.equals(storageFormat), lazyPropertyValues);
+        blobCollector = new BlobCollector(name, fileSystem, new BlobDocuments(), this, blobGcRate,
+                blobGcSafetyWindow * MILLIS_PER_MINUTE);
+        blobCollector.schedule(blobGcInterval);
+
+        initialized = true;
+    }
+
+    /**
+     * converts a class written before node ids were stored as raw bytes. the string index is dropped,
+     * the indexed field and the given top level fields of every record are converted, and the field is
+     * indexed again. records are saved one by one without a transaction, so a large database is not held
+     * in memory. ids in embedded documents are read in both forms and converted on the next write.
+     *
+     * @param className the class
+     * @param keyField  the uniquely indexed id field
+     * @param idFields  further id fields of the records
+     */
+    private void migrateNodeIds(final String className, final String keyField, final String... idFields) {
+        ODatabaseDocumentTx closeDB = acquireDatabase();
+        ODatabaseRecord database = currentDatabase(closeDB);
+        try {
+            OClass clazz = database.getMetadata().getSchema().getClass(className);
+            OProperty property = clazz.getProperty(keyField);
+            if (property != null && property.getType() == OType.BINARY) {
+                return;
+            }
+            LOG.info("converting node ids of " + className + " to raw bytes");
+            OIndexManagerProxy indexManager = database.getMetadata().getIndexManager();
+            String indexName = className + "." + keyField;
+            if (indexManager.existsIndex(indexName)) {
+                indexManager.dropIndex(indexName);
+            }
+            if (property != null) {
+                clazz.dropProperty(keyField);
+            }
+            List<String> fields = new ArrayList<String>(Arrays.asList(idFields));
+            fields.add(keyField);
+            long count = 0;
+            for (ODocument doc : new ORecordIteratorClass<ODocument>(database, database, className, true)) {
+                for (String field : fields) {
+                    Object value = doc.field(field);
+                    if (value instanceof String) {
+                        doc.field(field, BundleMapper.idValue(NodeId.valueOf((String) value)), OType.BINARY);
+                    }
+                }
+                if (doc.isDirty()) {
+                    doc.save();
+                    count++;
+                }
+            }
+            clazz.createProperty(keyField, OType.BINARY).createIndex(OClass.INDEX_TYPE.UNIQUE);
+            database.getMetadata().getSchema().save();
+            LOG.info("converted node ids of " + count + " records of " + className);
+        } finally {
+            if (closeDB != null) {
+                closeDB.close();
+            }
+        }
+    }
+
+    /**
+     * copies the names of the name index file that earlier versions kept the dictionary in, so the documents
+     * they wrote can still be read. runs once, while there are no name records.
+     *
+     * @param workspaceFileSystem the file system of the workspace
+     * @throws Exception if the file cannot be read
+     */
+    private void importNameIndex(final FileSystem workspaceFileSystem) throws Exception {
+        long count = readWithDatabase(database ->
+                database.getMetadata().getSchema().getClass(nameClassName).count());
+        if (count > 0 || !workspaceFileSystem.exists(RES_NAME_INDEX)) {
+            return;
+        }
+        Properties legacy = new Properties();
+        try (InputStream in = workspaceFileSystem.getInputStream(RES_NAME_INDEX)) {
+            legacy.load(in);
+        }
+        if (legacy.isEmpty()) {
+            return;
+        }
+        StringIndex nsIndex = getNsIndex();
+        runWithDatabase(database -> {
+            for (String key : legacy.stringPropertyNames()) {
+                // "<namespace index>:<local name>", local names cannot contain the colon
+                int separator = key.indexOf(':');
+                ODocument nameDoc = new ODocument(nameClassName);
+                nameDoc.field(NameDictionary.INDEX, Integer.valueOf(legacy.getProperty(key)), OType.INTEGER);
+                nameDoc.field(NameDictionary.URI, nsIndex.indexToString(Integer.parseInt(key.substring(0, separator))),
+                        OType.STRING);
+                nameDoc.field(NameDictionary.LOCAL, key.substring(separator + 1), OType.STRING);
+                nameDoc.save();
+            }
+            return null;
+        });
+        LOG.info("imported " + legacy.size() + " names of " + RES_NAME_INDEX);
+    }
+
+    /**
+     * converts the documents that held all references to a target in one embedded list into one
+     * record per reference, and drops their class. documents are converted one by one without a
+     * transaction, like {@link #migrateNodeIds}.
+     */
+    private void convertRefsDocs() {
+        ODatabaseDocumentTx closeDB = acquireDatabase();
+        ODatabaseRecord database = currentDatabase(closeDB);
+        try {
+            OSchema schema = database.getMetadata().getSchema();
+            if (!schema.existsClass(refsClassName)) {
+                return;
+            }
+            LOG.info("converting " + refsClassName + " to one record per reference");
+            long count = 0;
+            for (ODocument refsDoc : new ORecordIteratorClass<ODocument>(database, database, refsClassName, true)) {
+                NodeReferences refs = new NodeReferences(BundleMapper.readId(refsDoc.field("targetuuid")));
+                List<ODocument> refDocs = refsDoc.field("refs", OType.EMBEDDEDLIST);
+                for (ODocument rDoc : refDocs) {
+                    String value = rDoc.field("ref", OType.STRING);
+                    if (value == null) {
+                        Name propName = nameDictionary.toName(rDoc.field("name", OType.INTEGER));
+                        refs.addReference(new PropertyId(BundleMapper.readId(rDoc.field("uuid")), propName));
+                    } else {
+                        refs.addReference(PropertyId.valueOf(value));
+                    }
+                }
+                writeReferences(database, refs, new HashMap<PropertyId, List<OIdentifiable>>());
+                refsDoc.delete();
+                count++;
+            }
+            schema.dropClass(refsClassName);
+            LOG.info("converted references to " + count + " targets");
+        } finally {
+            if (closeDB != null) {
+                closeDB.close();
+            }
+        }
+    }
+
+    /**
+     * lists the ids of the binaries in the docs folder that a bundle document references in an indexed
+     * field, for documents written before the field was. the documents are saved one by one without a
+     * transaction, and the field is indexed when all are converted.
+     */
+    private void indexFileIds() {
+        ODatabaseDocumentTx closeDB = acquireDatabase();
+        ODatabaseRecord database = currentDatabase(closeDB);
+        try {
+            OIndexManagerProxy indexManager = database.getMetadata().getIndexManager();
+            String indexName = bundleClassName + "." + BundleMapper.BLOBS;
+            if (indexManager.existsIndex(indexName)) {
+                return;
+            }
+            LOG.info("listing the binaries of " + bundleClassName);
+            long count = 0;
+            for (ODocument doc : new ORecordIteratorClass<ODocument>(database, database, bundleClassName, true)) {
+                Set<String> ids = BundleMapper.fileIds(doc.field("properties"));
+                if (!ids.isEmpty()) {
+                    doc.field(BundleMapper.BLOBS, new ArrayList<String>(ids), OType.EMBEDDEDLIST);
+                    doc.save();
+                    count++;
+                }
+            }
+            OClass bundleClass = database.getMetadata().getSchema().getClass(bundleClassName);
+            if (bundleClass.getProperty(BundleMapper.BLOBS) == null) {
+                bundleClass.createProperty(BundleMapper.BLOBS, OType.EMBEDDEDLIST, OType.STRING);
+            }
+            bundleClass.createIndex(indexName, OClass.INDEX_TYPE.NOTUNIQUE, BundleMapper.BLOBS);
+            LOG.info("listed the binaries of " + count + " bundles");
+        } finally {
+            if (closeDB != null) {
+                closeDB.close();
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * This is the only place where writes are serialized. The bundle and reference writes jackrabbit
+     * hands in while the change log is processed are only staged, and then committed together in one
+     * orient transaction. Readers never take the monitor and run in parallel against the database pool.
+     * The binaries of the staged bundles are written in parallel, all of them are done before the monitor
+     * is released.
+     */
+    @Override
+    public final synchronized void store(final ChangeLog changeLog) throws ItemStateException {
+        documentMap.clear();
+        batch = new ChangeLogBatch();
+        try {
+            super.store(changeLog);
+            commitOrEvict(batch);
+        } finally {
+            batch = null;
+            documentMap.clear();
+            fileSystem.awaitSpooled();
+        }
+    }
+
+    /**
+     * commits the staged writes, or evicts the staged bundles if that fails. jackrabbit updates its cached
+     * bundles in place before they are staged, and only clears its cache if the staging fails.
+     *
+     * @param writes the staged writes
+     * @throws ItemStateException if the commit fails
+     */
+    private void commitOrEvict(final ChangeLogBatch writes) throws ItemStateException {
+        try {
+            commitBatch(writes);
+        } catch (ItemStateException | RuntimeException e) {
+            for (NodeId id : writes.getBundleIds()) {
+                evictBundle(id);
+            }
+            throw e;
+        }
+    }
+
+    /**
+     * commits all staged writes in a single orient transaction. all documents that must already
+     * exist are resolved with one multi key lookup per index before the transaction starts, the stored
+     * references of every touched target with one range lookup.
+     *
+     * @param writes the staged writes
+     * @throws ItemStateException if the commit fails, nothing has been written then
+     */
+    private void commitBatch(final ChangeLogBatch writes) throws ItemStateException {
+        if (writes.isEmpty()) {
+            return;
+        }
+        ODatabaseDocumentTx closeDB = acquireDatabase();
+        ODatabaseRecord database = currentDatabase(closeDB);
+        try {
+            Map<NodeId, ODocument> bundleDocs = loadBundleDocs(database, writes.getExistingBundleIds());
+            Map<NodeId, Map<PropertyId, List<OIdentifiable>>> storedRefs =
+                    new HashMap<NodeId, Map<PropertyId, List<OIdentifiable>>>();
+            for (NodeId targetId : writes.getRefsIds()) {
+                storedRefs.put(targetId, loadReferences(database, targetId));
+            }
+
+            // readers must find new bundles in the filter as soon as they are committed
+            Set<NodeId> newIds = writes.getNewBundleIds();
+            if (bundleFilter.isFull(newIds.size())) {
+                bundleFilter = buildBundleFilter(database, newIds.size());
+            }
+            for (NodeId id : newIds) {
+                bundleFilter.add(id);
+            }
+
+            Map<NodeId, ODocument> written = new HashMap<NodeId, ODocument>();
+            database.begin();
+            try {
+                for (NodeId id : writes.getDestroyedBundles()) {
+                    snapshots.remove(id);
+                    ODocument doc = bundleDocs.get(id);
+                    if (doc == null) {
+                        LOG.warn("failed to delete bundle: " + id + " is missing");
+                        continue;
+                    }
+                    createMapper(doc, database).deleteChildChunks();
+                    writeTombstones(doc.field(BundleMapper.BLOBS), Collections.<String>emptySet());
+                    doc.delete();
+                }
+                for (NodePropBundle bundle : writes.getBundles()) {
+                    written.put(bundle.getId(),
+                            writeBundleDoc(database, bundle, writes.isNew(bundle.getId()), bundleDocs));
+                }
+                for (NodeReferences refs : writes.getRefs()) {
+                    writeReferences(database, refs, storedRefs.get(refs.getTargetId()));
+                }
+                for (NodeId targetId : writes.getDestroyedRefs()) {
+                    for (List<OIdentifiable> rids : storedRefs.get(targetId).values()) {
+                        for (OIdentifiable rid : rids) {
+                            database.delete(rid.getIdentity());
+                        }
+                    }
+                }
+                fileSystem.flush();
+                database.commit();
+                nameDictionary.committed();
+            } catch (IOException | RuntimeException x) {
+                database.rollback();
+                nameDictionary.rolledBack();
+                fileSystem.awaitSpooled();
+                fileSystem.discard();
+                for (NodeId id : written.keySet()) {
+                    snapshots.remove(id);
+                }
+                throw x;
+            }
+            // only now, a reader that found a deleted bundle before the commit cannot cache it any more
+            ridCache.deleted(writes.getDestroyedBundles());
+            refsCache.committed(writes.getRefs(), writes.getDestroyedRefs());
+            prefetcher.invalidate(writes.getBundleIds());
+            // new documents only have their final record id and version after the commit
+            for (Map.Entry<NodeId, ODocument> entry : written.entrySet()) {
+                ridCache.put(entry.getKey(), entry.getValue().getIdentity());
+                BundleSnapshot snapshot = documentMap.get(entry.getKey()).createSnapshot();
+                if (snapshot != null) {
+                    putSnapshot(entry.getKey(), snapshot);
+                }
+            }
+        } catch (IOException | RuntimeException e) {
+            String msg = "failed to commit change log";
+            LOG.error(msg, e);
+            throw new ItemStateException(msg, e);
+        } finally {
+            if (closeDB != null) {
+                closeDB.close();
+            }
+        }
+    }
+
+    /**
+     * creates a mapper for a bundle document.
+     *
+     * @param doc      the document
+     * @param database the database of the current thread
+     * @return the mapper
+     */
+    private BundleMapper createMapper(final ODocument doc, final ODatabaseRecord database) {
+        return new BundleMapper(doc, database, mapperSettings);
+    }
+
+    /**
+     * remembers a bundle snapshot.
+     *
+     * @param id       the bundle id
+     * @param snapshot the snapshot
+     */
+    private void putSnapshot(final NodeId id, final BundleSnapshot snapshot) {
+        snapshots.put(id, snapshot, snapshot.getMemorySize());
+    }
+
+    /**
+     * resolves the documents of existing bundles. bundles with a cached record id are loaded
+     * directly, the rest with one multi key lookup on the uuid index.
+     *
+     * @param database the database of the current thread
+     * @param ids      the bundle ids
+     * @return the found documents by id
+     */
+    private Map<NodeId, ODocument> loadBundleDocs(final ODatabaseRecord database, final Collection<NodeId> ids) {
+        long generation = ridCache.getGeneration();
+        Map<NodeId, ODocument> docs = new HashMap<NodeId, ODocument>();
+        List<NodeId> uncached = new ArrayList<NodeId>();
+        for (NodeId id : ids) {
+            ODocument doc = loadCachedBundleDoc(database, id);
+            if (doc == null) {
+                uncached.add(id);
+            } else {
+                docs.put(id, doc);
+            }
+        }
+        Map<NodeId, ODocument> found = loadDocs(database, bundleClassName + ".uuid", uncached);
+        for (Map.Entry<NodeId, ODocument> entry : found.entrySet()) {
+            ridCache.put(entry.getKey(), entry.getValue().getIdentity(), generation);
+        }
+        docs.putAll(found);
+        return docs;
+    }
+
+    /**
+     * loads a bundle doc by its cached record id.
+     *
+     * @param database the database of the current thread
+     * @param id       the bundle id
+     * @return the document or <code>null</code> if the record id is not cached or stale
+     */
+    private ODocument loadCachedBundleDoc(final ODatabaseRecord database, final NodeId id) {
+        ORID rid = ridCache.get(id);
+        if (rid == null) {
+            return null;
+        }
+        ORecordInternal<?> record = database.load(rid);
+        if (record instanceof ODocument) {
+            ODocument doc = (ODocument) record;
+            // parse all fields at once, a single field would parse the whole record again on read
+            doc.deserializeFields();
+            if (bundleClassName.equals(doc.getClassName()) && id.equals(BundleMapper.readId(doc.field("uuid")))) {
+                return doc;
+            }
+        }
+        ridCache.remove(id);
+        return null;
+    }
+
+    /**
+     * resolves many documents with one multi key lookup.
+     *
+     * @param database  the database of the current thread
+     * @param indexName the name of the unique index
+     * @param ids       the node ids to look up
+     * @return the found documents by id
+     */
+    private Map<NodeId, ODocument> loadDocs(final ODatabaseRecord database, final String indexName,
+                                            final Collection<NodeId> ids) {
+        Map<NodeId, ODocument> docs = new HashMap<NodeId, ODocument>();
+        if (ids.isEmpty()) {
+            return docs;
+        }
+        List<byte[]> keys = new ArrayList<byte[]>();
+        for (NodeId id : ids) {
+            keys.add(BundleMapper.idValue(id));
+        }
+        OIndex<?> index = database.getMetadata().getIndexManager().getIndex(indexName);
+        OIndexCursor cursor = index.iterateEntries(keys, false);
+        Map.Entry<Object, OIdentifiable> entry = cursor.nextEntry();
+        while (entry != null) {
+            docs.put(BundleMapper.readId(entry.getKey()), (ODocument) entry.getValue().getRecord());
+            entry = cursor.nextEntry();
+        }
+        return docs;
+    }
+
+    /**
+     * maps a bundle to its document and saves it.
+     *
+     * @param database the database of the current thread
+     * @param bundle   the bundle
+     * @param isNew    true if the bundle has no document yet
+     * @param existing the preloaded documents of existing bundles
+     * @return the saved document
+     * @throws IOException on io
+     */
+    private ODocument writeBundleDoc(final ODatabaseRecord database, final NodePropBundle bundle, final boolean isNew,
+                                final Map<NodeId, ODocument> existing) throws IOException {
+        ODocument vertex;
+        if (isNew) {
+            vertex = new ODocument(bundleClassName);
+        } else {
+            vertex = existing.get(bundle.getId());
+        }
+        if (vertex == null) {
+            throw new IllegalStateException("FATAL: Tried to update non existing bundle"
+                    + bundle.getId().toString());
+        }
+        List<String> before = vertex.field(BundleMapper.BLOBS);
+        if (before != null) {
+            before = new ArrayList<String>(before);
+        }
+        BundleMapper mapper = createMapper(vertex, database);
+        mapper.writePhase1(bundle, snapshots.get(bundle.getId()));
+        List<String> after = vertex.field(BundleMapper.BLOBS);
+        if (after == null) {
+            after = Collections.emptyList();
+        }
+        writeTombstones(before, new HashSet<String>(after));
+        if (vertex.isDirty()) {
+            vertex.save();
+        }
+        // store this for phase2
+        documentMap.put(bundle.getId(), mapper);
+        return vertex;
+    }
+
+    /**
+     * writes a tombstone for every binary a bundle document no longer references, in the transaction of
+     * the commit. the blob collector deletes the binaries if no other document references them.
+     *
+     * @param before the ids the document referenced, may be <code>null</code>
+     * @param after  the ids it references now
+     */
+    private void writeTombstones(final List<String> before, final Set<String> after) {
+        if (before == null) {
+            return;
+        }
+        long now = System.currentTimeMillis();
+        for (String id : before) {
+            if (!after.contains(id)) {
+                ODocument tombstone = new ODocument(tombstoneClassName);
+                tombstone.field(BlobCollector.TOMBSTONE_BLOB, id);
+                tombstone.field(BlobCollector.TOMBSTONE_TIME, now);
+                tombstone.save();
+            }
+        }
     }
 
     /**
-     * {@inheritDoc}
+     * writes the references to a target. only references that were added get a new record and only
+     * the records of removed references are deleted, the others are not touched. a property that
+     * references the target more than once has one record per occurrence, numbered by an ordinal.
+     *
+     * @param database the database of the current thread
+     * @param refs     the references
+     * @param stored   the stored records per property, in ordinal order. entries are removed while writing
      */
-    @Override
-    public final synchronized void store(final ChangeLog changeLog) throws ItemStateException {
-        documentMap.clear();
-        runWithDatabase(db -> {
-
-            try {
-
-                super.store(changeLog);
-            } catch (ItemStateException e) {
-                LOG.error("jackrabbit", e);
+    private void writeReferences(final ODatabaseRecord database, final NodeReferences refs,
+                                 final Map<PropertyId, List<OIdentifiable>> stored) {
+        Map<PropertyId, Integer> counts = new LinkedHashMap<PropertyId, Integer>();
+        for (PropertyId propId : refs.getReferences()) {
+            counts.merge(propId, 1, Integer::sum);
+        }
+        for (Map.Entry<PropertyId, Integer> entry : counts.entrySet()) {
+            List<OIdentifiable> rids = stored.remove(entry.getKey());
+            if (rids == null) {
+                rids = Collections.emptyList();
             }
-            return null;
-        });
-
-        documentMap.clear();
+            for (int ordinal = rids.size(); ordinal < entry.getValue(); ordinal++) {
+                ODocument refDoc = new ODocument(referenceClassName);
+                refDoc.field("targetuuid", BundleMapper.idValue(refs.getTargetId()), OType.BINARY);
+                refDoc.field("uuid", BundleMapper.idValue(entry.getKey().getParentId()), OType.BINARY);
+                refDoc.field("name", nameDictionary.toIndex(entry.getKey().getName(), database), OType.INTEGER);
+                refDoc.field("ordinal", ordinal, OType.INTEGER);
+                refDoc.save();
+            }
+            for (int ordinal = entry.getValue(); ordinal < rids.size(); ordinal++) {
+                database.delete(rids.get(ordinal).getIdentity());
+            }
+        }
+        for (List<OIdentifiable> rids : stored.values()) {
+            for (OIdentifiable rid : rids) {
+                database.delete(rid.getIdentity());
+            }
+        }
     }
 
+    /**
+     * stages or directly commits a single write. writes outside of {@link #store(ChangeLog)}, for
+     * example from the consistency checker, get a batch of their own.
+     *
+     * @param stage the staging function
+     * @throws ItemStateException if a direct commit fails
+     */
+    private synchronized void stage(final Consumer<ChangeLogBatch> stage) throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        if (batch != null) {
+            stage.accept(batch);
+        } else {
+            ChangeLogBatch single = new ChangeLogBatch();
+            stage.accept(single);
+            commitOrEvict(single);
+        }
+    }
 
     /**
      * runs in an orient transaction.
@@ -327,21 +1526,8 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
      */
     private Object runWithDatabase(final Function<ODatabaseRecord, Object> function) {
 
-        ODatabaseDocumentTx closeDB = null;
-        ODatabaseRecord database;
-        if (!ODatabaseRecordThreadLocal.INSTANCE.isDefined()) {
-
-
-            closeDB = pool.acquire(url, user, pass);
-            database = closeDB;
-
-
-        } else {
-            database = ODatabaseRecordThreadLocal.INSTANCE.get();
-            if (database.isClosed()) {
-                database.open(user, pass);
-            }
-        }
+        ODatabaseDocumentTx closeDB = acquireDatabase();
+        ODatabaseRecord database = currentDatabase(closeDB);
 
         Object result = null;
         try {
@@ -364,6 +1550,64 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
 
     }
 
+    /**
+     * runs a read only function. reuses the database of the current thread if there is one
+     * (and with it any running transaction) and never begins or commits a transaction itself.
+     *
+     * @param function the lamba.
+     * @param <T>      the type of the result
+     * @return the result
+     */
+    private <T> T readWithDatabase(final Function<ODatabaseRecord, T> function) {
+        ODatabaseDocumentTx closeDB = acquireDatabase();
+        try {
+            return function.apply(currentDatabase(closeDB));
+        } catch (OException x) {
+            LOG.error("DB error", x);
+            throw x;
+        } finally {
+            if (closeDB != null) {
+                closeDB.close();
+            }
+        }
+    }
+
+    /**
+     * acquires a database from the pool if the current thread has none, a closed one, or one of another
+     * url. the thread keeps the database of another repository that ran in the same jvm, so its url must
+     * be checked, and a pooled database that was given back stays set but closed and cannot be reopened.
+     *
+     * @return the acquired database that must be closed by the caller, or <code>null</code>
+     * if the thread already has a database
+     */
+    private ODatabaseDocumentTx acquireDatabase() {
+        if (!ODatabaseRecordThreadLocal.INSTANCE.isDefined()) {
+            return pool.acquire(url, user, pass);
+        }
+        ODatabaseRecord current = ODatabaseRecordThreadLocal.INSTANCE.get();
+        if (current.isClosed() || !url.equals(current.getURL())) {
+            return pool.acquire(url, user, pass);
+        }
+        return null;
+    }
+
+    /**
+     * gets the database to work with.
+     *
+     * @param acquired the database acquired by {@link #acquireDatabase()} or <code>null</code>
+     * @return the database, opened if needed
+     */
+    private ODatabaseRecord currentDatabase(final ODatabaseDocumentTx acquired) {
+        if (acquired != null) {
+            return acquired;
+        }
+        ODatabaseRecord database = ODatabaseRecordThreadLocal.INSTANCE.get();
+        if (database.isClosed()) {
+            database.open(user, pass);
+        }
+        return database;
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -373,6 +1617,19 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
         }
 
         try {
+            blobCollector.close();
+            LOG.info("record id cache " + name + ": " + ridCache);
+            ridCache.clear();
+            LOG.info("reference existence cache " + name + ": " + refsCache);
+            refsCache.clear();
+            LOG.info("prefetched bundles " + name + ": " + prefetcher);
+            prefetcher.clear();
+            LOG.info("bundle filter " + name + ": " + bundleFilter);
+            LOG.info("bundle snapshot cache " + name + ": " + snapshots.getCacheInfoAsString());
+            snapshots.clear();
+            LOG.info("name dictionary " + name + ": " + nameDictionary);
+            blobStore.close();
+            fileSystem.close();
 
             pool.close();
 
@@ -386,17 +1643,21 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
      * {@inheritDoc}
      */
     protected final NodePropBundle loadBundle(final NodeId id) throws ItemStateException {
+        NodePropBundle prefetched = prefetcher.take(id);
+        if (prefetched != null) {
+            return prefetched;
+        }
+        long generation = prefetcher.getGeneration();
         try {
-            return (NodePropBundle) runWithDatabase(database -> {
-                String uuid = id.toString();
-
-                ODocument doc = loadBundleDoc(uuid);
+            return readWithDatabase(database -> {
+                ODocument doc = loadBundleDoc(database, id);
                 if (doc == null) {
                     return null;
                 }
 
-                BundleMapper mapper = new BundleMapper(doc, database, fileSystem);
+                BundleMapper mapper = createMapper(doc, database);
                 NodePropBundle bundle = mapper.read();
+                prefetchChildren(database, bundle, generation);
                 return bundle;
             });
         } catch (Exception e) {
@@ -406,6 +1667,93 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
         }
     }
 
+    /**
+     * loads many bundles at once. bundles that were prefetched are taken, the documents of the others are
+     * resolved with one multi key lookup.
+     *
+     * @param ids the bundle ids
+     * @return the found bundles by id, missing bundles are left out
+     * @throws ItemStateException if a bundle cannot be read
+     */
+    public final Map<NodeId, NodePropBundle> loadBundles(final Collection<NodeId> ids) throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        Map<NodeId, NodePropBundle> bundles = new HashMap<NodeId, NodePropBundle>();
+        List<NodeId> missing = new ArrayList<NodeId>();
+        for (NodeId id : ids) {
+            NodePropBundle bundle = prefetcher.take(id);
+            if (bundle == null) {
+                missing.add(id);
+            } else {
+                bundles.put(id, bundle);
+            }
+        }
+        try {
+            readWithDatabase(database -> {
+                bundles.putAll(readBundles(database, missing));
+                return null;
+            });
+        } catch (RuntimeException e) {
+            String msg = "failed to read bundles: " + e;
+            LOG.error(msg);
+            throw new ItemStateException(msg, e);
+        }
+        return bundles;
+    }
+
+    /**
+     * reads bundles from the documents found with one multi key lookup.
+     *
+     * @param database the database of the current thread
+     * @param ids      the bundle ids
+     * @return the found bundles by id
+     */
+    private Map<NodeId, NodePropBundle> readBundles(final ODatabaseRecord database, final Collection<NodeId> ids) {
+        Map<NodeId, NodePropBundle> bundles = new HashMap<NodeId, NodePropBundle>();
+        for (Map.Entry<NodeId, ODocument> entry : loadBundleDocs(database, ids).entrySet()) {
+            bundles.put(entry.getKey(), createMapper(entry.getValue(), database).read());
+        }
+        return bundles;
+    }
+
+    /**
+     * reads the first child bundles of a loaded bundle ahead, jackrabbit mostly walks on to them.
+     *
+     * @param database   the database of the current thread
+     * @param bundle     the loaded bundle
+     * @param generation the prefetch generation taken before the bundle was read
+     */
+    private void prefetchChildren(final ODatabaseRecord database, final NodePropBundle bundle,
+                                  final long generation) {
+        if (prefetchChildCount <= 0 || bundle.getChildNodeEntries().isEmpty() || !prefetcher.shouldPrefetch()) {
+            return;
+        }
+        List<NodeId> ids = new ArrayList<NodeId>();
+        for (NodePropBundle.ChildNodeEntry child : bundle.getChildNodeEntries()) {
+            if (ids.size() >= prefetchChildCount) {
+                break;
+            }
+            if (!prefetcher.contains(child.getId())) {
+                ids.add(child.getId());
+            }
+        }
+        for (NodePropBundle child : readBundles(database, ids).values()) {
+            prefetcher.put(child, generation);
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * drops a prefetched copy as well.
+     */
+    @Override
+    protected final void evictBundle(final NodeId id) {
+        prefetcher.invalidate(Collections.singletonList(id));
+        super.evictBundle(id);
+    }
+
     /**
      * Creates the file path for the given node id that is
      * suitable for storing node states in a filesystem.
@@ -454,154 +1802,264 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
      * {@inheritDoc}
      */
     @Override
-    protected final synchronized void storeBundle(final NodePropBundle bundle) throws ItemStateException {
-        runWithDatabase(database -> {
+    protected final void storeBundle(final NodePropBundle bundle) throws ItemStateException {
+        stage(writes -> {
+            writes.store(bundle);
+            // the binaries are written while jackrabbit stages the rest of the change log
+            if (writes == batch && !STORAGE_FORMAT_BINARY.equals(storageFormat)) {
+                BundleMapper.spoolBlobs(bundle, snapshots.get(bundle.getId()), fileSystem);
+            }
+        });
+    }
 
-            try {
-                ODocument vertex = null;
-                if (bundle.isNew()) {
+    /**
+     * {@inheritDoc}
+     */
+    protected final void destroyBundle(final NodePropBundle bundle) throws ItemStateException {
+        stage(writes -> writes.destroy(bundle));
+    }
 
-                    vertex = new ODocument(bundleClassName);
-                } else {
-                    vertex = loadBundleDoc(bundle.getId().toString());
-                }
-                if (vertex == null) {
-                    throw new IllegalStateException("FATAL: Tried to update non existing bundle"
-                            + bundle.getId().toString());
+    /**
+     * reads a page of documents of a class.
+     *
+     * @param className the class
+     * @param after     the last document of the previous page, <code>null</code> for the first page
+     * @param count     the number of documents of a page
+     * @param visitor   is called with each document
+     * @return the last document of the page, <code>null</code> if all documents were read
+     */
+    private ORID scanDocs(final String className, final ORID after, final int count,
+                          final Consumer<ODocument> visitor) {
+        return readWithDatabase(database -> {
+            ORecordIteratorClass<ODocument> docs =
+                    new ORecordIteratorClass<ODocument>(database, database, className, true);
+            if (after != null) {
+                docs.setRange(after, null);
+            }
+            ORID last = null;
+            int read = 0;
+            while (read < count && docs.hasNext()) {
+                ODocument doc = docs.next();
+                if (!doc.getIdentity().equals(after)) {
+                    visitor.accept(doc);
+                    last = doc.getIdentity();
+                    read++;
                 }
-                BundleMapper mapper = new BundleMapper(vertex, database, fileSystem);
-                mapper.writePhase1(bundle);
-                vertex.save();
-                NodeId id = bundle.getId();
-                // store this for phase2
-
-                documentMap.put(id, mapper);
-
-            } catch (Exception e) {
-                String msg = "failed to write bundle: " + bundle.getId();
-                OrientPersistenceManager.LOG.error(msg, e);
-
             }
-            return null;
+            if (read < count) {
+                return null;
+            }
+            return last;
         });
-
     }
 
     /**
-     * {@inheritDoc}
+     * the documents the blob collector reads.
      */
-    protected final synchronized void destroyBundle(final NodePropBundle bundle) throws ItemStateException {
+    private final class BlobDocuments implements BlobCollector.Documents {
 
-        runWithDatabase(database -> {
-            try {
-                String uuid = bundle.getId().toString();
-                ODocument result = loadBundleDoc(uuid);
-                if (result == null) {
-                    throw new NullPointerException(uuid + " is missing");
-                }
-                cascadeDeleteToBlobs(result);
+        /**
+         * {@inheritDoc}
+         */
+        public ORID scanBundles(final ORID after, final int count, final Consumer<ODocument> visitor) {
+            return scanDocs(bundleClassName, after, count, visitor);
+        }
 
-                result.delete();
-            } catch (Exception e) {
-                String msg = "failed to delete bundle: " + bundle.getId();
-                OrientPersistenceManager.LOG.error(msg, e);
+        /**
+         * {@inheritDoc}
+         */
+        public ORID scanTombstones(final ORID after, final int count, final Consumer<ODocument> visitor) {
+            return scanDocs(tombstoneClassName, after, count, visitor);
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        public boolean isReferenced(final String id) {
+            return readWithDatabase(database -> {
+                OIndex<?> index = database.getMetadata().getIndexManager()
+                        .getIndex(bundleClassName + "." + BundleMapper.BLOBS);
+                Object rids = index.get(id);
+                if (rids instanceof Collection) {
+                    return !((Collection<?>) rids).isEmpty();
+                }
+                return rids != null;
+            });
+        }
 
+        /**
+         * {@inheritDoc}
+         */
+        public void removeTombstones(final List<ODocument> tombstones) {
+            if (tombstones.isEmpty()) {
+                return;
             }
-            return null;
-        });
+            runWithDatabase(database -> {
+                for (ODocument tombstone : tombstones) {
+                    database.delete(tombstone.getIdentity());
+                }
+                return null;
+            });
+        }
     }
 
     /**
-     * deletes referenced blobs.
-     *
-     * @param result the document
+     * {@inheritDoc}
+     * <p>
+     * only probes the uuid index, the bundle is neither loaded nor read. ids that were never stored are
+     * answered by the bundle filter without touching the database, bundles that were loaded or stored
+     * before by the record id and snapshot caches. the bundle cache of jackrabbit is private, but every bundle
+     * in it got a record id when it was loaded or stored.
      */
-    private void cascadeDeleteToBlobs(final ODocument result) {
-        List<ODocument> propertyDocs = result.field("properties", OType.EMBEDDEDLIST);
-        if (propertyDocs != null) {
-            for (ODocument pDoc : propertyDocs) {
-                List<ODocument> valDocs = pDoc.field("properties", OType.EMBEDDEDLIST);
-                if (valDocs != null) {
-                    for (ODocument vDoc : valDocs) {
-                        int type = vDoc.field("type", OType.INTEGER);
-                        if (PropertyType.BINARY == type) {
-                            Boolean embedded = vDoc.field("embedded", OType.BOOLEAN);
-                            if (!embedded) {
-                                fileSystem.delete(vDoc.field("value", OType.STRING));
-                            }
-                        }
-                    }
+    @Override
+    public final boolean exists(final NodeId id) throws ItemStateException {
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
+        if (!bundleFilter.mightContain(id)) {
+            return false;
+        }
+        if (prefetcher.contains(id) || ridCache.contains(id) || snapshots.containsKey(id)) {
+            return true;
+        }
+        long generation = ridCache.getGeneration();
+        try {
+            return readWithDatabase(database -> {
+                OIndex<?> index = database.getMetadata().getIndexManager().getIndex(bundleClassName + ".uuid");
+                OIdentifiable rid = (OIdentifiable) index.get(BundleMapper.idValue(id));
+                if (rid == null) {
+                    return false;
                 }
-            }
+                // jackrabbit usually loads the bundle next
+                ridCache.put(id, rid.getIdentity(), generation);
+                return true;
+            });
+        } catch (OException e) {
+            String msg = "failed to check bundle: " + id + ": " + e;
+            LOG.error(msg);
+            throw new ItemStateException(msg, e);
+        }
+    }
+
+    /**
+     * builds the bundle filter from the keys of the uuid index. must be called from within
+     * {@link #runWithDatabase} or {@link #readWithDatabase}.
+     *
+     * @param database the database of the current thread
+     * @param more     the number of ids that are about to be added
+     * @return the filter, sized for twice the stored ids
+     */
+    private NodeIdFilter buildBundleFilter(final ODatabaseRecord database, final int more) {
+        OIndex<?> index = database.getMetadata().getIndexManager().getIndex(bundleClassName + ".uuid");
+        NodeIdFilter filter = new NodeIdFilter(2 * (index.getSize() + more));
+        OIndexCursor cursor = index.cursor();
+        Map.Entry<Object, OIdentifiable> entry = cursor.nextEntry();
+        while (entry != null) {
+            filter.add(BundleMapper.readId(entry.getKey()));
+            entry = cursor.nextEntry();
         }
+        LOG.info("bundle filter " + name + " built: " + filter);
+        return filter;
     }
 
     /**
-     * load a bundle doc.
+     * load a bundle doc. must be called from within {@link #runWithDatabase} or {@link #readWithDatabase}.
+     * uses the cached record id if there is one and falls back to the uuid index.
      *
-     * @param uuid the id
+     * @param database the database of the current thread
+     * @param id       the id
      * @return the document
      */
-    private ODocument loadBundleDoc(final String uuid) {
+    private ODocument loadBundleDoc(final ODatabaseRecord database, final NodeId id) {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
-        return (ODocument) runWithDatabase(database -> {
-            OIndexManagerProxy indexManager = database.getMetadata().getIndexManager();
-            OIndex<OIdentifiable> index = (OIndex<OIdentifiable>) indexManager.getIndex(bundleClassName + ".uuid");
-            OIdentifiable id = index.get(uuid);
-            ODocument doc = null;
-            if (id != null) {
-                doc = id.getRecord();
-            }
-
+        long generation = ridCache.getGeneration();
+        ODocument doc = loadCachedBundleDoc(database, id);
+        if (doc != null) {
             return doc;
-        });
+        }
+        OIndexManagerProxy indexManager = database.getMetadata().getIndexManager();
+        OIndex<OIdentifiable> index = (OIndex<OIdentifiable>) indexManager.getIndex(bundleClassName + ".uuid");
+        OIdentifiable rid = index.get(BundleMapper.idValue(id));
+        if (rid != null) {
+            doc = rid.getRecord();
+            ridCache.put(id, rid.getIdentity(), generation);
+        }
 
+        return doc;
+    }
 
+    /**
+     * opens a cursor over the references to a target. the references are read from the index keys,
+     * the records are never loaded. must be called from within {@link #runWithDatabase} or
+     * {@link #readWithDatabase}.
+     *
+     * @param database the database of the current thread
+     * @param targetId the id
+     * @return the cursor, in property and ordinal order
+     */
+    private OIndexCursor referenceCursor(final ODatabaseRecord database, final NodeId targetId) {
+        OIndex<?> index = database.getMetadata().getIndexManager().getIndex(referenceClassName + ".targetuuid");
+        OCompositeKey key = new OCompositeKey(BundleMapper.idValue(targetId));
+        return index.iterateEntriesBetween(key, true, key, true, true);
     }
 
     /**
-     * loads references.
+     * maps a reference index key to the referencing property.
      *
-     * @param targetuuid the id
-     * @return the refs doc
+     * @param key the composite key of target id, node id, name and ordinal
+     * @return the property id
      */
-    private ODocument loadRefsDoc(final String targetuuid) {
+    private PropertyId referenceOf(final Object key) {
+        List<Object> keys = ((OCompositeKey) key).getKeys();
+        Name propName = nameDictionary.toName(((Number) keys.get(2)).intValue());
+        return new PropertyId(BundleMapper.readId(keys.get(1)), propName);
+    }
 
-        return (ODocument) runWithDatabase(database -> {
-            OQuery<ODocument> query =
-                    new OSQLSynchQuery<>("select from " + refsClassName + " WHERE targetuuid = '" + targetuuid + "'");
-            List<ODocument> result = database.query(query);
-            if (result.size() == 0) {
-                return null;
-            }
-            // result must be unique since we have the index
-            return result.get(0);
-        });
+    /**
+     * loads the record ids of the references to a target.
+     *
+     * @param database the database of the current thread
+     * @param targetId the id
+     * @return the record ids per property, in ordinal order
+     */
+    private Map<PropertyId, List<OIdentifiable>> loadReferences(final ODatabaseRecord database,
+                                                              final NodeId targetId) {
+        Map<PropertyId, List<OIdentifiable>> refs = new HashMap<PropertyId, List<OIdentifiable>>();
+        OIndexCursor cursor = referenceCursor(database, targetId);
+        Map.Entry<Object, OIdentifiable> entry = cursor.nextEntry();
+        while (entry != null) {
+            refs.computeIfAbsent(referenceOf(entry.getKey()), k -> new ArrayList<OIdentifiable>())
+                    .add(entry.getValue());
+            entry = cursor.nextEntry();
+        }
+        return refs;
     }
 
     /**
      * {@inheritDoc}
      */
-    public final synchronized NodeReferences loadReferencesTo(final NodeId targetId) throws ItemStateException {
+    public final NodeReferences loadReferencesTo(final NodeId targetId) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
-        NodeReferences result = (NodeReferences) runWithDatabase(database -> {
-            ODocument refsDoc = loadRefsDoc(targetId.toString());
-            if (refsDoc == null) {
-                return null;
-            }
+        if (Boolean.FALSE.equals(refsCache.get(targetId))) {
+            throw new NoSuchItemStateException(targetId.toString());
+        }
+        long generation = refsCache.getGeneration();
+        NodeReferences result = readWithDatabase(database -> {
             NodeReferences refs = new NodeReferences(targetId);
-            List<ODocument> refDocs = refsDoc.field("refs", OType.EMBEDDEDLIST);
-            for (ODocument rDoc : refDocs) {
-                String value = rDoc.field("ref", OType.STRING);
-                refs.addReference(PropertyId.valueOf(value));
+            OIndexCursor cursor = referenceCursor(database, targetId);
+            Map.Entry<Object, OIdentifiable> entry = cursor.nextEntry();
+            while (entry != null) {
+                refs.addReference(referenceOf(entry.getKey()));
+                entry = cursor.nextEntry();
             }
             return refs;
         });
-        if (result == null) {
+        refsCache.put(targetId, result.hasReferences(), generation);
+        if (!result.hasReferences()) {
             throw new NoSuchItemStateException(targetId.toString());
         }
         return result;
@@ -610,57 +2068,37 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
     /**
      * {@inheritDoc}
      */
-    public final synchronized void store(final NodeReferences refs) throws ItemStateException {
-        if (!initialized) {
-            throw new IllegalStateException("not initialized");
-        }
-        runWithDatabase(database -> {
-            ODocument refsDoc = loadRefsDoc(refs.getTargetId().toString());
-            if (refsDoc == null) {
-                refsDoc = new ODocument(refsClassName);
-                refsDoc.field("targetuuid", refs.getTargetId().toString(), OType.STRING);
-
-            }
-            List<ODocument> refDocs = new ArrayList<ODocument>();
-            for (PropertyId propId : refs.getReferences()) {
-                ODocument refDoc = database.newInstance();
-                refDoc.field("ref", propId.toString(), OType.STRING);
-                refDocs.add(refDoc);
-
-            }
-            refsDoc.field("refs", refDocs, OType.EMBEDDEDLIST);
-            refsDoc.save();
-            return null;
-        });
+    public final void store(final NodeReferences refs) throws ItemStateException {
+        stage(writes -> writes.store(refs));
     }
 
     /**
      * {@inheritDoc}
      */
-    public final synchronized void destroy(final NodeReferences refs) throws ItemStateException {
-        if (!initialized) {
-            throw new IllegalStateException("not initialized");
-        }
-        runWithDatabase(database -> {
-            ODocument doc = loadRefsDoc(refs.getTargetId().toString());
-            if (doc != null) {
-                doc.delete();
-            }
-            return null;
-        });
+    public final void destroy(final NodeReferences refs) throws ItemStateException {
+        stage(writes -> writes.destroy(refs));
     }
 
     /**
      * {@inheritDoc}
+     * <p>
+     * jackrabbit asks for every deleted node, so the answer is cached for targets that were looked up
+     * or written before.
      */
-    public final synchronized boolean existsReferencesTo(final NodeId targetId) throws ItemStateException {
+    public final boolean existsReferencesTo(final NodeId targetId) throws ItemStateException {
         if (!initialized) {
             throw new IllegalStateException("not initialized");
         }
-        return (Boolean) runWithDatabase(database -> {
-            ODocument doc = loadRefsDoc(targetId.toString());
-            return doc != null;
-        });
+        Boolean cached = refsCache.get(targetId);
+        if (cached != null) {
+            return cached;
+        }
+        long generation = refsCache.getGeneration();
+        // the cursor of orient 1.7 may report a next entry it does not have
+        boolean exists = readWithDatabase(
+                database -> referenceCursor(database, targetId).nextEntry() != null);
+        refsCache.put(targetId, exists, generation);
+        return exists;
     }
 
 
@@ -673,80 +2111,38 @@ public class OrientPersistenceManager extends AbstractBundlePersistenceManager {
 
     /**
      * {@inheritDoc}
+     * <p>
+     * pages through the uuid index in key order, starting after <code>bigger</code>. the cursor streams
+     * the keys from the index, no bundle document is loaded.
      */
     public final List<NodeId> getAllNodeIds(final NodeId bigger, final int maxCount) throws ItemStateException {
-        ArrayList<NodeId> list = new ArrayList<NodeId>();
+        if (!initialized) {
+            throw new IllegalStateException("not initialized");
+        }
         try {
-            getListRecursive(list, "", bigger, maxCount);
-            return list;
-        } catch (FileSystemException e) {
+            return readWithDatabase(database -> {
+                OIndex<?> index = database.getMetadata().getIndexManager().getIndex(bundleClassName + ".uuid");
+                OIndexCursor cursor;
+                if (bigger == null) {
+                    cursor = index.cursor();
+                } else {
+                    cursor = index.iterateEntriesMajor(BundleMapper.idValue(bigger), false, true);
+                }
+                List<NodeId> ids = new ArrayList<NodeId>();
+                Map.Entry<Object, OIdentifiable> entry = cursor.nextEntry();
+                while (entry != null && (maxCount <= 0 || ids.size() < maxCount)) {
+                    ids.add(BundleMapper.readId(entry.getKey()));
+                    entry = cursor.nextEntry();
+                }
+                return ids;
+            });
+        } catch (OException e) {
             String msg = "failed to read node list: " + bigger + ": " + e;
             LOG.error(msg);
             throw new ItemStateException(msg, e);
         }
     }
 
-    /**
-     * {@inheritDoc}
-     */
-    protected final NodeId getIdFromFileName(final String fileName) {
-        StringBuffer buff = new StringBuffer(SB_CAPACITY);
-        if (!fileName.endsWith("." + NODEFILENAME)) {
-            return null;
-        }
-        for (int i = 0; i < fileName.length(); i++) {
-            char c = fileName.charAt(i);
-            if (c == '.') {
-                break;
-            }
-            if (c != '/') {
-                buff.append(c);
-                int len = buff.length();
-                if (len == EIGHT || len == THIRTEEN || len == EIGHTEEN || len == TWENTYTHREE) {
-                    buff.append('-');
-                }
-            }
-        }
-        return new NodeId(buff.toString());
-    }
-
-    /**
-     * gets a list from the filesystem.
-     *
-     * @param list     the list
-     * @param path     the path
-     * @param bigger   for recusrion
-     * @param maxCount up to max?
-     * @throws FileSystemException on fs errors
-     */
-    private void getListRecursive(final ArrayList<NodeId> list, final String path,
-                                  final NodeId bigger, final int maxCount) throws FileSystemException {
-        if (maxCount > 0 && list.size() >= maxCount) {
-            return;
-        }
-        String[] files = itemFs.listFiles(path);
-        Arrays.sort(files);
-        for (int i = 0; i < files.length; i++) {
-            String f = files[i];
-            NodeId n = getIdFromFileName(path + FileSystem.SEPARATOR + f);
-            if (n == null) {
-                continue;
-            }
-            if (bigger != null && bigger.toString().compareTo(n.toString()) >= 0) {
-                continue;
-            }
-            list.add(n);
-            if (maxCount > 0 && list.size() >= maxCount) {
-                return;
-            }
-        }
-        String[] dirs = itemFs.listFolders(path);
-        Arrays.sort(dirs);
-        for (int i = 0; i < dirs.length; i++) {
-            getListRecursive(list, path + FileSystem.SEPARATOR + dirs[i], bigger, maxCount);
-        }
-    }
-
     /**
      * Helper interface for closeable stores.
      */
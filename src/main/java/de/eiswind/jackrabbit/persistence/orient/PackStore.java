@@ -0,0 +1,640 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Append-only store of small binaries in pack files, so a repository with millions of thumbnails does not
+ * have a file for each of them.
+ * <p>
+ * A binary is appended to the current pack, and a record of its id, offset and length to the index file
+ * of that pack. Packs are closed at {@value #PACK_SIZE} bytes and a new one is started. The index files
+ * are read into memory at startup, a binary is read with one positioned read. Removing a binary appends
+ * a record with length {@value #DELETED} to the index of its pack, the space is reclaimed by compaction,
+ * which runs in the background every {@value #COMPACT_INTERVAL} seconds. It copies the remaining binaries
+ * of a closed pack that is at least half unused to the current pack and deletes the old one.
+ * <p>
+ * An id recorded in several packs is stored in the pack with the highest number, as a compaction that did
+ * not finish copies binaries to the current pack before it deletes the old one. Binaries that were
+ * appended without a record, after a crash, are unused space. A compaction forces the copies and their
+ * records to the disk before it deletes the old pack. If binaries are synced, the packs appended to since
+ * the last {@link #flush()} are forced there, before the documents that reference them are committed.
+ */
+final class PackStore {
+
+    /**
+     * name of the pack folder in the docs folder.
+     */
+    static final String FOLDER = "packs";
+
+    /**
+     * size after which a pack is closed.
+     */
+    private static final long PACK_SIZE = 64L * 1024 * 1024;
+
+    /**
+     * seconds between compactions.
+     */
+    private static final long COMPACT_INTERVAL = 60;
+
+    /**
+     * a pack is compacted when no more than one in this many bytes is used.
+     */
+    private static final int MIN_USED_SHARE = 2;
+
+    /**
+     * length of the ids, hex SHA-256 hashes.
+     */
+    private static final int ID_LENGTH = 64;
+
+    /**
+     * length of an index record: the id, the offset and the length.
+     */
+    private static final int RECORD_LENGTH = ID_LENGTH + Long.BYTES + Integer.BYTES;
+
+    /**
+     * length of the records that remove a binary.
+     */
+    private static final int DELETED = -1;
+
+    private static final String PACK_SUFFIX = ".pack";
+
+    private static final String INDEX_SUFFIX = ".idx";
+
+    private static final int READ_ATTEMPTS = 3;
+
+    private static Logger log = LoggerFactory.getLogger(PackStore.class);
+
+    private final File folder;
+
+    private final ConcurrentMap<String, Location> index = new ConcurrentHashMap<>();
+
+    private final ConcurrentMap<Integer, Pack> packs = new ConcurrentHashMap<>();
+
+    private final ScheduledExecutorService compactor;
+
+    /**
+     * whether appended binaries are forced to the disk by {@link #flush()}.
+     */
+    private final boolean sync;
+
+    /**
+     * the packs appended to since the last flush, guarded by this.
+     */
+    private final Set<Pack> appended = new HashSet<>();
+
+    /**
+     * the pack binaries are appended to, guarded by this.
+     */
+    private Pack current;
+
+    private long compactedPacks;
+
+    /**
+     * open a store that does not sync the binaries, reads the indexes and starts compacting.
+     *
+     * @param pfolder the pack folder
+     * @throws IOException if the packs cannot be read
+     */
+    PackStore(final File pfolder) throws IOException {
+        this(pfolder, false);
+    }
+
+    /**
+     * open a store, reads the indexes and starts compacting.
+     *
+     * @param pfolder the pack folder
+     * @param psync   whether appended binaries are forced to the disk by {@link #flush()}
+     * @throws IOException if the packs cannot be read
+     */
+    PackStore(final File pfolder, final boolean psync) throws IOException {
+        this.folder = pfolder;
+        this.sync = psync;
+        if (!folder.isDirectory() && !folder.mkdirs()) {
+            throw new IOException("cannot create " + folder);
+        }
+        load();
+        compactor = Executors.newSingleThreadScheduledExecutor(r -> {
+            Thread thread = new Thread(r, "blob pack compaction " + folder);
+            thread.setDaemon(true);
+            return thread;
+        });
+        compactor.scheduleWithFixedDelay(this::compact, COMPACT_INTERVAL, COMPACT_INTERVAL, TimeUnit.SECONDS);
+    }
+
+    /**
+     * opens the packs and reads their indexes in the order they were written.
+     *
+     * @throws IOException if a pack cannot be read
+     */
+    private void load() throws IOException {
+        Map<Integer, File> files = new TreeMap<>();
+        File[] list = folder.listFiles((dir, name) -> name.endsWith(PACK_SUFFIX));
+        if (list != null) {
+            for (File file : list) {
+                String name = file.getName();
+                files.put(Integer.valueOf(name.substring(0, name.length() - PACK_SUFFIX.length())), file);
+            }
+        }
+        int last = 0;
+        for (int number : files.keySet()) {
+            Pack pack = new Pack(number);
+            packs.put(number, pack);
+            readIndex(pack);
+            last = number;
+        }
+        for (Location location : index.values()) {
+            packs.get(location.pack).live += location.length;
+        }
+        Pack lastPack = packs.get(last);
+        if (lastPack != null && lastPack.size < PACK_SIZE) {
+            current = lastPack;
+        } else {
+            current = newPack(last + 1);
+        }
+    }
+
+    /**
+     * applies the index records of a pack.
+     *
+     * @param pack the pack
+     * @throws IOException if the index cannot be read
+     */
+    private void readIndex(final Pack pack) throws IOException {
+        File file = pack.file(INDEX_SUFFIX);
+        if (!file.exists()) {
+            return;
+        }
+        byte[] id = new byte[ID_LENGTH];
+        try (DataInputStream in = new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+            while (true) {
+                try {
+                    in.readFully(id);
+                } catch (EOFException e) {
+                    return;
+                }
+                String key = new String(id, StandardCharsets.US_ASCII);
+                long offset = in.readLong();
+                int length = in.readInt();
+                if (length == DELETED) {
+                    Location location = index.get(key);
+                    if (location != null && location.pack == pack.number && location.offset == offset) {
+                        index.remove(key);
+                    }
+                } else if (offset + length <= pack.size) {
+                    index.put(key, new Location(pack.number, offset, length));
+                }
+            }
+        } catch (EOFException e) {
+            log.warn("incomplete record at the end of " + file);
+        }
+    }
+
+    /**
+     * starts a pack.
+     *
+     * @param number the number of the pack
+     * @return the pack
+     * @throws IOException if the pack cannot be created
+     */
+    private Pack newPack(final int number) throws IOException {
+        Pack pack = new Pack(number);
+        packs.put(number, pack);
+        return pack;
+    }
+
+    /**
+     * checks if a binary is stored.
+     *
+     * @param id the id
+     * @return true if it is
+     */
+    boolean contains(final String id) {
+        return index.containsKey(id);
+    }
+
+    /**
+     * gets the length of a binary.
+     *
+     * @param id the id
+     * @return the length, -1 if it is not stored
+     */
+    long length(final String id) {
+        Location location = index.get(id);
+        if (location == null) {
+            return DELETED;
+        }
+        return location.length;
+    }
+
+    /**
+     * lists the ids of the binaries.
+     *
+     * @return a copy of the ids
+     */
+    List<String> ids() {
+        return new ArrayList<>(index.keySet());
+    }
+
+    /**
+     * gets when the pack of a binary was last modified. the binary is as old at least.
+     *
+     * @param id the id
+     * @return the time, 0 if the binary is not stored
+     */
+    long lastModified(final String id) {
+        Location location = index.get(id);
+        if (location == null) {
+            return 0;
+        }
+        Pack pack = packs.get(location.pack);
+        if (pack == null) {
+            // compacted meanwhile, it is in the current pack now
+            return System.currentTimeMillis();
+        }
+        return pack.file(PACK_SUFFIX).lastModified();
+    }
+
+    /**
+     * stores a binary, unless a binary with the id is stored already.
+     *
+     * @param id   the id, the hex SHA-256 hash of the content
+     * @param data the content
+     * @throws IOException if the binary cannot be written
+     */
+    synchronized void add(final String id, final byte[] data) throws IOException {
+        if (id.length() != ID_LENGTH) {
+            throw new IllegalArgumentException("not a SHA-256 id " + id);
+        }
+        if (!index.containsKey(id)) {
+            append(id, data);
+        }
+    }
+
+    /**
+     * appends a binary to the current pack and starts a new one when it is full.
+     *
+     * @param id   the id
+     * @param data the content
+     * @throws IOException if the binary cannot be written
+     */
+    private void append(final String id, final byte[] data) throws IOException {
+        if (current.size >= PACK_SIZE) {
+            current = newPack(current.number + 1);
+        }
+        long offset = current.append(data);
+        current.record(id, offset, data.length);
+        current.live += data.length;
+        appended.add(current);
+        index.put(id, new Location(current.number, offset, data.length));
+    }
+
+    /**
+     * forces the packs appended to since the last flush to the disk, if binaries are synced. called before
+     * the documents that reference them are committed.
+     *
+     * @throws IOException if a pack cannot be forced
+     */
+    synchronized void flush() throws IOException {
+        if (sync) {
+            forceAppended();
+        }
+    }
+
+    /**
+     * forces the packs appended to since the last force to the disk, the binaries before their records.
+     *
+     * @throws IOException if a pack cannot be forced
+     */
+    private void forceAppended() throws IOException {
+        for (Iterator<Pack> it = appended.iterator(); it.hasNext();) {
+            Pack pack = it.next();
+            if (packs.get(pack.number) == pack) {
+                pack.force();
+            }
+            it.remove();
+        }
+    }
+
+    /**
+     * reads a binary.
+     *
+     * @param id the id
+     * @return the content, <code>null</code> if it is not stored
+     * @throws IOException if the binary cannot be read
+     */
+    byte[] read(final String id) throws IOException {
+        ClosedChannelException closed = null;
+        for (int i = 0; i < READ_ATTEMPTS; i++) {
+            Location location = index.get(id);
+            if (location == null) {
+                return null;
+            }
+            Pack pack = packs.get(location.pack);
+            if (pack == null) {
+                // compacted meanwhile, the location was updated before the pack was removed
+                continue;
+            }
+            try {
+                return pack.read(location.offset, location.length);
+            } catch (ClosedChannelException e) {
+                // compacted, or the channel was closed by an interrupted thread
+                closed = e;
+                pack.reopen();
+            }
+        }
+        throw new IOException("cannot read " + id, closed);
+    }
+
+    /**
+     * removes a binary. its space is reclaimed by the next compaction of its pack.
+     *
+     * @param id the id
+     * @return false if the binary is not stored
+     * @throws IOException if the removal cannot be recorded
+     */
+    synchronized boolean remove(final String id) throws IOException {
+        Location location = index.get(id);
+        if (location == null) {
+            return false;
+        }
+        Pack pack = packs.get(location.pack);
+        pack.record(id, location.offset, DELETED);
+        pack.live -= location.length;
+        index.remove(id);
+        return true;
+    }
+
+    /**
+     * compacts the closed packs that are at least half unused. errors are logged, the pack is compacted
+     * again next time.
+     */
+    void compact() {
+        List<Pack> candidates = new ArrayList<>();
+        synchronized (this) {
+            for (Pack pack : packs.values()) {
+                if (pack != current && pack.live * MIN_USED_SHARE <= pack.size) {
+                    candidates.add(pack);
+                }
+            }
+        }
+        for (Pack pack : candidates) {
+            try {
+                compact(pack);
+            } catch (IOException e) {
+                log.error("compact pack " + pack.file(PACK_SUFFIX), e);
+            }
+        }
+    }
+
+    /**
+     * copies the binaries of a pack to the current pack and deletes it. writes and removals wait, reads
+     * go on and find the binaries in the old pack until they are copied.
+     *
+     * @param pack the pack
+     * @throws IOException if a binary cannot be copied
+     */
+    private synchronized void compact(final Pack pack) throws IOException {
+        long moved = 0;
+        for (Map.Entry<String, Location> entry : index.entrySet()) {
+            Location location = entry.getValue();
+            if (location.pack == pack.number) {
+                append(entry.getKey(), pack.read(location.offset, location.length));
+                moved += location.length;
+            }
+        }
+        // the copies must be on the disk before the only other copy is gone
+        forceAppended();
+        packs.remove(pack.number);
+        appended.remove(pack);
+        pack.close();
+        // the index first, a pack without index is unused and deleted by the next compaction
+        boolean indexDeleted = pack.file(INDEX_SUFFIX).delete();
+        if (!pack.file(PACK_SUFFIX).delete() || !indexDeleted) {
+            log.warn("cannot delete pack " + pack.file(PACK_SUFFIX));
+        }
+        compactedPacks++;
+        log.debug("compacted pack " + pack.number + ", moved " + moved + " of " + pack.size + " bytes");
+    }
+
+    /**
+     * stops compacting and closes the packs.
+     */
+    synchronized void close() {
+        compactor.shutdownNow();
+        for (Pack pack : packs.values()) {
+            try {
+                pack.close();
+            } catch (IOException e) {
+                log.warn("close pack " + pack.file(PACK_SUFFIX), e);
+            }
+        }
+        packs.clear();
+        index.clear();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized String toString() {
+        long size = 0;
+        long live = 0;
+        for (Pack pack : packs.values()) {
+            size += pack.size;
+            live += pack.live;
+        }
+        return "packs " + packs.size() + ", binaries " + index.size() + ", used " + live + " of " + size
+                + " bytes, compacted packs " + compactedPacks;
+    }
+
+    /**
+     * where a binary is stored.
+     */
+    private static final class Location {
+
+        private final int pack;
+
+        private final long offset;
+
+        private final int length;
+
+        /**
+         * create a location.
+         *
+         * @param ppack   the number of the pack
+         * @param poffset the offset in the pack
+         * @param plength the length
+         */
+        Location(final int ppack, final long poffset, final int plength) {
+            this.pack = ppack;
+            this.offset = poffset;
+            this.length = plength;
+        }
+    }
+
+    /**
+     * a pack file and its index. size and live bytes are guarded by the store.
+     */
+    private final class Pack {
+
+        private final int number;
+
+        private volatile FileChannel data;
+
+        private FileChannel records;
+
+        private volatile boolean closed;
+
+        private long size;
+
+        private long live;
+
+        /**
+         * opens a pack, or creates it.
+         *
+         * @param pnumber the number of the pack
+         * @throws IOException if the files cannot be opened
+         */
+        Pack(final int pnumber) throws IOException {
+            this.number = pnumber;
+            this.data = openData();
+            this.records = FileChannel.open(file(INDEX_SUFFIX).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+            this.size = data.size();
+        }
+
+        /**
+         * gets a file of the pack.
+         *
+         * @param suffix the suffix of the file
+         * @return the file
+         */
+        File file(final String suffix) {
+            return new File(folder, number + suffix);
+        }
+
+        /**
+         * opens the pack file.
+         *
+         * @return the channel
+         * @throws IOException if it cannot be opened
+         */
+        private FileChannel openData() throws IOException {
+            return FileChannel.open(file(PACK_SUFFIX).toPath(), StandardOpenOption.CREATE,
+                    StandardOpenOption.READ, StandardOpenOption.WRITE);
+        }
+
+        /**
+         * appends a binary.
+         *
+         * @param content the content
+         * @return the offset
+         * @throws IOException if it cannot be written
+         */
+        long append(final byte[] content) throws IOException {
+            long offset = size;
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                data.write(buffer, offset + buffer.position());
+            }
+            size += content.length;
+            return offset;
+        }
+
+        /**
+         * appends an index record.
+         *
+         * @param id     the id
+         * @param offset the offset of the binary
+         * @param length the length of the binary, or {@value #DELETED}
+         * @throws IOException if it cannot be written
+         */
+        void record(final String id, final long offset, final int length) throws IOException {
+            ByteBuffer buffer = ByteBuffer.allocate(RECORD_LENGTH);
+            buffer.put(id.getBytes(StandardCharsets.US_ASCII)).putLong(offset).putInt(length);
+            buffer.flip();
+            while (buffer.hasRemaining()) {
+                records.write(buffer);
+            }
+        }
+
+        /**
+         * forces the binaries and then their records to the disk.
+         *
+         * @throws IOException if they cannot be forced
+         */
+        void force() throws IOException {
+            data.force(true);
+            records.force(true);
+        }
+
+        /**
+         * reads a binary.
+         *
+         * @param offset the offset
+         * @param length the length
+         * @return the content
+         * @throws IOException if it cannot be read
+         */
+        byte[] read(final long offset, final int length) throws IOException {
+            byte[] content = new byte[length];
+            ByteBuffer buffer = ByteBuffer.wrap(content);
+            while (buffer.hasRemaining()) {
+                if (data.read(buffer, offset + buffer.position()) < 0) {
+                    throw new EOFException("binary beyond the end of " + file(PACK_SUFFIX));
+                }
+            }
+            return content;
+        }
+
+        /**
+         * opens the pack file again after an interrupted thread closed it, unless the pack was closed.
+         *
+         * @throws IOException if it cannot be opened
+         */
+        synchronized void reopen() throws IOException {
+            if (!closed && !data.isOpen()) {
+                data = openData();
+            }
+        }
+
+        /**
+         * closes the files.
+         *
+         * @throws IOException if they cannot be closed
+         */
+        synchronized void close() throws IOException {
+            closed = true;
+            try {
+                data.close();
+            } finally {
+                records.close();
+            }
+        }
+    }
+}
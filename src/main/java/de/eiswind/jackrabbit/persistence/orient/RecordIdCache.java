@@ -0,0 +1,177 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.id.ORID;
+import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent cache of the orient record ids of bundle documents, so hot
+ * bundles can be loaded by record id without probing the uuid index.
+ * <p>
+ * Entries are hints for loading. Callers must check that the loaded record still is the
+ * bundle they asked for and {@link #remove} the entry if it is not.
+ * <p>
+ * They also answer whether a bundle exists, so an entry must never outlive the commit that deletes
+ * its bundle. Readers look up the database without holding the write monitor and may find a bundle
+ * whose deletion is being committed. Every commit that deletes bundles starts a new generation after
+ * the deletion is committed, and a looked up record id is only kept if no such commit happened since
+ * the lookup started, like in {@link ReferenceExistenceCache}.
+ */
+final class RecordIdCache {
+
+    /**
+     * rough memory estimate of one entry, NodeId and ORID plus map overhead.
+     */
+    private static final long ENTRY_SIZE = 128;
+
+    private final ConcurrentCache<NodeId, ORID> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * guards the generation together with the entries written under it.
+     */
+    private final Object lock = new Object();
+
+    private long generation;
+
+    /**
+     * create a cache.
+     *
+     * @param name          the name used in cache statistics
+     * @param maxMemorySize the maximum memory in bytes
+     */
+    RecordIdCache(final String name, final long maxMemorySize) {
+        cache = new ConcurrentCache<NodeId, ORID>(name);
+        cache.setMaxMemorySize(maxMemorySize);
+    }
+
+    /**
+     * gets the record id of a bundle.
+     *
+     * @param id the bundle id
+     * @return the record id or <code>null</code>
+     */
+    ORID get(final NodeId id) {
+        ORID rid = cache.get(id);
+        if (rid == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return rid;
+    }
+
+    /**
+     * checks if the record id of a bundle is cached, without counting a lookup. only committed bundles are
+     * cached and deleted ones are removed when their deletion is committed, so the bundle exists if it is.
+     *
+     * @param id the bundle id
+     * @return true if it is cached
+     */
+    boolean contains(final NodeId id) {
+        return cache.containsKey(id);
+    }
+
+    /**
+     * gets the current generation. must be taken before the database is looked up.
+     *
+     * @return the generation
+     */
+    long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * remembers the record id of a bundle that was written by a commit. temporary ids of uncommitted
+     * records are ignored.
+     *
+     * @param id  the bundle id
+     * @param rid the record id
+     */
+    void put(final NodeId id, final ORID rid) {
+        if (rid != null && rid.isPersistent()) {
+            synchronized (lock) {
+                cache.put(id, rid.copy(), ENTRY_SIZE);
+            }
+        }
+    }
+
+    /**
+     * remembers a looked up record id, unless bundles were deleted since the lookup started.
+     *
+     * @param id          the bundle id
+     * @param rid         the record id
+     * @param pgeneration the generation taken before the lookup
+     */
+    void put(final NodeId id, final ORID rid, final long pgeneration) {
+        if (rid != null && rid.isPersistent()) {
+            synchronized (lock) {
+                if (pgeneration == generation) {
+                    cache.put(id, rid.copy(), ENTRY_SIZE);
+                }
+            }
+        }
+    }
+
+    /**
+     * forgets the bundles of a committed deletion and starts a new generation.
+     *
+     * @param ids the deleted bundle ids
+     */
+    void deleted(final Collection<NodeId> ids) {
+        if (ids.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            generation++;
+            for (NodeId id : ids) {
+                cache.remove(id);
+            }
+        }
+    }
+
+    /**
+     * forgets a bundle.
+     *
+     * @param id the bundle id
+     */
+    void remove(final NodeId id) {
+        cache.remove(id);
+    }
+
+    /**
+     * forgets all bundles.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of lookups that found a record id
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that did not find a record id
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return cache.getCacheInfoAsString() + " hits=" + hits.get() + " misses=" + misses.get();
+    }
+}
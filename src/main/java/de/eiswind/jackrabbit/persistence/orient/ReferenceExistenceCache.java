@@ -0,0 +1,139 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import org.apache.jackrabbit.core.cache.ConcurrentCache;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.state.NodeReferences;
+
+import java.util.Collection;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Bounded, concurrent cache of whether a node is the target of references. Jackrabbit asks
+ * for every node it deletes, and most nodes are not referenced at all.
+ * <p>
+ * Readers look up the database without holding the write monitor, so a result may be outdated
+ * by a commit that finished in the meantime. Every commit of references starts a new generation,
+ * and a looked up result is only kept if no commit happened since the lookup started.
+ */
+final class ReferenceExistenceCache {
+
+    /**
+     * rough memory estimate of one entry, NodeId and Boolean plus map overhead.
+     */
+    private static final long ENTRY_SIZE = 96;
+
+    private final ConcurrentCache<NodeId, Boolean> cache;
+
+    private final AtomicLong hits = new AtomicLong();
+
+    private final AtomicLong misses = new AtomicLong();
+
+    /**
+     * guards the generation together with the entries written under it.
+     */
+    private final Object lock = new Object();
+
+    private long generation;
+
+    /**
+     * create a cache.
+     *
+     * @param name          the name used in cache statistics
+     * @param maxMemorySize the maximum memory in bytes
+     */
+    ReferenceExistenceCache(final String name, final long maxMemorySize) {
+        cache = new ConcurrentCache<NodeId, Boolean>(name);
+        cache.setMaxMemorySize(maxMemorySize);
+    }
+
+    /**
+     * checks if a node is known to be referenced.
+     *
+     * @param targetId the target id
+     * @return whether references exist, or <code>null</code> if unknown
+     */
+    Boolean get(final NodeId targetId) {
+        Boolean exists = cache.get(targetId);
+        if (exists == null) {
+            misses.incrementAndGet();
+        } else {
+            hits.incrementAndGet();
+        }
+        return exists;
+    }
+
+    /**
+     * gets the current generation. must be taken before the database is looked up.
+     *
+     * @return the generation
+     */
+    long getGeneration() {
+        synchronized (lock) {
+            return generation;
+        }
+    }
+
+    /**
+     * remembers a looked up result, unless references were committed since the lookup started.
+     *
+     * @param targetId    the target id
+     * @param exists      whether references exist
+     * @param pgeneration the generation taken before the lookup
+     */
+    void put(final NodeId targetId, final boolean exists, final long pgeneration) {
+        synchronized (lock) {
+            if (pgeneration == generation) {
+                cache.put(targetId, exists, ENTRY_SIZE);
+            }
+        }
+    }
+
+    /**
+     * records committed reference changes and starts a new generation.
+     *
+     * @param stored    the stored references
+     * @param destroyed the target ids of the deleted references
+     */
+    void committed(final Collection<NodeReferences> stored, final Collection<NodeId> destroyed) {
+        if (stored.isEmpty() && destroyed.isEmpty()) {
+            return;
+        }
+        synchronized (lock) {
+            generation++;
+            for (NodeReferences refs : stored) {
+                cache.put(refs.getTargetId(), refs.hasReferences(), ENTRY_SIZE);
+            }
+            for (NodeId targetId : destroyed) {
+                cache.put(targetId, Boolean.FALSE, ENTRY_SIZE);
+            }
+        }
+    }
+
+    /**
+     * forgets all targets.
+     */
+    void clear() {
+        cache.clear();
+    }
+
+    /**
+     * @return the number of lookups that were answered from the cache
+     */
+    long getHitCount() {
+        return hits.get();
+    }
+
+    /**
+     * @return the number of lookups that had to go to the database
+     */
+    long getMissCount() {
+        return misses.get();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public String toString() {
+        return cache.getCacheInfoAsString() + " hits=" + hits.get() + " misses=" + misses.get();
+    }
+}
@@ -0,0 +1,122 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.value.InternalValue;
+
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+import java.util.Set;
+import java.util.function.Consumer;
+
+/**
+ * Deletes the binaries of due tombstones that no bundle references any more.
+ */
+public class BlobTombstoneTest extends TestCase {
+
+    private static final long HOUR = 60 * 60 * 1000;
+
+    private final Random random = new Random(1);
+
+    private final List<ODocument> tombstones = new ArrayList<ODocument>();
+
+    private final Set<String> referenced = new HashSet<String>();
+
+    private BinaryFileSystemHelper fileSystem;
+
+    protected void setUp() throws Exception {
+        fileSystem = new BinaryFileSystemHelper(new MemoryFileSystem());
+    }
+
+    protected void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    public void testDeletesUnreferencedBinary() throws Exception {
+        String unreferenced = write();
+        String rereferenced = write();
+        // the binary got a new reference after its tombstone was written
+        referenced.add(rereferenced);
+        tombstone(unreferenced, System.currentTimeMillis() - 1);
+        tombstone(rereferenced, System.currentTimeMillis() - 1);
+        // the files must be older than the start of the run
+        Thread.sleep(10);
+
+        deleteTombstoned(0);
+
+        assertFalse(exists(unreferenced));
+        assertTrue(exists(rereferenced));
+        assertTrue(tombstones.isEmpty());
+    }
+
+    public void testKeepsTombstoneInSafetyWindow() throws Exception {
+        String id = write();
+        tombstone(id, System.currentTimeMillis());
+
+        deleteTombstoned(HOUR);
+
+        assertTrue(exists(id));
+        assertEquals(1, tombstones.size());
+    }
+
+    private void deleteTombstoned(long safetyWindow) throws Exception {
+        BlobCollector collector = new BlobCollector("test", fileSystem, new Tombstones(), new Object(), 0,
+                safetyWindow);
+        try {
+            collector.deleteTombstoned();
+        } finally {
+            collector.close();
+        }
+    }
+
+    private String write() throws Exception {
+        byte[] data = new byte[2048];
+        random.nextBytes(data);
+        return fileSystem.write(InternalValue.create(data));
+    }
+
+    private void tombstone(String id, long time) {
+        ODocument tombstone = new ODocument();
+        tombstone.field(BlobCollector.TOMBSTONE_BLOB, id);
+        tombstone.field(BlobCollector.TOMBSTONE_TIME, time);
+        tombstones.add(tombstone);
+    }
+
+    private boolean exists(String id) throws Exception {
+        try {
+            InputStream in = fileSystem.read(id);
+            in.close();
+            return true;
+        } catch (RuntimeException e) {
+            return false;
+        }
+    }
+
+    /**
+     * the tombstones of the test as one page, and the binaries it references.
+     */
+    private class Tombstones implements BlobCollector.Documents {
+
+        public ORID scanBundles(ORID after, int count, Consumer<ODocument> visitor) {
+            return null;
+        }
+
+        public ORID scanTombstones(ORID after, int count, Consumer<ODocument> visitor) {
+            new ArrayList<ODocument>(tombstones).forEach(visitor);
+            return null;
+        }
+
+        public boolean isReferenced(String id) {
+            return referenced.contains(id);
+        }
+
+        public void removeTombstones(List<ODocument> due) {
+            tombstones.removeAll(due);
+        }
+    }
+}
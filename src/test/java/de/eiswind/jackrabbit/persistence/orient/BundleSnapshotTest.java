@@ -0,0 +1,132 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import javax.jcr.PropertyType;
+import java.util.Collections;
+import java.util.HashSet;
+
+/**
+ * Writes bundles against the snapshot of their last write.
+ */
+public class BundleSnapshotTest extends TestCase {
+
+    private static final Name KEEP = NameFactoryImpl.getInstance().create("", "keep");
+
+    private static final Name CHANGE = NameFactoryImpl.getInstance().create("", "change");
+
+    private static final Name REMOVE = NameFactoryImpl.getInstance().create("", "remove");
+
+    private ODatabaseDocumentTx database;
+
+    protected void setUp() throws Exception {
+        database = new ODatabaseDocumentTx("memory:snapshot" + System.nanoTime());
+        database.create();
+    }
+
+    protected void tearDown() throws Exception {
+        database.drop();
+    }
+
+    public void testUnchangedBundle() throws Exception {
+        NodePropBundle bundle = createBundle();
+        ODocument doc = new ODocument();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+        new BundleMapper(doc, database, (BinaryFileSystemHelper) null).writePhase1(bundle, snapshot);
+        assertFalse(doc.isDirty());
+    }
+
+    public void testChangedAndRemovedProperties() throws Exception {
+        NodePropBundle bundle = createBundle();
+        ODocument doc = new ODocument();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+        ODocument keepDoc = propertyDoc(snapshot, KEEP);
+        ODocument changeDoc = propertyDoc(snapshot, CHANGE);
+
+        bundle.addProperty(createEntry(bundle.getId(), CHANGE, "changed"));
+        bundle.removeProperty(REMOVE, null);
+        BundleSnapshot next = write(doc, bundle, snapshot);
+
+        assertSame(keepDoc, propertyDoc(next, KEEP));
+        assertNotSame(changeDoc, propertyDoc(next, CHANGE));
+        assertNull(propertyDoc(next, REMOVE));
+
+        NodePropBundle read = read(doc);
+        assertEquals(new HashSet<Name>(bundle.getPropertyNames()), new HashSet<Name>(read.getPropertyNames()));
+        assertEquals("keep", read.getPropertyEntry(KEEP).getValues()[0].getString());
+        assertEquals("changed", read.getPropertyEntry(CHANGE).getValues()[0].getString());
+        assertFalse(read.hasProperty(REMOVE));
+    }
+
+    public void testStaleSnapshot() throws Exception {
+        NodePropBundle bundle = createBundle();
+        ODocument doc = new ODocument();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+        ODocument keepDoc = propertyDoc(snapshot, KEEP);
+
+        // a write without the snapshot moves the record version past it
+        bundle.addProperty(createEntry(bundle.getId(), CHANGE, "other"));
+        write(doc, bundle, null);
+        bundle.removeProperty(REMOVE, null);
+        BundleSnapshot next = write(doc, bundle, snapshot);
+
+        assertNotSame(keepDoc, propertyDoc(next, KEEP));
+        NodePropBundle read = read(doc);
+        assertEquals("keep", read.getPropertyEntry(KEEP).getValues()[0].getString());
+        assertEquals("other", read.getPropertyEntry(CHANGE).getValues()[0].getString());
+        assertFalse(read.hasProperty(REMOVE));
+    }
+
+    private NodePropBundle createBundle() {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setParentId(RepositoryImpl.ROOT_NODE_ID);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(new HashSet<NodeId>());
+        bundle.addProperty(createEntry(bundle.getId(), KEEP, "keep"));
+        bundle.addProperty(createEntry(bundle.getId(), CHANGE, "change"));
+        bundle.addProperty(createEntry(bundle.getId(), REMOVE, "remove"));
+        return bundle;
+    }
+
+    private NodePropBundle.PropertyEntry createEntry(NodeId id, Name name, String value) {
+        NodePropBundle.PropertyEntry entry = new NodePropBundle.PropertyEntry(new PropertyId(id, name));
+        entry.setType(PropertyType.STRING);
+        entry.setMultiValued(false);
+        entry.setValues(new InternalValue[] { InternalValue.create(value) });
+        return entry;
+    }
+
+    private BundleSnapshot write(ODocument doc, NodePropBundle bundle, BundleSnapshot previous)
+            throws Exception {
+        BundleMapper mapper = new BundleMapper(doc, database, (BinaryFileSystemHelper) null);
+        mapper.writePhase1(bundle, previous);
+        doc.save();
+        return mapper.createSnapshot();
+    }
+
+    private NodePropBundle read(ODocument doc) {
+        database.getLevel1Cache().clear();
+        ODocument loaded = database.load(doc.getIdentity());
+        return new BundleMapper(loaded, database, (BinaryFileSystemHelper) null).read();
+    }
+
+    private ODocument propertyDoc(BundleSnapshot snapshot, Name name) {
+        for (int i = 0; i < snapshot.getProperties().size(); i++) {
+            if (snapshot.getProperties().get(i).getName().equals(name)) {
+                return snapshot.getPropertyDocs().get(i);
+            }
+        }
+        return null;
+    }
+}
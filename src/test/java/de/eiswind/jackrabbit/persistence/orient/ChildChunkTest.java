@@ -0,0 +1,156 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Splits and merges the chunk records of large child lists.
+ */
+public class ChildChunkTest extends TestCase {
+
+    private static final String CHUNK_CLASS = "Chunk";
+
+    private static final int CHUNK_SIZE = 4;
+
+    private ODatabaseDocumentTx database;
+
+    private MapperSettings settings;
+
+    private int names;
+
+    protected void setUp() throws Exception {
+        database = new ODatabaseDocumentTx("memory:chunks" + System.nanoTime());
+        database.create();
+        database.getMetadata().getSchema().createClass(CHUNK_CLASS);
+        settings = new MapperSettings(null, null, CHUNK_CLASS, CHUNK_SIZE, null, false, false);
+    }
+
+    protected void tearDown() throws Exception {
+        database.drop();
+    }
+
+    public void testEmbeddedUpToChunkSize() throws Exception {
+        NodePropBundle bundle = createBundle(CHUNK_SIZE);
+        ODocument doc = new ODocument();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+
+        assertNull(snapshot.getChunkIds());
+        assertNotNull(doc.field("children"));
+        assertEquals(0, database.countClass(CHUNK_CLASS));
+        assertChildren(bundle, doc);
+    }
+
+    public void testSplit() throws Exception {
+        NodePropBundle bundle = createBundle(CHUNK_SIZE);
+        ODocument doc = new ODocument();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+
+        addChildren(bundle, 1);
+        snapshot = write(doc, bundle, snapshot);
+        assertNull(doc.field("children"));
+        assertEquals(2, snapshot.getChunkIds().size());
+        assertChunks(snapshot);
+        assertChildren(bundle, doc);
+
+        addChildren(bundle, 2 * CHUNK_SIZE);
+        snapshot = write(doc, bundle, snapshot);
+        List<ORID> before = snapshot.getChunkIds();
+        addChildren(bundle, CHUNK_SIZE - 1);
+        snapshot = write(doc, bundle, snapshot);
+
+        // an append only rewrites the last chunk
+        assertEquals(before.subList(0, before.size() - 1),
+                snapshot.getChunkIds().subList(0, before.size() - 1));
+        assertChunks(snapshot);
+        assertChildren(bundle, doc);
+    }
+
+    public void testMerge() throws Exception {
+        NodePropBundle bundle = createBundle(3 * CHUNK_SIZE);
+        ODocument doc = new ODocument();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+        assertEquals(3, snapshot.getChunkIds().size());
+        ORID first = snapshot.getChunkIds().get(0);
+
+        // leaves a single entry in the middle chunk, which is merged with the next one
+        List<NodePropBundle.ChildNodeEntry> children = bundle.getChildNodeEntries();
+        for (int i = 0; i < CHUNK_SIZE - 1; i++) {
+            children.remove(CHUNK_SIZE);
+        }
+        snapshot = write(doc, bundle, snapshot);
+
+        assertEquals(first, snapshot.getChunkIds().get(0));
+        for (int size : snapshot.getChunkSizes()) {
+            assertTrue("chunk of " + size, size >= CHUNK_SIZE / 2);
+        }
+        assertChunks(snapshot);
+        assertChildren(bundle, doc);
+    }
+
+    public void testEmbeddedAgainWithoutSnapshot() throws Exception {
+        NodePropBundle bundle = createBundle(2 * CHUNK_SIZE);
+        ODocument doc = new ODocument();
+        write(doc, bundle, null);
+        assertEquals(2, database.countClass(CHUNK_CLASS));
+
+        bundle.getChildNodeEntries().subList(CHUNK_SIZE, 2 * CHUNK_SIZE).clear();
+        BundleSnapshot snapshot = write(doc, bundle, null);
+
+        assertNull(snapshot.getChunkIds());
+        assertEquals(0, database.countClass(CHUNK_CLASS));
+        assertChildren(bundle, doc);
+    }
+
+    private NodePropBundle createBundle(int children) {
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setParentId(RepositoryImpl.ROOT_NODE_ID);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(new HashSet<NodeId>());
+        addChildren(bundle, children);
+        return bundle;
+    }
+
+    private void addChildren(NodePropBundle bundle, int count) {
+        for (int i = 0; i < count; i++) {
+            bundle.addChildNodeEntry(NameFactoryImpl.getInstance().create("", "child" + names++), NodeId.randomId());
+        }
+    }
+
+    private BundleSnapshot write(ODocument doc, NodePropBundle bundle, BundleSnapshot previous)
+            throws Exception {
+        BundleMapper mapper = new BundleMapper(doc, database, settings);
+        mapper.writePhase1(bundle, previous);
+        doc.save();
+        return mapper.createSnapshot();
+    }
+
+    private void assertChunks(BundleSnapshot snapshot) {
+        int total = 0;
+        for (int size : snapshot.getChunkSizes()) {
+            assertTrue("chunk of " + size, size > 0 && size <= CHUNK_SIZE);
+            total += size;
+        }
+        assertEquals(snapshot.getChildren().size(), total);
+        assertEquals(snapshot.getChunkIds().size(), database.countClass(CHUNK_CLASS));
+    }
+
+    private void assertChildren(NodePropBundle expected, ODocument doc) {
+        database.getLevel1Cache().clear();
+        ODocument loaded = database.load(doc.getIdentity());
+        NodePropBundle read = new BundleMapper(loaded, database, settings).read();
+        assertEquals(expected.getChildNodeEntries(), read.getChildNodeEntries());
+    }
+}
@@ -0,0 +1,114 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+import javax.jcr.PropertyType;
+import java.io.File;
+import java.io.OutputStream;
+
+/**
+ * Leaves no uncommitted bundle state in the bundle cache when a commit fails.
+ */
+public class CommitFailureTest extends TestCase {
+
+    private static final Name TEST = NameFactoryImpl.getInstance().create("", "test");
+
+    private static final int BINARY_SIZE = 2048;
+
+    private File directory;
+
+    private String url;
+
+    private ODatabaseDocumentTx database;
+
+    private OrientPersistenceManager manager;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("commitfailure", "");
+        directory.delete();
+        directory.mkdirs();
+        url = "memory:commitfailure" + System.nanoTime();
+        database = new ODatabaseDocumentTx(url);
+        database.create();
+        manager = new OrientPersistenceManager();
+        manager.setUrl(url);
+        manager.setSchemaObjectPrefix("T");
+        manager.init(new PMContext(directory, new MemoryFileSystem(), RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()), null, null, new RepositoryStatisticsImpl()));
+    }
+
+    protected void tearDown() throws Exception {
+        manager.close();
+        ODatabaseRecordThreadLocal.INSTANCE.set(database);
+        database.drop();
+        FileUtils.forceDelete(directory);
+    }
+
+    public void testFailedCommitEvictsBundles() throws Exception {
+        NodeId id = NodeId.randomId();
+        NodeState node = new NodeState(id, NameConstants.NT_UNSTRUCTURED, RepositoryImpl.ROOT_NODE_ID,
+                ItemState.STATUS_NEW, true);
+        node.addPropertyName(TEST);
+        PropertyState property = createProperty(new PropertyId(id, TEST));
+        property.setType(PropertyType.STRING);
+        property.setValues(new InternalValue[] { InternalValue.create("committed") });
+        ChangeLog changes = new ChangeLog();
+        changes.added(node);
+        changes.added(property);
+        manager.store(changes);
+
+        NodeState added = manager.load(id);
+        NodeId child = NodeId.randomId();
+        added.addChildNodeEntry(TEST, child);
+        PropertyState failing = manager.load(property.getPropertyId());
+        // a binary that is gone when the commit reads it
+        MemoryFileSystem files = new MemoryFileSystem();
+        files.init();
+        OutputStream out = files.getOutputStream("/missing");
+        out.write(new byte[BINARY_SIZE]);
+        out.close();
+        failing.setType(PropertyType.BINARY);
+        failing.setValues(new InternalValue[] { InternalValue.create(new FileSystemResource(files, "/missing")) });
+        files.deleteFile("/missing");
+        changes = new ChangeLog();
+        changes.modified(added);
+        changes.modified(failing);
+        try {
+            manager.store(changes);
+            fail();
+        } catch (ItemStateException expected) {
+        }
+
+        NodeState reloaded = manager.load(id);
+        assertFalse(reloaded.hasChildNodeEntry(child));
+        PropertyState kept = manager.load(property.getPropertyId());
+        assertEquals(PropertyType.STRING, kept.getType());
+        assertEquals("committed", kept.getValues()[0].getString());
+    }
+
+    private PropertyState createProperty(PropertyId id) {
+        PropertyState property = manager.createNew(id);
+        property.setMultiValued(false);
+        return property;
+    }
+}
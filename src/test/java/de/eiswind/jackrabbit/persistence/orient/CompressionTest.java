@@ -0,0 +1,124 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.commons.io.IOUtils;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+
+import javax.jcr.PropertyType;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Deflates files and long strings that compress well, and stores the others as they are.
+ */
+public class CompressionTest extends TestCase {
+
+    private static final int FILE_SIZE = 100 * 1024;
+
+    private static final Name LONG = NameFactoryImpl.getInstance().create("", "long");
+
+    private static final Name SHORT = NameFactoryImpl.getInstance().create("", "short");
+
+    private final Random random = new Random(1);
+
+    private BinaryFileSystemHelper fileSystem;
+
+    protected void setUp() throws Exception {
+        fileSystem = new BinaryFileSystemHelper(new MemoryFileSystem(), null, 0, 1, false, 0, true);
+    }
+
+    protected void tearDown() throws Exception {
+        fileSystem.close();
+    }
+
+    public void testCompressedFile() throws Exception {
+        byte[] data = new byte[FILE_SIZE];
+        for (int i = 0; i < data.length; i++) {
+            data[i] = (byte) (i % 10);
+        }
+        String id = fileSystem.write(InternalValue.create(data));
+        assertTrue(id, Compression.isCompressed(id));
+        assertRead(data, id);
+    }
+
+    public void testIncompressibleFileStoredRaw() throws Exception {
+        byte[] data = new byte[FILE_SIZE];
+        random.nextBytes(data);
+        String id = fileSystem.write(InternalValue.create(data));
+        assertFalse(id, Compression.isCompressed(id));
+        assertRead(data, id);
+    }
+
+    public void testCompressedString() throws Exception {
+        StringBuilder value = new StringBuilder();
+        while (value.length() < 2 * Compression.MIN_STRING_LENGTH) {
+            value.append("compresses well ");
+        }
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setParentId(RepositoryImpl.ROOT_NODE_ID);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(new HashSet<NodeId>());
+        bundle.addProperty(createEntry(bundle.getId(), LONG, value.toString()));
+        bundle.addProperty(createEntry(bundle.getId(), SHORT, "short"));
+
+        ODatabaseDocumentTx database = new ODatabaseDocumentTx("memory:compression" + System.nanoTime());
+        database.create();
+        try {
+            ODocument doc = new ODocument();
+            BundleMapper mapper = new BundleMapper(doc, database, fileSystem);
+            mapper.writePhase1(bundle);
+            doc.save();
+            BundleSnapshot snapshot = mapper.createSnapshot();
+            assertEquals(Boolean.TRUE, valueDoc(snapshot, LONG).field(Compression.FLAG));
+            assertTrue(valueDoc(snapshot, LONG).field("value") instanceof byte[]);
+            assertNull(valueDoc(snapshot, SHORT).field(Compression.FLAG));
+
+            database.getLevel1Cache().clear();
+            ODocument loaded = database.load(doc.getIdentity());
+            NodePropBundle read = new BundleMapper(loaded, database, fileSystem).read();
+            assertEquals(value.toString(), read.getPropertyEntry(LONG).getValues()[0].getString());
+            assertEquals("short", read.getPropertyEntry(SHORT).getValues()[0].getString());
+        } finally {
+            database.drop();
+        }
+    }
+
+    private void assertRead(byte[] expected, String id) throws Exception {
+        assertTrue(Arrays.equals(expected, IOUtils.toByteArray(fileSystem.read(id))));
+        InternalValue value = fileSystem.readValue(id);
+        assertEquals(expected.length, value.getLength());
+        assertTrue(Arrays.equals(expected, IOUtils.toByteArray(value.getStream())));
+    }
+
+    private NodePropBundle.PropertyEntry createEntry(NodeId id, Name name, String value) {
+        NodePropBundle.PropertyEntry entry = new NodePropBundle.PropertyEntry(new PropertyId(id, name));
+        entry.setType(PropertyType.STRING);
+        entry.setMultiValued(false);
+        entry.setValues(new InternalValue[] { InternalValue.create(value) });
+        return entry;
+    }
+
+    private ODocument valueDoc(BundleSnapshot snapshot, Name name) {
+        for (int i = 0; i < snapshot.getProperties().size(); i++) {
+            if (snapshot.getProperties().get(i).getName().equals(name)) {
+                List<ODocument> values = snapshot.getPropertyDocs().get(i).field("values");
+                return values.get(0);
+            }
+        }
+        return null;
+    }
+}
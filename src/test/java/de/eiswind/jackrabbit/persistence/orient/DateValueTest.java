@@ -0,0 +1,70 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.util.ISO8601;
+
+import javax.jcr.PropertyType;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.TimeZone;
+
+/**
+ * Stores DATE values as ISO8601 strings.
+ */
+public class DateValueTest extends TestCase {
+
+    private static final Name DATE = NameFactoryImpl.getInstance().create("", "date");
+
+    private ODatabaseDocumentTx database;
+
+    protected void setUp() throws Exception {
+        database = new ODatabaseDocumentTx("memory:dates" + System.nanoTime());
+        database.create();
+    }
+
+    protected void tearDown() throws Exception {
+        database.drop();
+    }
+
+    public void testRoundTripKeepsTimeZone() throws Exception {
+        Calendar date = Calendar.getInstance(TimeZone.getTimeZone("GMT+05:30"));
+        date.setTimeInMillis(1234567890123L);
+        NodePropBundle bundle = new NodePropBundle(NodeId.randomId());
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setParentId(RepositoryImpl.ROOT_NODE_ID);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(new HashSet<NodeId>());
+        NodePropBundle.PropertyEntry entry = new NodePropBundle.PropertyEntry(new PropertyId(bundle.getId(), DATE));
+        entry.setType(PropertyType.DATE);
+        entry.setMultiValued(false);
+        entry.setValues(new InternalValue[] { InternalValue.create(date) });
+        bundle.addProperty(entry);
+
+        ODocument doc = new ODocument();
+        new BundleMapper(doc, database, (BinaryFileSystemHelper) null).writePhase1(bundle);
+        doc.save();
+
+        database.getLevel1Cache().clear();
+        ODocument loaded = database.load(doc.getIdentity());
+        List<ODocument> propertyDocs = loaded.field("properties");
+        List<ODocument> valueDocs = propertyDocs.get(0).field("values");
+        assertEquals(ISO8601.format(date), valueDocs.get(0).field("value"));
+
+        NodePropBundle read = new BundleMapper(loaded, database, (BinaryFileSystemHelper) null).read();
+        Calendar readDate = read.getPropertyEntry(DATE).getValues()[0].getDate();
+        assertEquals(date.getTimeInMillis(), readDate.getTimeInMillis());
+        assertEquals(date.getTimeZone().getRawOffset(), readDate.getTimeZone().getRawOffset());
+    }
+}
@@ -0,0 +1,194 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.FileSystem;
+import org.apache.jackrabbit.core.fs.FileSystemResource;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.ItemStateException;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.core.state.PropertyState;
+import org.apache.jackrabbit.core.value.InternalValue;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+import javax.jcr.PropertyType;
+import java.io.File;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Properties;
+
+/**
+ * Keeps the name dictionary in the database, in the transactions of the bundles that use the names.
+ */
+public class NameDictionaryTest extends TestCase {
+
+    private static final String PREFIX = "T";
+
+    private static final int BINARY_SIZE = 2048;
+
+    private File directory;
+
+    private String url;
+
+    private ODatabaseDocumentTx database;
+
+    private FileSystem workspaceFileSystem;
+
+    private OrientPersistenceManager manager;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("names", "");
+        directory.delete();
+        directory.mkdirs();
+        url = "memory:names" + System.nanoTime();
+        database = new ODatabaseDocumentTx(url);
+        database.create();
+        workspaceFileSystem = new MemoryFileSystem();
+        workspaceFileSystem.init();
+    }
+
+    protected void tearDown() throws Exception {
+        if (manager != null) {
+            manager.close();
+        }
+        ODatabaseRecordThreadLocal.INSTANCE.set(database);
+        database.drop();
+        FileUtils.forceDelete(directory);
+    }
+
+    public void testNamesSurviveRestart() throws Exception {
+        manager = createManager();
+        NodeId id = NodeId.randomId();
+        store(id, name("first"), InternalValue.create("value"));
+        Map<Integer, String> stored = nameRecords();
+        assertTrue(stored.containsValue("first"));
+
+        manager.close();
+        manager = createManager();
+        PropertyState property = manager.load(new PropertyId(id, name("first")));
+        assertEquals("value", property.getValues()[0].getString());
+        assertEquals(stored, nameRecords());
+    }
+
+    public void testRolledBackNamesAreForgotten() throws Exception {
+        manager = createManager();
+        int before = nameRecords().size();
+        try {
+            store(NodeId.randomId(), name("failed"), missingBinary());
+            fail();
+        } catch (ItemStateException expected) {
+        }
+        assertEquals(before, nameRecords().size());
+        assertFalse(nameRecords().containsValue("failed"));
+
+        // the index that was given out in the failed commit belongs to the next new name
+        NodeId id = NodeId.randomId();
+        store(id, name("second"), InternalValue.create("value"));
+        manager.close();
+        manager = createManager();
+        assertEquals("value", manager.load(new PropertyId(id, name("second"))).getValues()[0].getString());
+    }
+
+    public void testImportNameIndex() throws Exception {
+        // the files an earlier version kept the dictionary in
+        Properties namespaces = new Properties();
+        namespaces.setProperty("", "7");
+        storeProperties("/namespaces.properties", namespaces);
+        Properties legacy = new Properties();
+        legacy.setProperty("7:legacy", "12345");
+        storeProperties("/names.properties", legacy);
+
+        manager = createManager();
+        assertEquals("legacy", nameRecords().get(12345));
+
+        NodeId id = NodeId.randomId();
+        store(id, name("legacy"), InternalValue.create("value"));
+        ODatabaseDocumentTx check = new ODatabaseDocumentTx(url).open("admin", "admin");
+        try {
+            ODocument doc = check.browseClass(PREFIX + directory.getName() + "Bundle").next();
+            List<ODocument> propertyDocs = doc.field("properties");
+            assertEquals(12345, ((Number) propertyDocs.get(0).field("name")).intValue());
+        } finally {
+            check.close();
+        }
+    }
+
+    private OrientPersistenceManager createManager() throws Exception {
+        OrientPersistenceManager created = new OrientPersistenceManager();
+        created.setUrl(url);
+        created.setSchemaObjectPrefix(PREFIX);
+        created.init(new PMContext(directory, workspaceFileSystem, RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()), null, null, new RepositoryStatisticsImpl()));
+        return created;
+    }
+
+    private void store(NodeId id, Name propertyName, InternalValue value) throws Exception {
+        NodeState node = new NodeState(id, NameConstants.NT_UNSTRUCTURED, RepositoryImpl.ROOT_NODE_ID,
+                ItemState.STATUS_NEW, true);
+        node.addPropertyName(propertyName);
+        PropertyState property = manager.createNew(new PropertyId(id, propertyName));
+        property.setMultiValued(false);
+        property.setType(value.getType());
+        property.setValues(new InternalValue[] { value });
+        ChangeLog changes = new ChangeLog();
+        changes.added(node);
+        changes.added(property);
+        manager.store(changes);
+    }
+
+    /**
+     * a binary that is gone when the commit reads it.
+     */
+    private InternalValue missingBinary() throws Exception {
+        MemoryFileSystem files = new MemoryFileSystem();
+        files.init();
+        OutputStream out = files.getOutputStream("/missing");
+        out.write(new byte[BINARY_SIZE]);
+        out.close();
+        InternalValue value = InternalValue.create(new FileSystemResource(files, "/missing"));
+        files.deleteFile("/missing");
+        assertEquals(PropertyType.BINARY, value.getType());
+        return value;
+    }
+
+    private void storeProperties(String path, Properties properties) throws Exception {
+        OutputStream out = workspaceFileSystem.getOutputStream(path);
+        try {
+            properties.store(out, null);
+        } finally {
+            out.close();
+        }
+    }
+
+    private Name name(String localName) {
+        return NameFactoryImpl.getInstance().create("", localName);
+    }
+
+    private Map<Integer, String> nameRecords() {
+        ODatabaseDocumentTx check = new ODatabaseDocumentTx(url).open("admin", "admin");
+        try {
+            Map<Integer, String> records = new HashMap<Integer, String>();
+            for (ODocument doc : check.browseClass(PREFIX + directory.getName() + "Name")) {
+                records.put(((Number) doc.field(NameDictionary.INDEX)).intValue(), doc.field(NameDictionary.LOCAL));
+            }
+            return records;
+        } finally {
+            check.close();
+        }
+    }
+}
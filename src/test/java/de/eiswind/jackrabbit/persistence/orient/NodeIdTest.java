@@ -0,0 +1,173 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.db.record.OIdentifiable;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.persistence.util.NodePropBundle;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.ItemState;
+import org.apache.jackrabbit.core.state.NodeState;
+import org.apache.jackrabbit.spi.Name;
+import org.apache.jackrabbit.spi.commons.name.NameConstants;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+import java.io.File;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+
+/**
+ * Stores node ids as raw bytes and converts documents that store them as uuid strings.
+ */
+public class NodeIdTest extends TestCase {
+
+    private static final String PREFIX = "T";
+
+    private static final Name TEST = NameFactoryImpl.getInstance().create("", "test");
+
+    private File directory;
+
+    private String url;
+
+    private String bundleClassName;
+
+    private ODatabaseDocumentTx database;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("nodeids", "");
+        directory.delete();
+        directory.mkdirs();
+        bundleClassName = PREFIX + directory.getName() + "Bundle";
+        url = "memory:nodeids" + System.nanoTime();
+        database = new ODatabaseDocumentTx(url);
+        database.create();
+    }
+
+    protected void tearDown() throws Exception {
+        ODatabaseRecordThreadLocal.INSTANCE.set(database);
+        database.drop();
+        FileUtils.forceDelete(directory);
+    }
+
+    public void testIdValue() {
+        NodeId id = NodeId.randomId();
+        byte[] value = BundleMapper.idValue(id);
+        assertEquals(16, value.length);
+        assertEquals(id, BundleMapper.readId(value));
+        assertEquals(id, BundleMapper.readId(id.toString()));
+        assertNull(BundleMapper.readId(null));
+    }
+
+    public void testStoredAsRawBytes() throws Exception {
+        OrientPersistenceManager manager = createManager();
+        try {
+            NodeId id = NodeId.randomId();
+            NodeId child = NodeId.randomId();
+            NodeState node = new NodeState(id, TEST, RepositoryImpl.ROOT_NODE_ID, ItemState.STATUS_NEW, true);
+            node.addChildNodeEntry(TEST, child);
+            ChangeLog changes = new ChangeLog();
+            changes.added(node);
+            manager.store(changes);
+
+            ODocument doc = loadBundleDoc(id);
+            assertTrue(doc.field("uuid") instanceof byte[]);
+            assertTrue(doc.field("parentuuid") instanceof byte[]);
+            List<ODocument> children = doc.field("children");
+            assertTrue(children.get(0).field("uuid") instanceof byte[]);
+            assertEquals(RepositoryImpl.ROOT_NODE_ID, BundleMapper.readId(doc.field("parentuuid")));
+            assertEquals(child, BundleMapper.readId(children.get(0).field("uuid")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    public void testMigrateNodeIds() throws Exception {
+        OSchema schema = database.getMetadata().getSchema();
+        OClass bundleClass = schema.createClass(bundleClassName, schema.getClass("V"));
+        bundleClass.createProperty("uuid", OType.STRING).createIndex(OClass.INDEX_TYPE.UNIQUE);
+        schema.save();
+
+        NodeId id = NodeId.randomId();
+        NodeId child = NodeId.randomId();
+        NodePropBundle bundle = new NodePropBundle(id);
+        bundle.setNodeTypeName(NameConstants.NT_UNSTRUCTURED);
+        bundle.setParentId(RepositoryImpl.ROOT_NODE_ID);
+        bundle.setMixinTypeNames(Collections.<Name>emptySet());
+        bundle.setSharedSet(new HashSet<NodeId>());
+        bundle.addChildNodeEntry(TEST, child);
+        ODocument legacy = new ODocument(bundleClassName);
+        new BundleMapper(legacy, database, (BinaryFileSystemHelper) null).writePhase1(bundle);
+        // the form documents were written in before ids were raw bytes
+        legacy.field("uuid", id.toString(), OType.STRING);
+        legacy.field("parentuuid", RepositoryImpl.ROOT_NODE_ID.toString(), OType.STRING);
+        List<ODocument> legacyChildren = legacy.field("children");
+        legacyChildren.get(0).field("uuid", child.toString(), OType.STRING);
+        legacy.save();
+
+        OrientPersistenceManager manager = createManager();
+        try {
+            assertTrue(manager.exists(id));
+            NodePropBundle loaded = manager.loadBundle(id);
+            assertEquals(RepositoryImpl.ROOT_NODE_ID, loaded.getParentId());
+            assertEquals(child, loaded.getChildNodeEntries().get(0).getId());
+
+            ODocument doc = loadBundleDoc(id);
+            assertTrue(doc.field("uuid") instanceof byte[]);
+            assertTrue(doc.field("parentuuid") instanceof byte[]);
+            // embedded ids are converted on the next write
+            List<ODocument> children = doc.field("children");
+            assertTrue(children.get(0).field("uuid") instanceof String);
+
+            NodeState node = manager.load(id);
+            NodeId added = NodeId.randomId();
+            node.addChildNodeEntry(NameConstants.JCR_CONTENT, added);
+            ChangeLog changes = new ChangeLog();
+            changes.modified(node);
+            manager.store(changes);
+
+            children = loadBundleDoc(id).field("children");
+            assertTrue(children.get(0).field("uuid") instanceof byte[]);
+            assertEquals(child, BundleMapper.readId(children.get(0).field("uuid")));
+            assertEquals(added, BundleMapper.readId(children.get(1).field("uuid")));
+        } finally {
+            manager.close();
+        }
+    }
+
+    private OrientPersistenceManager createManager() throws Exception {
+        OrientPersistenceManager manager = new OrientPersistenceManager();
+        manager.setUrl(url);
+        manager.setSchemaObjectPrefix(PREFIX);
+        manager.init(new PMContext(directory, new MemoryFileSystem(), RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()), null, null, new RepositoryStatisticsImpl()));
+        return manager;
+    }
+
+    private ODocument loadBundleDoc(NodeId id) {
+        ODatabaseDocumentTx check = new ODatabaseDocumentTx(url).open("admin", "admin");
+        try {
+            OClass bundleClass = check.getMetadata().getSchema().getClass(bundleClassName);
+            assertEquals(OType.BINARY, bundleClass.getProperty("uuid").getType());
+            OIdentifiable rid = (OIdentifiable) check.getMetadata().getIndexManager()
+                    .getIndex(bundleClassName + ".uuid").get(BundleMapper.idValue(id));
+            assertNotNull(rid);
+            ODocument doc = check.load(rid.getIdentity());
+            doc.deserializeFields();
+            return doc;
+        } finally {
+            check.close();
+        }
+    }
+}
@@ -0,0 +1,145 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+/**
+ * Appends, removes and compacts the binaries of a pack store.
+ */
+public class PackStoreTest extends TestCase {
+
+    private static final int MB = 1024 * 1024;
+
+    /**
+     * binaries of a megabyte that fill more than the first pack.
+     */
+    private static final int LARGE_COUNT = 65;
+
+    private final Random random = new Random(1);
+
+    private File folder;
+
+    private PackStore store;
+
+    protected void setUp() throws Exception {
+        folder = File.createTempFile("packs", "");
+        folder.delete();
+        store = new PackStore(folder);
+    }
+
+    protected void tearDown() throws Exception {
+        store.close();
+        FileUtils.forceDelete(folder);
+    }
+
+    public void testAddAndRemove() throws Exception {
+        byte[] data = content(100);
+        String id = id(1);
+        store.add(id, data);
+        assertTrue(store.contains(id));
+        assertEquals(data.length, store.length(id));
+        assertTrue(Arrays.equals(data, store.read(id)));
+
+        long size = new File(folder, "1.pack").length();
+        store.add(id, data);
+        assertEquals(size, new File(folder, "1.pack").length());
+
+        assertTrue(store.remove(id));
+        assertFalse(store.contains(id));
+        assertEquals(-1, store.length(id));
+        assertNull(store.read(id));
+        assertFalse(store.remove(id));
+    }
+
+    public void testRejectsOtherIds() throws Exception {
+        try {
+            store.add("abc", content(1));
+            fail();
+        } catch (IllegalArgumentException expected) {
+        }
+    }
+
+    public void testReloadIndex() throws Exception {
+        List<byte[]> data = new ArrayList<byte[]>();
+        for (int i = 0; i < 3; i++) {
+            data.add(content(1000 + i));
+            store.add(id(i), data.get(i));
+        }
+        store.remove(id(1));
+        store.close();
+
+        store = new PackStore(folder);
+        assertTrue(Arrays.equals(data.get(0), store.read(id(0))));
+        assertFalse(store.contains(id(1)));
+        assertTrue(Arrays.equals(data.get(2), store.read(id(2))));
+
+        // appends go on in the pack that is not full
+        store.add(id(3), content(10));
+        assertTrue(store.contains(id(3)));
+        assertEquals(1, folder.list((dir, name) -> name.endsWith(".pack")).length);
+    }
+
+    public void testSyncedFlush() throws Exception {
+        store.close();
+        store = new PackStore(folder, true);
+        byte[] data = content(100);
+        store.add(id(1), data);
+        store.flush();
+        // nothing appended since the last flush
+        store.flush();
+        store.close();
+
+        store = new PackStore(folder, true);
+        assertTrue(Arrays.equals(data, store.read(id(1))));
+    }
+
+    public void testCompaction() throws Exception {
+        List<byte[]> data = new ArrayList<byte[]>();
+        for (int i = 0; i < LARGE_COUNT; i++) {
+            data.add(content(MB));
+            store.add(id(i), data.get(i));
+        }
+        assertTrue(new File(folder, "2.pack").exists());
+
+        // the first pack is less than half used afterwards
+        int removed = LARGE_COUNT / 2 + 1;
+        for (int i = 0; i < removed; i++) {
+            store.remove(id(i));
+        }
+        store.compact();
+
+        assertFalse(new File(folder, "1.pack").exists());
+        assertFalse(new File(folder, "1.idx").exists());
+        assertReadable(data, removed);
+
+        store.close();
+        store = new PackStore(folder);
+        assertReadable(data, removed);
+    }
+
+    private void assertReadable(List<byte[]> data, int removed) throws Exception {
+        for (int i = 0; i < data.size(); i++) {
+            if (i < removed) {
+                assertFalse(store.contains(id(i)));
+            } else {
+                assertTrue(Arrays.equals(data.get(i), store.read(id(i))));
+            }
+        }
+    }
+
+    private byte[] content(int length) {
+        byte[] data = new byte[length];
+        random.nextBytes(data);
+        return data;
+    }
+
+    private String id(int number) {
+        return String.format("%064x", number);
+    }
+}
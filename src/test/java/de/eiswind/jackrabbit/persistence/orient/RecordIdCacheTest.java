@@ -0,0 +1,47 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.id.ORecordId;
+import junit.framework.TestCase;
+import org.apache.jackrabbit.core.id.NodeId;
+
+import java.util.Collections;
+
+/**
+ * Never keeps the record id of a bundle whose deletion was committed.
+ */
+public class RecordIdCacheTest extends TestCase {
+
+    private static final long SIZE = 1024 * 1024;
+
+    public void testLookupBeforeDeletionIsNotKept() {
+        RecordIdCache cache = new RecordIdCache("test", SIZE);
+        NodeId id = NodeId.randomId();
+        ORecordId rid = new ORecordId("#9:1");
+
+        // a reader finds the bundle in the index while its deletion is being committed
+        long generation = cache.getGeneration();
+        cache.deleted(Collections.singletonList(id));
+        cache.put(id, rid, generation);
+        assertFalse(cache.contains(id));
+
+        cache.put(id, rid, cache.getGeneration());
+        assertTrue(cache.contains(id));
+    }
+
+    public void testDeletionRemovesCommittedEntry() {
+        RecordIdCache cache = new RecordIdCache("test", SIZE);
+        NodeId id = NodeId.randomId();
+        cache.put(id, new ORecordId("#9:1"));
+        assertTrue(cache.contains(id));
+
+        cache.deleted(Collections.singletonList(id));
+        assertFalse(cache.contains(id));
+    }
+
+    public void testTemporaryRecordIdsAreIgnored() {
+        RecordIdCache cache = new RecordIdCache("test", SIZE);
+        NodeId id = NodeId.randomId();
+        cache.put(id, new ORecordId("#9:-2"));
+        assertFalse(cache.contains(id));
+    }
+}
@@ -0,0 +1,189 @@
+package de.eiswind.jackrabbit.persistence.orient;
+
+import com.orientechnologies.orient.core.db.ODatabaseRecordThreadLocal;
+import com.orientechnologies.orient.core.db.document.ODatabaseDocumentTx;
+import com.orientechnologies.orient.core.id.ORID;
+import com.orientechnologies.orient.core.metadata.schema.OClass;
+import com.orientechnologies.orient.core.metadata.schema.OSchema;
+import com.orientechnologies.orient.core.metadata.schema.OType;
+import com.orientechnologies.orient.core.record.impl.ODocument;
+import junit.framework.TestCase;
+import org.apache.commons.io.FileUtils;
+import org.apache.jackrabbit.core.NamespaceRegistryImpl;
+import org.apache.jackrabbit.core.RepositoryImpl;
+import org.apache.jackrabbit.core.fs.mem.MemoryFileSystem;
+import org.apache.jackrabbit.core.id.NodeId;
+import org.apache.jackrabbit.core.id.PropertyId;
+import org.apache.jackrabbit.core.persistence.PMContext;
+import org.apache.jackrabbit.core.state.ChangeLog;
+import org.apache.jackrabbit.core.state.NodeReferences;
+import org.apache.jackrabbit.spi.commons.name.NameFactoryImpl;
+import org.apache.jackrabbit.stats.RepositoryStatisticsImpl;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * Stores one record per reference and converts the documents that held all references to a target.
+ */
+public class ReferencesTest extends TestCase {
+
+    private static final String PREFIX = "T";
+
+    private static final NodeId TARGET_ID = NodeId.randomId();
+
+    private static final PropertyId FIRST = new PropertyId(NodeId.randomId(),
+            NameFactoryImpl.getInstance().create("", "first"));
+
+    private static final PropertyId SECOND = new PropertyId(NodeId.randomId(),
+            NameFactoryImpl.getInstance().create("", "second"));
+
+    private static final PropertyId THIRD = new PropertyId(NodeId.randomId(),
+            NameFactoryImpl.getInstance().create("", "third"));
+
+    private File directory;
+
+    private String url;
+
+    private ODatabaseDocumentTx database;
+
+    private OrientPersistenceManager manager;
+
+    protected void setUp() throws Exception {
+        directory = File.createTempFile("references", "");
+        directory.delete();
+        directory.mkdirs();
+        url = "memory:references" + System.nanoTime();
+        database = new ODatabaseDocumentTx(url);
+        database.create();
+    }
+
+    protected void tearDown() throws Exception {
+        if (manager != null) {
+            manager.close();
+        }
+        ODatabaseRecordThreadLocal.INSTANCE.set(database);
+        database.drop();
+        FileUtils.forceDelete(directory);
+    }
+
+    public void testAddAndRemoveSingleReferences() throws Exception {
+        manager = createManager();
+        NodeReferences refs = new NodeReferences(TARGET_ID);
+        refs.addReference(FIRST);
+        refs.addReference(SECOND);
+        store(refs);
+        Set<ORID> stored = referenceRecords();
+        assertEquals(2, stored.size());
+        assertReferences(refs);
+
+        // adding a reference leaves the records of the others alone
+        refs.addReference(THIRD);
+        store(refs);
+        Set<ORID> added = referenceRecords();
+        assertEquals(3, added.size());
+        assertTrue(added.containsAll(stored));
+        assertReferences(refs);
+
+        // a property that references the target twice has a record per occurrence
+        refs.addReference(THIRD);
+        store(refs);
+        assertEquals(4, referenceRecords().size());
+        assertReferences(refs);
+
+        refs.removeReference(THIRD);
+        refs.removeReference(SECOND);
+        store(refs);
+        Set<ORID> removed = referenceRecords();
+        assertEquals(2, removed.size());
+        assertTrue(added.containsAll(removed));
+        assertReferences(refs);
+
+        refs.removeReference(FIRST);
+        refs.removeReference(THIRD);
+        store(refs);
+        assertTrue(referenceRecords().isEmpty());
+        assertFalse(manager.existsReferencesTo(TARGET_ID));
+    }
+
+    public void testConvertRefsDocs() throws Exception {
+        String refsClassName = PREFIX + directory.getName() + "Refs";
+        OSchema schema = database.getMetadata().getSchema();
+        OClass refsClass = schema.createClass(refsClassName, schema.getClass("V"));
+        refsClass.createProperty("targetuuid", OType.BINARY).createIndex(OClass.INDEX_TYPE.UNIQUE);
+        schema.save();
+        ODocument refsDoc = new ODocument(refsClassName);
+        refsDoc.field("targetuuid", BundleMapper.idValue(TARGET_ID), OType.BINARY);
+        List<ODocument> refDocs = new ArrayList<ODocument>();
+        for (PropertyId propId : Arrays.asList(FIRST, SECOND, SECOND)) {
+            ODocument refDoc = new ODocument();
+            refDoc.field("ref", propId.toString());
+            refDocs.add(refDoc);
+        }
+        refsDoc.field("refs", refDocs, OType.EMBEDDEDLIST);
+        refsDoc.save();
+
+        manager = createManager();
+        assertTrue(manager.existsReferencesTo(TARGET_ID));
+        NodeReferences refs = new NodeReferences(TARGET_ID);
+        refs.addReference(FIRST);
+        refs.addReference(SECOND);
+        refs.addReference(SECOND);
+        assertReferences(refs);
+        assertEquals(3, referenceRecords().size());
+
+        ODatabaseDocumentTx check = new ODatabaseDocumentTx(url).open("admin", "admin");
+        try {
+            assertFalse(check.getMetadata().getSchema().existsClass(refsClassName));
+        } finally {
+            check.close();
+        }
+
+        refs.removeReference(SECOND);
+        store(refs);
+        assertReferences(refs);
+        assertEquals(2, referenceRecords().size());
+    }
+
+    private OrientPersistenceManager createManager() throws Exception {
+        OrientPersistenceManager created = new OrientPersistenceManager();
+        created.setUrl(url);
+        created.setSchemaObjectPrefix(PREFIX);
+        created.init(new PMContext(directory, new MemoryFileSystem(), RepositoryImpl.ROOT_NODE_ID,
+                new NamespaceRegistryImpl(new MemoryFileSystem()), null, null, new RepositoryStatisticsImpl()));
+        return created;
+    }
+
+    private void store(NodeReferences refs) throws Exception {
+        ChangeLog changes = new ChangeLog();
+        changes.modified(refs);
+        manager.store(changes);
+    }
+
+    private void assertReferences(NodeReferences expected) throws Exception {
+        assertTrue(manager.existsReferencesTo(TARGET_ID));
+        List<PropertyId> actual = new ArrayList<PropertyId>(manager.loadReferencesTo(TARGET_ID).getReferences());
+        List<PropertyId> remaining = new ArrayList<PropertyId>(expected.getReferences());
+        for (PropertyId propId : actual) {
+            assertTrue("unexpected " + propId, remaining.remove(propId));
+        }
+        assertTrue("missing " + remaining, remaining.isEmpty());
+    }
+
+    private Set<ORID> referenceRecords() {
+        ODatabaseDocumentTx check = new ODatabaseDocumentTx(url).open("admin", "admin");
+        try {
+            Set<ORID> rids = new HashSet<ORID>();
+            for (ODocument doc : check.browseClass(PREFIX + directory.getName() + "Reference")) {
+                rids.add(doc.getIdentity().copy());
+            }
+            return rids;
+        } finally {
+            check.close();
+        }
+    }
+}
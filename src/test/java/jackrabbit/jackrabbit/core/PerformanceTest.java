@@ -19,6 +19,7 @@ public class PerformanceTest extends AbstractPerformanceTest {
         System.setProperty(QueryEngine.NATIVE_SORT_SYSTEM_PROPERTY, "true");
         testPerformance("derby", this.getClass().getResourceAsStream("/jackrabbit-derby.xml"));
         testPerformance("orient", this.getClass().getResourceAsStream("/jackrabbit-orient.xml"));
+        testPerformance("orient-binary", this.getClass().getResourceAsStream("/jackrabbit-orient-binary.xml"));
         System.setProperty(QueryEngine.NATIVE_SORT_SYSTEM_PROPERTY, "false");
     }
 
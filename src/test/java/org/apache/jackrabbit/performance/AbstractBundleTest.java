@@ -0,0 +1,54 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import java.util.Calendar;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyType;
+import javax.jcr.RepositoryException;
+
+/**
+ * Base class for tests that measure how fast bundles with properties of
+ * all common types are written to and read from the persistence manager.
+ * Run them against repository configurations that differ only in their
+ * persistence manager settings to compare storage formats.
+ */
+public abstract class AbstractBundleTest extends AbstractTest {
+
+    private static final int BINARY_SIZE = 512;
+
+    /**
+     * Adds a node with a string, long, double, boolean, date, name,
+     * multi-valued string and small binary property.
+     */
+    protected Node addBundleNode(Node parent, String name)
+            throws RepositoryException {
+        Node node = parent.addNode(name, "nt:unstructured");
+        node.setProperty("string", "value of " + name);
+        node.setProperty("long", 42L);
+        node.setProperty("double", 4.2);
+        node.setProperty("boolean", true);
+        node.setProperty("date", Calendar.getInstance());
+        node.setProperty("name", "nt:unstructured", PropertyType.NAME);
+        node.setProperty("strings", new String[] {"a", "b", "c"});
+        node.setProperty("binary", node.getSession().getValueFactory()
+                .createBinary(new TestInputStream(BINARY_SIZE)));
+        return node;
+    }
+
+}
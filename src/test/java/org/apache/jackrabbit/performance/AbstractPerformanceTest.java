@@ -82,12 +82,28 @@ public abstract class AbstractPerformanceTest {
 //        runTest(new LoginLogoutTest(), name, conf);
         runTest(new ReadPropertyTest(), name, conf);
 //        runTest(new SetPropertyTest(), name, conf);
+//        runTest(new SetPropertyManyChildNodesTest(), name, conf);
+//        runTest(new BundleReadTest(), name, conf);
+//        runTest(new BundleWriteTest(), name, conf);
+//        runTest(new ResolveManyPropertiesTest(), name, conf);
 //        runTest(new SmallFileReadTest(), name, conf);
+//        runTest(new HotBlobReadTest(), name, conf);
 //        runTest(new SmallFileWriteTest(), name, conf);
+//        runTest(new DuplicateFileWriteTest(), name, conf);
+//        runTest(new ThumbnailWriteTest(), name, conf);
+//        runTest(new ManySmallFilesWriteTest(), name, conf);
+//        runTest(new ManySmallFilesWriteTest(1000 * 1000), name, conf);
 //        runTest(new BigFileReadTest(), name, conf);
+//        runTest(new BigFileReadTest(1000), name, conf);
 //        runTest(new BigFileWriteTest(), name, conf);
+//        runTest(new FolderImportTest(), name, conf);
+//        runTest(new TextWriteReadTest(), name, conf);
 //        runTest(new ConcurrentReadTest(), name, conf);
 //        runTest(new ConcurrentReadWriteTest(), name, conf);
+//        runTest(new ConcurrentReferenceReadWriteTest(1), name, conf);
+//        runTest(new ConcurrentReferenceReadWriteTest(4), name, conf);
+//        runTest(new ConcurrentReferenceReadWriteTest(16), name, conf);
+//        runTest(new GrowReferencesTest(), name, conf);
         runTest(new SimpleSearchTest(), name, conf);
 //        runTest(new SQL2SearchTest(), name, conf);
 //        runTest(new DescendantSearchTest(), name, conf);
@@ -97,6 +113,9 @@ public abstract class AbstractPerformanceTest {
 //        runTest(new CreateManyChildNodesTest(), name, conf);
 //        runTest(new UpdateManyChildNodesTest(), name, conf);
 //        runTest(new TransientManyChildNodesTest(), name, conf);
+//        runTest(new CreateManyChildNodesTest(100 * 1000), name, conf);
+//        runTest(new UpdateManyChildNodesTest(100 * 1000), name, conf);
+//        runTest(new TransientManyChildNodesTest(100 * 1000), name, conf);
 //        runTest(new CreateUserTest(), name, conf);
         runTest(new PathBasedQueryTest(), name, conf);
 //        try {
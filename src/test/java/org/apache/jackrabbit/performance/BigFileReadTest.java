@@ -19,11 +19,13 @@ package org.apache.jackrabbit.performance;
 import org.apache.commons.io.IOUtils;
 import org.apache.commons.io.output.NullOutputStream;
 
+import javax.jcr.Binary;
 import javax.jcr.Node;
 import javax.jcr.RepositoryException;
 import javax.jcr.Session;
 import java.io.InputStream;
 import java.util.Calendar;
+import java.util.Random;
 
 public class BigFileReadTest extends AbstractTest {
 
@@ -31,12 +33,37 @@ public class BigFileReadTest extends AbstractTest {
 
     private static final int FILE_SIZE = 100;
 
+    private static final int RANGE_SIZE = 64 * 1024;
+
+    private final int rangeCount;
+
+    private final Random random = new Random();
+
+    private final byte[] buffer = new byte[RANGE_SIZE];
+
     private Session session;
 
     private Node root;
 
     private int i = 0;
 
+    /**
+     * Reads whole files.
+     */
+    public BigFileReadTest() {
+        this(0);
+    }
+
+    /**
+     * Reads {@code rangeCount} ranges of {@value #RANGE_SIZE} bytes at
+     * random positions of a file, like a video player that seeks.
+     *
+     * @param rangeCount number of ranges per run, 0 to read whole files
+     */
+    public BigFileReadTest(int rangeCount) {
+        this.rangeCount = rangeCount;
+    }
+
     public void beforeSuite() throws RepositoryException {
         failOnRepositoryVersions("1.4", "1.5", "1.6");
 
@@ -58,6 +85,18 @@ public class BigFileReadTest extends AbstractTest {
     public void runTest() throws Exception {
         Node file = root.getNode("file" + (i++ % FILE_COUNT));
         Node content = file.getNode("jcr:content");
+        if (rangeCount > 0) {
+            Binary binary = content.getProperty("jcr:data").getBinary();
+            try {
+                long max = FILE_SIZE * 1024 * 1024 - RANGE_SIZE;
+                for (int j = 0; j < rangeCount; j++) {
+                    binary.read(buffer, (long) (random.nextDouble() * max));
+                }
+            } finally {
+                binary.dispose();
+            }
+            return;
+        }
         InputStream stream = content.getProperty("jcr:data").getStream();
         try {
             IOUtils.copy(stream, new NullOutputStream());
@@ -0,0 +1,83 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.Property;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test for measuring the performance of reading the properties of
+ * {@value #PARENT_COUNT} x {@value #CHILD_COUNT} bundles with properties of
+ * all common types. That is more than the default bundle cache holds, so
+ * every run loads most of them from the persistence manager.
+ */
+public class BundleReadTest extends AbstractBundleTest {
+
+    private static final int PARENT_COUNT = 100;
+
+    private static final int CHILD_COUNT = 100;
+
+    private Session session;
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+        Node root = session.getRootNode().addNode("testnode", "nt:unstructured");
+        session.save();
+        for (int i = 0; i < PARENT_COUNT; i++) {
+            Node parent = root.addNode("parent" + i, "nt:unstructured");
+            for (int j = 0; j < CHILD_COUNT; j++) {
+                addBundleNode(parent, "node" + j);
+            }
+            session.save();
+        }
+    }
+
+    public void runTest() throws Exception {
+        Session reader = getRepository().login(getCredentials());
+        try {
+            Node root = reader.getRootNode().getNode("testnode");
+            NodeIterator parents = root.getNodes();
+            while (parents.hasNext()) {
+                NodeIterator nodes = parents.nextNode().getNodes();
+                while (nodes.hasNext()) {
+                    PropertyIterator properties = nodes.nextNode().getProperties();
+                    while (properties.hasNext()) {
+                        Property property = properties.nextProperty();
+                        if (property.isMultiple()) {
+                            property.getValues();
+                        } else {
+                            property.getValue();
+                        }
+                    }
+                }
+            }
+        } finally {
+            reader.logout();
+        }
+    }
+
+    public void afterSuite() throws RepositoryException {
+        session.getRootNode().getNode("testnode").remove();
+        session.save();
+        session.logout();
+    }
+
+}
@@ -0,0 +1,50 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test for measuring the performance of writing {@value #NODE_COUNT}
+ * new bundles with properties of all common types in one save.
+ */
+public class BundleWriteTest extends AbstractBundleTest {
+
+    private static final int NODE_COUNT = 100;
+
+    private Session session;
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+    }
+
+    public void runTest() throws Exception {
+        Node node = session.getRootNode().addNode("testnode", "nt:unstructured");
+        for (int i = 0; i < NODE_COUNT; i++) {
+            addBundleNode(node, "node" + i);
+        }
+        session.save();
+    }
+
+    public void afterTest() throws RepositoryException {
+        session.getRootNode().getNode("testnode").remove();
+        session.save();
+    }
+
+}
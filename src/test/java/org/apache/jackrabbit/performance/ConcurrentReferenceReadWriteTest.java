@@ -0,0 +1,128 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.PropertyIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Test for measuring how reference lookups scale with the number of reader
+ * threads while a single writer continuously commits changes. Every iteration
+ * performs {@value #LOOKUPS} reference lookups, split evenly across the
+ * reader threads, so the iteration time should drop as readers are added.
+ */
+public class ConcurrentReferenceReadWriteTest extends AbstractTest {
+
+    private static final int TARGET_COUNT = 100;
+
+    private static final int LOOKUPS = 10 * 1000;
+
+    private final int readerCount;
+
+    private Session session;
+
+    private Node root;
+
+    private ExecutorService executor;
+
+    private List<Session> readers;
+
+    public ConcurrentReferenceReadWriteTest(int readerCount) {
+        this.readerCount = readerCount;
+    }
+
+    public void beforeSuite() throws Exception {
+        session = loginWriter();
+        root = session.getRootNode().addNode("testroot", "nt:unstructured");
+        for (int i = 0; i < TARGET_COUNT; i++) {
+            Node target = root.addNode("target" + i, "nt:unstructured");
+            target.addMixin("mix:referenceable");
+            Node source = root.addNode("source" + i, "nt:unstructured");
+            source.setProperty("ref", target);
+        }
+        session.save();
+
+        readers = new ArrayList<Session>();
+        for (int i = 0; i < readerCount; i++) {
+            readers.add(loginReader());
+        }
+        executor = Executors.newFixedThreadPool(readerCount);
+
+        addBackgroundJob(new Writer());
+    }
+
+    public void runTest() throws Exception {
+        List<Future<Object>> futures = new ArrayList<Future<Object>>();
+        for (final Session reader : readers) {
+            futures.add(executor.submit(() -> {
+                Random random = new Random();
+                for (int i = 0; i < LOOKUPS / readerCount; i++) {
+                    Node target = reader.getRootNode().getNode(
+                            "testroot/target" + random.nextInt(TARGET_COUNT));
+                    PropertyIterator refs = target.getReferences();
+                    while (refs.hasNext()) {
+                        refs.nextProperty();
+                    }
+                }
+                return null;
+            }));
+        }
+        for (Future<Object> future : futures) {
+            future.get();
+        }
+    }
+
+    public void afterSuite() throws Exception {
+        executor.shutdown();
+        root.remove();
+        session.save();
+    }
+
+    public String toString() {
+        return super.toString() + "-" + readerCount;
+    }
+
+    private class Writer implements Runnable {
+
+        private final Session session = loginWriter();
+
+        private final Random random = new Random();
+
+        private long count = 0;
+
+        public void run() {
+            try {
+                Node node = session.getRootNode().getNode(
+                        "testroot/source" + random.nextInt(TARGET_COUNT));
+                node.setProperty("count", count++);
+                session.save();
+            } catch (RepositoryException e) {
+                throw new RuntimeException(e);
+            }
+        }
+
+    }
+
+}
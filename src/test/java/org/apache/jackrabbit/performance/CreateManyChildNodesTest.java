@@ -22,14 +22,25 @@ import javax.jcr.Session;
 
 /**
  * Test for measuring the performance of creating a node with
- * {@value #CHILD_COUNT} child nodes.
+ * {@value #CHILD_COUNT} child nodes, or the number of child nodes passed
+ * to the constructor.
  */
 public class CreateManyChildNodesTest extends AbstractTest {
 
     private static final int CHILD_COUNT = 10 * 1000;
 
+    private final int childCount;
+
     private Session session;
 
+    public CreateManyChildNodesTest() {
+        this(CHILD_COUNT);
+    }
+
+    public CreateManyChildNodesTest(int childCount) {
+        this.childCount = childCount;
+    }
+
     public void beforeSuite() throws RepositoryException {
         session = loginWriter();
     }
@@ -39,7 +50,7 @@ public class CreateManyChildNodesTest extends AbstractTest {
 
     public void runTest() throws Exception {
         Node node = session.getRootNode().addNode("testnode", "nt:unstructured");
-        for (int i = 0; i < CHILD_COUNT; i++) {
+        for (int i = 0; i < childCount; i++) {
             node.addNode("node" + i, "nt:unstructured");
         }
         session.save();
@@ -50,4 +61,11 @@ public class CreateManyChildNodesTest extends AbstractTest {
         session.save();
     }
 
+    public String toString() {
+        if (childCount == CHILD_COUNT) {
+            return super.toString();
+        }
+        return super.toString() + "-" + childCount;
+    }
+
 }
@@ -0,0 +1,89 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test for measuring the performance of adding {@value #ADD_COUNT}
+ * references to a single target, one save each, when the target is
+ * already referenced {@value #REFERENCE_COUNT} times, or the number of
+ * references passed to the constructor.
+ */
+public class GrowReferencesTest extends AbstractTest {
+
+    private static final int REFERENCE_COUNT = 5 * 1000;
+
+    private static final int ADD_COUNT = 100;
+
+    private final int referenceCount;
+
+    private Session session;
+
+    private Node root;
+
+    private Node target;
+
+    public GrowReferencesTest() {
+        this(REFERENCE_COUNT);
+    }
+
+    public GrowReferencesTest(int referenceCount) {
+        this.referenceCount = referenceCount;
+    }
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+        root = session.getRootNode().addNode("testroot", "nt:unstructured");
+        target = root.addNode("target", "nt:unstructured");
+        target.addMixin("mix:referenceable");
+        Node sources = root.addNode("sources", "nt:unstructured");
+        for (int i = 0; i < referenceCount; i++) {
+            sources.addNode("source" + i, "nt:unstructured").setProperty("ref", target);
+        }
+        session.save();
+    }
+
+    public void runTest() throws Exception {
+        Node node = root.addNode("testnode", "nt:unstructured");
+        session.save();
+        for (int i = 0; i < ADD_COUNT; i++) {
+            node.addNode("node" + i, "nt:unstructured").setProperty("ref", target);
+            session.save();
+        }
+    }
+
+    public void afterTest() throws RepositoryException {
+        root.getNode("testnode").remove();
+        session.save();
+    }
+
+    public void afterSuite() throws RepositoryException {
+        root.remove();
+        session.save();
+    }
+
+    public String toString() {
+        if (referenceCount == REFERENCE_COUNT) {
+            return super.toString();
+        }
+        return super.toString() + "-" + referenceCount;
+    }
+
+}
@@ -0,0 +1,95 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.InputStream;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Test for measuring the performance of reading {@value #READ_COUNT}
+ * random files out of {@value #HOT_COUNT} hot files of {@value #FILE_SIZE}
+ * kB, like icons and thumbnails. {@value #COLD_COUNT} more files are written
+ * after the hot ones, so the hot files are loaded from the persistence
+ * manager again instead of being the values the save left in memory.
+ */
+public class HotBlobReadTest extends AbstractTest {
+
+    private static final int HOT_COUNT = 500;
+
+    private static final int COLD_COUNT = 10 * 1000;
+
+    private static final int READ_COUNT = 5000;
+
+    private static final int FILE_SIZE = 8;
+
+    private static final int SAVE_INTERVAL = 1000;
+
+    private final Random random = new Random(42);
+
+    private Session session;
+
+    private Node root;
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+        root = session.getRootNode().addNode("HotBlobReadTest", "nt:folder");
+        addFiles(root.addNode("hot", "nt:folder"), HOT_COUNT);
+        addFiles(root.addNode("cold", "nt:folder"), COLD_COUNT);
+    }
+
+    private void addFiles(Node folder, int count) throws RepositoryException {
+        for (int i = 0; i < count; i++) {
+            Node file = folder.addNode("file" + i, "nt:file");
+            Node content = file.addNode("jcr:content", "nt:resource");
+            content.setProperty("jcr:mimeType", "application/octet-stream");
+            content.setProperty("jcr:lastModified", Calendar.getInstance());
+            content.setProperty(
+                    "jcr:data", new TestInputStream(FILE_SIZE * 1024));
+            if (i % SAVE_INTERVAL == SAVE_INTERVAL - 1) {
+                session.save();
+            }
+        }
+        session.save();
+    }
+
+    public void runTest() throws Exception {
+        Node hot = root.getNode("hot");
+        for (int i = 0; i < READ_COUNT; i++) {
+            Node file = hot.getNode("file" + random.nextInt(HOT_COUNT));
+            InputStream stream =
+                    file.getNode("jcr:content").getProperty("jcr:data").getStream();
+            try {
+                IOUtils.copy(stream, new NullOutputStream());
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    public void afterSuite() throws RepositoryException {
+        root.remove();
+        session.save();
+    }
+
+}
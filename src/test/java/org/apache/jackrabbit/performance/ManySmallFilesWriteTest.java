@@ -0,0 +1,92 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.util.Calendar;
+
+/**
+ * Test for measuring the throughput of writing {@value #FILE_COUNT} small
+ * files of {@value #FILE_SIZE} bytes, or the number of files passed to the
+ * constructor, saved {@value #SAVE_INTERVAL} at a time in folders of that
+ * size. Run it with a large count to see how the binary storage copes with
+ * millions of files.
+ */
+public class ManySmallFilesWriteTest extends AbstractTest {
+
+    private static final int FILE_COUNT = 10 * 1000;
+
+    private static final int FILE_SIZE = 4 * 1024;
+
+    private static final int SAVE_INTERVAL = 1000;
+
+    private final int fileCount;
+
+    private Session session;
+
+    private Node root;
+
+    public ManySmallFilesWriteTest() {
+        this(FILE_COUNT);
+    }
+
+    public ManySmallFilesWriteTest(int fileCount) {
+        this.fileCount = fileCount;
+    }
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+    }
+
+    public void beforeTest() throws RepositoryException {
+        root = session.getRootNode().addNode("ManySmallFilesWriteTest", "nt:folder");
+        session.save();
+    }
+
+    public void runTest() throws Exception {
+        Node folder = null;
+        for (int i = 0; i < fileCount; i++) {
+            if (i % SAVE_INTERVAL == 0) {
+                folder = root.addNode("folder" + i / SAVE_INTERVAL, "nt:folder");
+            }
+            Node file = folder.addNode("file" + i, "nt:file");
+            Node content = file.addNode("jcr:content", "nt:resource");
+            content.setProperty("jcr:mimeType", "application/octet-stream");
+            content.setProperty("jcr:lastModified", Calendar.getInstance());
+            content.setProperty("jcr:data", new TestInputStream(FILE_SIZE));
+            if (i % SAVE_INTERVAL == SAVE_INTERVAL - 1) {
+                session.save();
+            }
+        }
+        session.save();
+    }
+
+    public void afterTest() throws RepositoryException {
+        root.remove();
+        session.save();
+    }
+
+    public String toString() {
+        if (fileCount == FILE_COUNT) {
+            return super.toString();
+        }
+        return super.toString() + "-" + fileCount;
+    }
+
+}
@@ -0,0 +1,81 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test for measuring the performance of resolving the paths of
+ * {@value #PARENT_COUNT} x {@value #CHILD_COUNT} nodes that each have
+ * {@value #PROPERTY_COUNT} large string properties, without reading the
+ * properties. That is more than the default bundle cache holds, so every
+ * run loads most of the bundles from the persistence manager.
+ */
+public class ResolveManyPropertiesTest extends AbstractTest {
+
+    private static final int PARENT_COUNT = 50;
+
+    private static final int CHILD_COUNT = 50;
+
+    private static final int PROPERTY_COUNT = 20;
+
+    private static final int VALUE_SIZE = 1000;
+
+    private Session session;
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+        Node root = session.getRootNode().addNode("testnode", "nt:unstructured");
+        session.save();
+        StringBuilder value = new StringBuilder();
+        while (value.length() < VALUE_SIZE) {
+            value.append("value ");
+        }
+        for (int i = 0; i < PARENT_COUNT; i++) {
+            Node parent = root.addNode("parent" + i, "nt:unstructured");
+            for (int j = 0; j < CHILD_COUNT; j++) {
+                Node node = parent.addNode("node" + j, "nt:unstructured");
+                for (int k = 0; k < PROPERTY_COUNT; k++) {
+                    node.setProperty("property" + k, value.toString() + k);
+                }
+            }
+            session.save();
+        }
+    }
+
+    public void runTest() throws Exception {
+        Session reader = getRepository().login(getCredentials());
+        try {
+            for (int i = 0; i < PARENT_COUNT; i++) {
+                for (int j = 0; j < CHILD_COUNT; j++) {
+                    reader.getNode("/testnode/parent" + i + "/node" + j);
+                }
+            }
+        } finally {
+            reader.logout();
+        }
+    }
+
+    public void afterSuite() throws RepositoryException {
+        session.getRootNode().getNode("testnode").remove();
+        session.save();
+        session.logout();
+    }
+
+}
@@ -0,0 +1,71 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import javax.jcr.Node;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+
+/**
+ * Test for measuring the performance of setting a single property on a node
+ * with {@value #CHILD_COUNT} child nodes and {@value #PROPERTY_COUNT} other
+ * properties, and saving the change.
+ */
+public class SetPropertyManyChildNodesTest extends AbstractTest {
+
+    private static final int CHILD_COUNT = 10 * 1000;
+
+    private static final int PROPERTY_COUNT = 1000;
+
+    private Session session;
+
+    private Node node;
+
+    public void beforeSuite() throws RepositoryException {
+        session = getRepository().login(getCredentials());
+        node = session.getRootNode().addNode("testnode", "nt:unstructured");
+        for (int i = 0; i < CHILD_COUNT; i++) {
+            node.addNode("node" + i, "nt:unstructured");
+        }
+        for (int i = 0; i < PROPERTY_COUNT; i++) {
+            node.setProperty("property" + i, "value" + i);
+        }
+        session.save();
+    }
+
+    public void beforeTest() throws RepositoryException {
+        node.setProperty("count", -1);
+        session.save();
+    }
+
+    public void runTest() throws Exception {
+        for (int i = 0; i < 100; i++) {
+            node.setProperty("count", i);
+            session.save();
+        }
+    }
+
+    public void afterTest() throws RepositoryException {
+    }
+
+    public void afterSuite() throws RepositoryException {
+        session.getRootNode().getNode("testnode").remove();
+        session.save();
+        session.logout();
+    }
+
+}
@@ -0,0 +1,116 @@
+/*
+ * Licensed to the Apache Software Foundation (ASF) under one or more
+ * contributor license agreements.  See the NOTICE file distributed with
+ * this work for additional information regarding copyright ownership.
+ * The ASF licenses this file to You under the Apache License, Version 2.0
+ * (the "License"); you may not use this file except in compliance with
+ * the License.  You may obtain a copy of the License at
+ *
+ *      http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.apache.jackrabbit.performance;
+
+import org.apache.commons.io.IOUtils;
+import org.apache.commons.io.output.NullOutputStream;
+
+import javax.jcr.Node;
+import javax.jcr.NodeIterator;
+import javax.jcr.RepositoryException;
+import javax.jcr.Session;
+import java.io.ByteArrayInputStream;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.util.Calendar;
+import java.util.Random;
+
+/**
+ * Test for measuring the performance of writing and reading back
+ * {@value #FILE_COUNT} text files of {@value #FILE_SIZE} kB, each with a
+ * description of {@value #DESCRIPTION_SIZE} kB in a string property, like
+ * the documents of a text heavy repository.
+ */
+public class TextWriteReadTest extends AbstractTest {
+
+    private static final int FILE_COUNT = 100;
+
+    private static final int FILE_SIZE = 256;
+
+    private static final int DESCRIPTION_SIZE = 16;
+
+    private static final String[] WORDS = {
+        "the", "repository", "stores", "content", "of", "a", "node", "and",
+        "its", "properties", "in", "documents", "which", "are", "read",
+        "written", "by", "persistence", "manager", "with", "binary", "text"
+    };
+
+    private final Random random = new Random(42);
+
+    private Session session;
+
+    private Session reader;
+
+    private Node root;
+
+    public void beforeSuite() throws RepositoryException {
+        session = loginWriter();
+        reader = loginReader();
+    }
+
+    public void beforeTest() throws RepositoryException {
+        root = session.getRootNode().addNode("TextWriteReadTest", "nt:folder");
+        session.save();
+    }
+
+    public void runTest() throws Exception {
+        for (int i = 0; i < FILE_COUNT; i++) {
+            Node file = root.addNode("file" + i, "nt:file");
+            file.addMixin("mix:title");
+            file.setProperty("jcr:description", text(DESCRIPTION_SIZE * 1024));
+            Node content = file.addNode("jcr:content", "nt:resource");
+            content.setProperty("jcr:mimeType", "text/plain");
+            content.setProperty("jcr:lastModified", Calendar.getInstance());
+            byte[] data = text(FILE_SIZE * 1024).getBytes(StandardCharsets.UTF_8);
+            content.setProperty("jcr:data", new ByteArrayInputStream(data));
+        }
+        session.save();
+
+        reader.refresh(false);
+        NodeIterator files = reader.getNode(root.getPath()).getNodes();
+        while (files.hasNext()) {
+            Node file = files.nextNode();
+            file.getProperty("jcr:description").getString();
+            InputStream stream =
+                    file.getNode("jcr:content").getProperty("jcr:data").getStream();
+            try {
+                IOUtils.copy(stream, new NullOutputStream());
+            } finally {
+                stream.close();
+            }
+        }
+    }
+
+    public void afterTest() throws RepositoryException {
+        root.remove();
+        session.save();
+    }
+
+    private String text(int length) {
+        StringBuilder text = new StringBuilder(length + 16);
+        while (text.length() < length) {
+            text.append(WORDS[random.nextInt(WORDS.length)]);
+            if (random.nextInt(12) == 0) {
+                text.append(".\n");
+            } else {
+                text.append(' ');
+            }
+        }
+        return text.substring(0, length);
+    }
+
+}
@@ -23,7 +23,8 @@ import javax.jcr.Session;
 /**
  * Test for measuring the performance of {@value #ITERATIONS} iterations of
  * transiently adding and removing a child node to a node that already has
- * {@value #CHILD_COUNT} existing child nodes.
+ * {@value #CHILD_COUNT} existing child nodes, or the number of child
+ * nodes passed to the constructor.
  */
 public class TransientManyChildNodesTest extends AbstractTest {
 
@@ -31,14 +32,24 @@ public class TransientManyChildNodesTest extends AbstractTest {
 
     private static final int ITERATIONS = 1000;
 
+    private final int childCount;
+
     private Session session;
 
     private Node node;
 
+    public TransientManyChildNodesTest() {
+        this(CHILD_COUNT);
+    }
+
+    public TransientManyChildNodesTest(int childCount) {
+        this.childCount = childCount;
+    }
+
     public void beforeSuite() throws RepositoryException {
         session = getRepository().login(getCredentials());
         node = session.getRootNode().addNode("testnode", "nt:unstructured");
-        for (int i = 0; i < CHILD_COUNT; i++) {
+        for (int i = 0; i < childCount; i++) {
             node.addNode("node" + i, "nt:unstructured");
         }
     }
@@ -61,4 +72,11 @@ public class TransientManyChildNodesTest extends AbstractTest {
         session.logout();
     }
 
+    public String toString() {
+        if (childCount == CHILD_COUNT) {
+            return super.toString();
+        }
+        return super.toString() + "-" + childCount;
+    }
+
 }
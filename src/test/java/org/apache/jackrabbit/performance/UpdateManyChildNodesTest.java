@@ -22,20 +22,31 @@ import javax.jcr.Session;
 
 /**
  * Test for measuring the performance of adding one extra child node to 
- * node with {@value #CHILD_COUNT} existing child nodes.
+ * node with {@value #CHILD_COUNT} existing child nodes, or the number of
+ * child nodes passed to the constructor.
  */
 public class UpdateManyChildNodesTest extends AbstractTest {
 
     private static final int CHILD_COUNT = 10 * 1000;
 
+    private final int childCount;
+
     private Session session;
 
     private Node node;
 
+    public UpdateManyChildNodesTest() {
+        this(CHILD_COUNT);
+    }
+
+    public UpdateManyChildNodesTest(int childCount) {
+        this.childCount = childCount;
+    }
+
     public void beforeSuite() throws RepositoryException {
         session = getRepository().login(getCredentials());
         node = session.getRootNode().addNode("testnode", "nt:unstructured");
-        for (int i = 0; i < CHILD_COUNT; i++) {
+        for (int i = 0; i < childCount; i++) {
             node.addNode("node" + i, "nt:unstructured");
         }
     }
@@ -59,4 +70,11 @@ public class UpdateManyChildNodesTest extends AbstractTest {
         session.logout();
     }
 
+    public String toString() {
+        if (childCount == CHILD_COUNT) {
+            return super.toString();
+        }
+        return super.toString() + "-" + childCount;
+    }
+
 }